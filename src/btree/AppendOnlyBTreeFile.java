@@ -0,0 +1,820 @@
+/*
+ * @(#) AppendOnlyBTreeFile.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.HFPage;
+
+/**
+ * AppendOnlyBTreeFile.java A copy-on-write B+ tree. Pages of a committed
+ * version of the tree are never changed: an update copies the pages on the
+ * path from the root to the leaf it changes to new pages, and commit writes
+ * the new pages, then switches the root id in the header page with one page
+ * write. A crash before that write leaves the previous version as it was,
+ * so the tree is consistent without a log.
+ *
+ * Pages are allocated from an extent map in file order, each near the one
+ * allocated before it, and commit writes them in that order, with vectored
+ * writes if the database is a VectoredDB. Pages written since the last
+ * commit are changed in place by further updates of the same batch. Leaves
+ * are not linked, as a link would make every copy of a leaf copy its
+ * neighbours too; scans walk the tree instead.
+ *
+ * A scan reads the version committed when it was created. Pages replaced by
+ * a later commit are kept until no scan of an older version is open, and
+ * then freed for reuse. Pages of a batch that was not committed before a
+ * crash stay allocated in the extent map.
+ *
+ * Deletion is naive: leaves are not merged, and may become empty.
+ */
+public class AppendOnlyBTreeFile extends IndexFile implements GlobalConst {
+
+	private final static int MAGIC0 = 1989;
+
+	private BTreeHeaderPage headerPage;
+	private PageId headerPageId;
+	private String dbname;
+	private ExtentMap extents;
+	private KeyComparator keyOrder; // order of the keys of the index
+
+	private int committedRoot; // root of the last committed version
+	private int root; // root of the version being built
+	private long version; // number of the last committed version
+	private boolean inBatch; // begin() called and not yet committed
+	private int lastAllocated = INVALID_PAGE;
+
+	private final Set<Integer> fresh = new HashSet<Integer>(); // written since the last commit
+	private final List<Integer> replaced = new ArrayList<Integer>(); // committed pages copied since
+	private final TreeMap<Long, List<Integer>> retired = new TreeMap<Long, List<Integer>>(); // version -> pages of older versions only
+	private final TreeMap<Long, Integer> readers = new TreeMap<Long, Integer>(); // version -> open scans
+
+	/**
+	 * AppendOnlyBTreeFile class an index file with given filename should
+	 * already exist; this opens it.
+	 *
+	 * @param filename
+	 *            the B+ tree file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get the file from DB
+	 * @exception ConstructPageException
+	 *                the file is not an append-only B+ tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 */
+	public AppendOnlyBTreeFile(String filename) throws GetFileEntryException,
+			ConstructPageException, IOException, PinPageException,
+			UnpinPageException {
+		headerPageId = get_file_entry(filename);
+		if (headerPageId == null)
+			throw new GetFileEntryException(null, "no file " + filename);
+		open(filename);
+	}
+
+	/**
+	 * if index file exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed, or the file is not an
+	 *                append-only B+ tree
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception UnpinPageException
+	 *                failed when unpin a page
+	 */
+	public AppendOnlyBTreeFile(String filename, int keytype, int keysize)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException, PinPageException, UnpinPageException {
+		headerPageId = get_file_entry(filename);
+		if (headerPageId != null) {
+			open(filename);
+			return;
+		}
+
+		headerPage = new BTreeHeaderPage();
+		headerPageId = headerPage.getPageId();
+		headerPage.set_magic0(MAGIC0);
+		headerPage.set_rootId(new PageId(INVALID_PAGE));
+		headerPage.set_keyType((short) keytype);
+		keyOrder = KeyComparator.of(keytype);
+		headerPage.set_maxKeySize(keysize);
+		headerPage.set_deleteFashion(DeleteFashion.NAIVE_DELETE);
+		headerPage.setType(NodeType.BTHEAD);
+		BTreeHeaderExt.init(headerPage);
+		extents = ExtentMap.create();
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.EXTENT_MAP,
+				extents.getFirstPage().pid);
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.APPEND_ONLY, 1);
+		extents.sync();
+		writeHeader();
+		add_file_entry(filename, headerPageId);
+
+		dbname = filename;
+		committedRoot = root = INVALID_PAGE;
+	}
+
+	private void open(String filename) throws ConstructPageException,
+			IOException, PinPageException, UnpinPageException {
+		headerPage = new BTreeHeaderPage(headerPageId);
+		if (BTreeHeaderExt.get(headerPage, BTreeHeaderExt.APPEND_ONLY) == 0) {
+			unpinPage(headerPageId, false);
+			headerPage = null;
+			throw new ConstructPageException(null, filename
+					+ " is not an append-only B+ tree");
+		}
+		extents = ExtentMap.open(new PageId(BTreeHeaderExt.get(headerPage,
+				BTreeHeaderExt.EXTENT_MAP)));
+		keyOrder = KeyComparator.of(headerPage.get_keyType());
+		dbname = filename;
+		committedRoot = root = headerPage.get_rootId().pid;
+	}
+
+	/**
+	 * Access method to data member.
+	 *
+	 * @return Return a BTreeHeaderPage object that is the header page of this
+	 *         btree file.
+	 */
+	public BTreeHeaderPage getHeaderPage() {
+		return headerPage;
+	}
+
+	/**
+	 * Start a batch: the following inserts and deletes build one new version
+	 * that is only written and made visible by commit(). Without a batch
+	 * every insert and delete commits on its own.
+	 */
+	public void begin() {
+		inBatch = true;
+	}
+
+	/**
+	 * Write the pages of the version built since the last commit, then make
+	 * it the current version by switching the root in the header page. Pages
+	 * of older versions that no open scan reads any more are freed.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error from the lower layer
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public void commit() throws IOException, ConstructPageException,
+			FreePageException {
+		inBatch = false;
+		if (fresh.isEmpty() && root == committedRoot)
+			return;
+
+		writePages();
+		extents.sync();
+		headerPage.set_rootId(new PageId(root));
+		writeHeader();
+
+		committedRoot = root;
+		version++;
+		if (!replaced.isEmpty())
+			retired.put(version, new ArrayList<Integer>(replaced));
+		replaced.clear();
+		fresh.clear();
+		freeRetired();
+	}
+
+	/**
+	 * Drop the version built since the last commit.
+	 *
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public void abort() throws FreePageException {
+		inBatch = false;
+		for (int pid : fresh)
+			extents.free(new PageId(pid));
+		fresh.clear();
+		replaced.clear();
+		root = committedRoot;
+	}
+
+	/**
+	 * Commit a batch still open and unpin the header page. Scans must be
+	 * done before.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error from the lower layer
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws IOException, ConstructPageException,
+			FreePageException, UnpinPageException {
+		if (headerPage != null) {
+			commit();
+			readers.clear();
+			freeRetired();
+			unpinPage(headerPageId, true);
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy entire B+ tree file, without reading its pages. Scans must be
+	 * done before.
+	 *
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 */
+	public void destroyFile() throws FreePageException, UnpinPageException,
+			DeleteFileEntryException {
+		if (headerPage != null) {
+			extents.destroy();
+			fresh.clear();
+			replaced.clear();
+			retired.clear();
+			readers.clear();
+			unpinPage(headerPageId, false);
+			try {
+				SystemDefs.JavabaseBM.freePage(headerPageId);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new FreePageException(e, "");
+			}
+			try {
+				SystemDefs.JavabaseDB.delete_file_entry(dbname);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new DeleteFileEntryException(e, "");
+			}
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when commit
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+
+		boolean done = false;
+		try {
+			if (root == INVALID_PAGE) {
+				BTLeafPage leafPage = new BTLeafPage(newPage(),
+						headerPage.get_keyType());
+				leafPage.setType(NodeType.LEAF);
+				BTreeFile.insertLeafRecord(leafPage, key, rid, null);
+				root = leafPage.getCurPage().pid;
+				unpinPage(leafPage.getCurPage(), true);
+			} else {
+				KeyDataEntry[] split = new KeyDataEntry[1];
+				int newRoot = insert(new PageId(root), key, rid, split);
+				if (split[0] != null) {
+					BTIndexPage indexPage = new BTIndexPage(newPage(),
+							headerPage.get_keyType());
+					indexPage.setType(NodeType.INDEX);
+					indexPage.setLeftLink(new PageId(newRoot));
+					BTreeFile.insertIndexRecord(indexPage, split[0].key,
+							((IndexData) split[0].data).getData());
+					newRoot = indexPage.getCurPage().pid;
+					unpinPage(indexPage.getCurPage(), true);
+				}
+				root = newRoot;
+			}
+			if (!inBatch)
+				commit();
+			done = true;
+		} catch (FreePageException e) {
+			throw new InsertException(e, "commit failed");
+		} finally {
+			if (!done && !inBatch)
+				abortQuietly();
+		}
+	}
+
+	/*
+	 * Insert below a page of the version being built. Returns the page that
+	 * takes its place; if it had to split, split[0] is set to the entry for
+	 * its new right sibling.
+	 */
+	private int insert(PageId pageno, KeyClass key, RID rid,
+			KeyDataEntry[] split) throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException, IteratorException,
+			KeyNotMatchException, NodeNotMatchException, DeleteRecException,
+			LeafInsertRecException, IndexInsertRecException,
+			IndexSearchException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page,
+				headerPage.get_keyType());
+
+		if (sortedPage.getType() == NodeType.INDEX) {
+			RawKey raw = RawKey.of(key, headerPage.get_keyType());
+			PageId child = raw != null ? BTreeFile.rawChild(page.getpage(),
+					raw, true) : new BTIndexPage(page, headerPage.get_keyType())
+					.getPageNoByKey(key);
+			unpinPage(pageno, false);
+
+			int newChild = insert(child, key, rid, split);
+			if (newChild == child.pid && split[0] == null)
+				return pageno.pid; // the child was changed in place
+
+			BTIndexPage indexPage = new BTIndexPage(writable(pageno),
+					headerPage.get_keyType());
+			replaceChild(indexPage, child.pid, newChild);
+			if (split[0] != null) {
+				KeyDataEntry up = split[0];
+				split[0] = null;
+				if (indexPage.available_space() >= BT.getKeyDataLength(up.key,
+						NodeType.INDEX))
+					BTreeFile.insertIndexRecord(indexPage, up.key,
+							((IndexData) up.data).getData());
+				else
+					split[0] = splitIndex(indexPage, up);
+			}
+			unpinPage(indexPage.getCurPage(), true);
+			return indexPage.getCurPage().pid;
+		}
+
+		unpinPage(pageno, false);
+		BTLeafPage leafPage = new BTLeafPage(writable(pageno),
+				headerPage.get_keyType());
+		if (leafPage.available_space() >= BT.getKeyDataLength(key,
+				NodeType.LEAF))
+			BTreeFile.insertLeafRecord(leafPage, key, rid, null);
+		else
+			split[0] = splitLeaf(leafPage, key, rid);
+		unpinPage(leafPage.getCurPage(), true);
+		return leafPage.getCurPage().pid;
+	}
+
+	/*
+	 * Split a full leaf while inserting <key, rid>: the page keeps the lower
+	 * half, a new leaf takes the upper half. Returns the copy-up entry.
+	 */
+	private KeyDataEntry splitLeaf(BTLeafPage leafPage, KeyClass key, RID rid)
+			throws IOException, ConstructPageException, IteratorException,
+			KeyNotMatchException, DeleteRecException, LeafInsertRecException,
+			UnpinPageException {
+		BTLeafPage newLeaf = new BTLeafPage(newPage(), headerPage.get_keyType());
+		newLeaf.setType(NodeType.LEAF);
+
+		List<KeyDataEntry> entries = BTreeFile.takeEntries(leafPage);
+		entries.add(BTreeFile.insertPosition(entries, key, keyOrder),
+				new KeyDataEntry(key, rid));
+		int split_point = entries.size() / 2;
+		for (int i = 0; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			BTreeFile.insertLeafRecord(i < split_point ? leafPage : newLeaf,
+					entry.key, ((LeafData) entry.data).getData(), null);
+		}
+
+		KeyDataEntry up = new KeyDataEntry(entries.get(split_point).key,
+				newLeaf.getCurPage());
+		unpinPage(newLeaf.getCurPage(), true);
+		return up;
+	}
+
+	/*
+	 * Split a full index page while inserting an entry: the middle entry is
+	 * pushed up and its child becomes the left link of the new page. Returns
+	 * the push-up entry.
+	 */
+	private KeyDataEntry splitIndex(BTIndexPage indexPage, KeyDataEntry up)
+			throws IOException, ConstructPageException, IteratorException,
+			KeyNotMatchException, DeleteRecException, IndexInsertRecException,
+			UnpinPageException {
+		BTIndexPage newIndex = new BTIndexPage(newPage(),
+				headerPage.get_keyType());
+		newIndex.setType(NodeType.INDEX);
+
+		List<KeyDataEntry> entries = BTreeFile.takeEntries(indexPage);
+		entries.add(BTreeFile.insertPosition(entries, up.key, keyOrder), up);
+		int split_point = entries.size() / 2;
+		KeyDataEntry middle = entries.get(split_point);
+
+		for (int i = 0; i < split_point; i++)
+			BTreeFile.insertIndexRecord(indexPage, entries.get(i).key,
+					((IndexData) entries.get(i).data).getData());
+		newIndex.setLeftLink(((IndexData) middle.data).getData());
+		for (int i = split_point + 1; i < entries.size(); i++)
+			BTreeFile.insertIndexRecord(newIndex, entries.get(i).key,
+					((IndexData) entries.get(i).data).getData());
+
+		KeyDataEntry pushed = new KeyDataEntry(middle.key, newIndex.getCurPage());
+		unpinPage(newIndex.getCurPage(), true);
+		return pushed;
+	}
+
+	/*
+	 * Point the link of an index page that leads to oldChild to newChild.
+	 */
+	private static void replaceChild(BTIndexPage indexPage, int oldChild,
+			int newChild) throws IOException {
+		if (oldChild == newChild)
+			return;
+		if (indexPage.getLeftLink().pid == oldChild) {
+			indexPage.setLeftLink(new PageId(newChild));
+			return;
+		}
+		byte[] data = indexPage.getpage();
+		for (int slot = 0; slot < RawPage.slotCount(data); slot++)
+			if (RawPage.indexChild(data, slot) == oldChild) {
+				RawPage.setInt(newChild, data, RawPage.slotOffset(data, slot)
+						+ RawPage.slotLength(data, slot) - 4);
+				return;
+			}
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteFashionException
+	 *                not used
+	 * @exception LeafRedistributeException
+	 *                not used
+	 * @exception RedistributeException
+	 *                not used
+	 * @exception InsertRecException
+	 *                not used
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IndexInsertRecException
+	 *                not used
+	 * @exception FreePageException
+	 *                error when commit
+	 * @exception RecordNotFoundException
+	 *                not used
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IndexFullDeleteException
+	 *                not used
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception DeleteRecException
+	 *                not used
+	 * @exception IndexSearchException
+	 *                not used
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		if (root == INVALID_PAGE)
+			return false;
+
+		boolean done = false;
+		try {
+			int newRoot = delete(new PageId(root), key, rid);
+			if (newRoot != INVALID_PAGE) {
+				root = newRoot;
+				if (!inBatch)
+					commit();
+			}
+			done = true;
+			return newRoot != INVALID_PAGE;
+		} finally {
+			if (!done && !inBatch)
+				abortQuietly();
+		}
+	}
+
+	/*
+	 * Delete <key, rid> below a page of the version being built. Returns the
+	 * page that takes its place, INVALID_PAGE if the entry is not there. As
+	 * duplicates of a separator may lie on both sides of it, every child
+	 * whose key range holds the key is searched.
+	 */
+	private int delete(PageId pageno, KeyClass key, RID rid)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException, IteratorException, KeyNotMatchException,
+			LeafDeleteException {
+		Page page = pinPage(pageno);
+		byte[] data = page.getpage();
+
+		if (RawPage.type(data) == NodeType.INDEX) {
+			List<Integer> children = new ArrayList<Integer>();
+			BTIndexPage indexPage = new BTIndexPage(page,
+					headerPage.get_keyType());
+			RID slot = new RID();
+			int left = indexPage.getLeftLink().pid;
+			for (KeyDataEntry entry = indexPage.getFirst(slot); entry != null; entry = indexPage
+					.getNext(slot)) {
+				int cmp = keyOrder.keyCompare(key, entry.key);
+				if (cmp < 0)
+					break;
+				if (cmp > 0)
+					left = ((IndexData) entry.data).getData().pid;
+				else {
+					children.add(left);
+					left = ((IndexData) entry.data).getData().pid;
+				}
+			}
+			children.add(left);
+			unpinPage(pageno, false);
+
+			for (int child : children) {
+				int newChild = delete(new PageId(child), key, rid);
+				if (newChild == INVALID_PAGE)
+					continue;
+				if (newChild == child)
+					return pageno.pid;
+				BTIndexPage copy = new BTIndexPage(writable(pageno),
+						headerPage.get_keyType());
+				replaceChild(copy, child, newChild);
+				unpinPage(copy.getCurPage(), true);
+				return copy.getCurPage().pid;
+			}
+			return INVALID_PAGE;
+		}
+
+		boolean found = false;
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		RID slot = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(slot); entry != null
+				&& !found; entry = leafPage.getNext(slot))
+			found = keyOrder.keyCompare(key, entry.key) == 0
+					&& ((LeafData) entry.data).getData().equals(rid);
+		unpinPage(pageno, false);
+		if (!found)
+			return INVALID_PAGE;
+
+		leafPage = new BTLeafPage(writable(pageno), headerPage.get_keyType());
+		leafPage.delEntry(new KeyDataEntry(key, rid));
+		unpinPage(leafPage.getCurPage(), true);
+		return leafPage.getCurPage().pid;
+	}
+
+	/**
+	 * create a scan of the committed version, which it keeps reading however
+	 * the tree changes after. Both bounds are inclusive, null for none.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the scan
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public AppendOnlyFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException {
+		AppendOnlyFileScan scan = new AppendOnlyFileScan(this, version,
+				committedRoot, headerPage, lo_key, hi_key);
+		Integer n = readers.get(version);
+		readers.put(version, n == null ? 1 : n + 1);
+		return scan;
+	}
+
+	/*
+	 * Called by a scan when it is done with its version.
+	 */
+	void closeScan(long scanVersion) throws FreePageException {
+		Integer n = readers.get(scanVersion);
+		if (n == null)
+			return;
+		if (n > 1)
+			readers.put(scanVersion, n - 1);
+		else
+			readers.remove(scanVersion);
+		freeRetired();
+	}
+
+	/*
+	 * Free the pages that only versions no scan reads any more hold: those
+	 * retired by a commit after the oldest version still read.
+	 */
+	private void freeRetired() throws FreePageException {
+		long oldest = readers.isEmpty() ? Long.MAX_VALUE : readers.firstKey();
+		while (!retired.isEmpty() && retired.firstKey() <= oldest) {
+			for (int pid : retired.pollFirstEntry().getValue())
+				extents.free(new PageId(pid));
+		}
+	}
+
+	/*
+	 * Pin a page of the version being built for a change: the page itself if
+	 * it was written since the last commit, else a new copy of it.
+	 */
+	private Page writable(PageId pageno) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (fresh.contains(pageno.pid))
+			return pinPage(pageno);
+
+		Page copy = newPage();
+		Page page = pinPage(pageno);
+		byte[] data = copy.getpage();
+		int pid = RawPage.curPage(data);
+		System.arraycopy(page.getpage(), 0, data, 0, MINIBASE_PAGESIZE);
+		RawPage.setInt(pid, data, HFPage.CUR_PAGE);
+		unpinPage(pageno, false);
+		replaced.add(pageno.pid);
+		return copy;
+	}
+
+	/*
+	 * Pin an empty, initialized page after the last one allocated.
+	 */
+	private Page newPage() throws IOException, ConstructPageException {
+		PageId pageno = extents.allocate(ExtentMap.LEAF,
+				lastAllocated == INVALID_PAGE ? null : new PageId(lastAllocated));
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true/* new page */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+		new HFPage().init(pageno, page);
+		lastAllocated = pageno.pid;
+		fresh.add(pageno.pid);
+		return page;
+	}
+
+	/*
+	 * Write the pages of the version being built in page order, a run of
+	 * consecutive pages at a time. The pages are copied out of the buffer
+	 * pool first, so a run may be longer than the pool.
+	 */
+	private void writePages() throws IOException, ConstructPageException {
+		Integer[] pids = fresh.toArray(new Integer[fresh.size()]);
+		Arrays.sort(pids);
+		try {
+			int i = 0;
+			while (i < pids.length) {
+				int run = 1;
+				while (i + run < pids.length && pids[i + run] == pids[i] + run)
+					run++;
+				Page[] pages = new Page[run];
+				for (int j = 0; j < run; j++)
+					pages[j] = new Page(copyOf(new PageId(pids[i + j])));
+				if (SystemDefs.JavabaseDB instanceof VectoredDB)
+					((VectoredDB) SystemDefs.JavabaseDB).writePages(new PageId(
+							pids[i]), run, pages);
+				else
+					for (int j = 0; j < run; j++)
+						SystemDefs.JavabaseDB.write_page(new PageId(pids[i + j]),
+								pages[j]);
+				i += run;
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "write pages failed");
+		}
+	}
+
+	private byte[] copyOf(PageId pageno) throws PinPageException,
+			UnpinPageException {
+		byte[] data = pinPage(pageno).getpage().clone();
+		unpinPage(pageno, false);
+		return data;
+	}
+
+	/*
+	 * Write the header page through to disk; this is the commit point.
+	 */
+	private void writeHeader() throws IOException {
+		try {
+			SystemDefs.JavabaseDB.write_page(headerPageId, headerPage);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException("write header page failed");
+		}
+	}
+
+	private void abortQuietly() {
+		try {
+			abort();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private PageId get_file_entry(String filename) throws GetFileEntryException {
+		try {
+			return SystemDefs.JavabaseDB.get_file_entry(filename);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new GetFileEntryException(e, "");
+		}
+	}
+
+	private void add_file_entry(String fileName, PageId pageno)
+			throws AddFileEntryException {
+		try {
+			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AddFileEntryException(e, "");
+		}
+	}
+
+	private Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * @(#) AppendOnlyFileScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * AppendOnlyFileScan.java A range scan of one committed version of an
+ * AppendOnlyBTreeFile. As its leaves are not linked, the scan keeps the path
+ * from the root to the current leaf, as copies of the pages, and moves to
+ * the next leaf through the parents. The pages of a committed version are
+ * never changed and are not freed while a scan of the version is open, so
+ * the scan sees the version whatever is committed after it.
+ */
+public class AppendOnlyFileScan extends IndexFileScan implements GlobalConst {
+
+	private final AppendOnlyBTreeFile file;
+	private final long version;
+	private final int rootId;
+	private final int keyType;
+	private final KeyComparator keyOrder;
+	private final int maxKeysize;
+	private final KeyClass startkey; // null for no bound
+	private final KeyClass endkey; // null for no bound
+
+	/* index pages on the path to the leaf, and the child followed in each: -1 for the left link */
+	private final Deque<byte[]> path = new ArrayDeque<byte[]>();
+	private final Deque<Integer> child = new ArrayDeque<Integer>();
+	private byte[] leaf; // copy of the current leaf, null when done
+	private int slot; // next slot to return from leaf
+	private boolean started;
+	private boolean closed;
+
+	AppendOnlyFileScan(AppendOnlyBTreeFile file, long version, int rootId,
+			BTreeHeaderPage header, KeyClass lo_key, KeyClass hi_key)
+			throws IOException {
+		this.file = file;
+		this.version = version;
+		this.rootId = rootId;
+		this.keyType = header.get_keyType();
+		this.keyOrder = KeyComparator.of(keyType);
+		this.maxKeysize = header.get_maxKeySize();
+		this.startkey = lo_key;
+		this.endkey = hi_key;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (closed)
+				return null;
+			if (!started) {
+				started = true;
+				if (rootId != INVALID_PAGE)
+					descend(rootId, startkey);
+			}
+
+			while (leaf != null) {
+				if (slot >= RawPage.slotCount(leaf)) {
+					nextLeaf();
+					continue;
+				}
+
+				KeyDataEntry entry = BT.getEntryFromBytes(leaf,
+						RawPage.slotOffset(leaf, slot),
+						RawPage.slotLength(leaf, slot), keyType, NodeType.LEAF);
+				slot++;
+				if (startkey != null
+						&& keyOrder.keyCompare(entry.key, startkey) < 0)
+					continue;
+				if (endkey != null
+						&& keyOrder.keyCompare(entry.key, endkey) > 0)
+					break;
+				return entry;
+			}
+			close();
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/*
+	 * Descend from a page to the left-most leaf that may hold the key, all
+	 * the way left for none. Duplicates of a separator may lie left of it,
+	 * so the descent goes left of every separator equal to the key.
+	 */
+	private void descend(int pid, KeyClass key) throws PinPageException,
+			UnpinPageException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		byte[] page = read(pid);
+		while (RawPage.type(page) == NodeType.INDEX) {
+			int i = -1;
+			if (key != null)
+				while (i + 1 < RawPage.slotCount(page)
+						&& keyOrder.keyCompare(key(page, i + 1), key) < 0)
+					i++;
+			path.push(page);
+			child.push(i);
+			page = read(childOf(page, i));
+		}
+		leaf = page;
+		slot = 0;
+	}
+
+	/*
+	 * Move to the first leaf after the current one, or past the end.
+	 */
+	private void nextLeaf() throws PinPageException, UnpinPageException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		leaf = null;
+		while (!path.isEmpty()) {
+			byte[] parent = path.peek();
+			int i = child.pop() + 1;
+			if (i < RawPage.slotCount(parent)) {
+				if (endkey != null
+						&& keyOrder.keyCompare(key(parent, i), endkey) > 0)
+					break;
+				child.push(i);
+				descend(childOf(parent, i), null);
+				return;
+			}
+			path.pop();
+		}
+		path.clear();
+		child.clear();
+	}
+
+	private KeyClass key(byte[] page, int i) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException {
+		return BT.getEntryFromBytes(page, RawPage.slotOffset(page, i),
+				RawPage.slotLength(page, i), keyType, NodeType.INDEX).key;
+	}
+
+	private static int childOf(byte[] page, int i) {
+		return i < 0 ? RawPage.prevPage(page) : RawPage.indexChild(page, i);
+	}
+
+	private static byte[] read(int pid) throws PinPageException,
+			UnpinPageException {
+		PageId pageno = new PageId(pid);
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		byte[] data = page.getpage().clone();
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+		return data;
+	}
+
+	/**
+	 * A scan of a committed version is read-only.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null,
+				"scans of an append-only B+ tree are read-only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. Let the pages of the version be freed once no other scan
+	 * reads it. Called by get_next at the end of the range.
+	 */
+	public void DestroyBTreeFileScan() {
+		close();
+	}
+
+	private void close() {
+		leaf = null;
+		path.clear();
+		child.clear();
+		if (closed)
+			return;
+		closed = true;
+		try {
+			file.closeScan(version);
+		} catch (FreePageException e) {
+			e.printStackTrace();
+		}
+	}
+}
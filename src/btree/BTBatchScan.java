@@ -0,0 +1,172 @@
+/*
+ * @(#) BTBatchScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTBatchScan.java A reusable scan over an integer key B+ tree. Instead of
+ * handing out one KeyDataEntry per get_next(), it copies the keys and rids of
+ * up to one leaf page per call into arrays supplied by the caller, reading
+ * them straight out of the pinned leaf. A running scan therefore does not
+ * allocate per entry, and reset() positions the same scan on a new range.
+ * The rids of a posting list are copied out as entries of its key.
+ */
+public class BTBatchScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage; // current leaf, pinned. null once the scan is done
+	RID curRid; // curRid.slotNo is the next slot to return on leafPage
+	boolean hasEndkey;
+	int endkey;
+	boolean postings; // the index keeps posting lists
+	private PostingList.Reader posting; // list at curRid.slotNo being copied, or null
+
+	BTBatchScan(BTreeFile bfile) {
+		this.bfile = bfile;
+		curRid = new RID();
+	}
+
+	/**
+	 * Position the scan on a new range, releasing the leaf held for the old
+	 * one. Entries held in the write buffer of the index are applied first.
+	 * The bounds follow the rules of BTreeFile.new_scan.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the smallest key.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the largest key.
+	 *            Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not an integer key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void reset(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		DestroyBTreeFileScan();
+		posting = null;
+
+		if (hi_key != null && !(hi_key instanceof IntegerKey))
+			throw new KeyNotMatchException(null, "batch scan needs integer keys");
+		hasEndkey = hi_key != null;
+		if (hasEndkey)
+			endkey = ((IntegerKey) hi_key).getKey().intValue();
+
+		// entries inserted since the last range are still in the write buffer
+		bfile.applyWriteBuffer();
+		postings = bfile.postingLists();
+		leafPage = bfile.findRunStart(lo_key, curRid);
+	}
+
+	/**
+	 * Copy the next entries of the scan into the given arrays. At most one
+	 * leaf page worth of entries, and no more than the shortest array holds,
+	 * is returned per call.
+	 *
+	 * @param keys
+	 *            receives the keys. Output parameter.
+	 * @param pageNos
+	 *            receives rid.pageNo.pid of each entry. Output parameter.
+	 * @param slotNos
+	 *            receives rid.slotNo of each entry. Output parameter.
+	 * @return the number of entries copied, 0 when the scan is done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public int get_next_batch(int[] keys, int[] pageNos, int[] slotNos)
+			throws ScanIteratorException {
+		if (leafPage == null)
+			return 0;
+
+		try {
+			byte[] data = leafPage.getpage();
+			int slot = curRid.slotNo;
+
+			while (slot >= RawPage.slotCount(data)) {
+				// this leaf is used up, go right
+				PageId nextpage = new PageId(RawPage.nextPage(data));
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				if (nextpage.pid == INVALID_PAGE) {
+					leafPage = null;
+					return 0;
+				}
+				leafPage = new BTLeafPage(nextpage, AttrType.attrInteger);
+				data = leafPage.getpage();
+				slot = 0;
+			}
+
+			int max = Math.min(keys.length, Math.min(pageNos.length,
+					slotNos.length));
+			int cnt = RawPage.slotCount(data);
+			int n = 0;
+			while (n < max && slot < cnt) {
+				int key = RawPage.intKey(data, slot);
+				if (hasEndkey && key > endkey) {
+					DestroyBTreeFileScan();
+					return n;
+				}
+				if (posting == null && postings
+						&& RawPage.leafSlotNo(data, slot) == PostingList.POSTING_SLOT)
+					posting = new PostingList.Reader(new PageId(
+							RawPage.leafPageNo(data, slot)), null);
+				if (posting != null) {
+					RID rid = posting.next();
+					if (rid == null) {
+						posting = null;
+						slot++;
+						continue;
+					}
+					keys[n] = key;
+					pageNos[n] = rid.pageNo.pid;
+					slotNos[n] = rid.slotNo;
+					n++;
+					continue;
+				}
+				keys[n] = key;
+				pageNos[n] = RawPage.leafPageNo(data, slot);
+				slotNos[n] = RawPage.leafSlotNo(data, slot);
+				n++;
+				slot++;
+			}
+			curRid.slotNo = slot;
+			return n;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Unpin the leaf held by the scan. The scan can still be reset afterwards.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void DestroyBTreeFileScan() throws UnpinPageException {
+		if (leafPage != null) {
+			try {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+			leafPage = null;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * @(#) BTCoveringScan.java
+ *
+ */
+
+package btree;
+
+/**
+ * BTCoveringScan.java The scan BTreeFile.new_scan returns for an index whose
+ * entries may carry included values. It is a BTRangeScan whose entries have
+ * a CoveringData with those values as their data if they have any, so a
+ * query needing only the key and the included columns reads no heap record.
+ */
+public class BTCoveringScan extends BTRangeScan {
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry = super.get_next();
+		if (entry == null)
+			return null;
+		try {
+			// the scan is left on the slot of the entry it returned
+			return CoveringData.entry(leafPage.getpage(), curRid.slotNo,
+					keyType);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * @(#) BTHeapFetchScan.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTHeapFetchScan.java Reads the heap records the entries of an index scan
+ * point to. Fetching the record of each rid as the scan returns it pins the
+ * heap pages in key order, so the same page is pinned again and again and
+ * the reads jump around the heap file. This scan instead takes a window of
+ * entries from the index scan, sorts their rids by page and reads each heap
+ * page of the window once. With a ReadAheadBufMgr, heap pages of a window
+ * that lie next to each other on disk are copied with one vectored read.
+ *
+ * The records of a window are returned in heap order, or, if asked for, in
+ * the order of the index scan. The index scan is read until it returns null;
+ * a caller that stops early destroys it as usual.
+ */
+public class BTHeapFetchScan implements GlobalConst {
+
+	private final IndexFileScan scan;
+	private final boolean indexOrder;
+
+	/* the current window, by position in the index scan */
+	private final KeyClass[] keys;
+	private final RID[] rids;
+	private final Tuple[] tuples;
+	private final long[] order; // page << 32 | position, sorted
+	private int count; // entries in the window
+	private int next; // next of them to return
+	private boolean done; // the index scan has returned null
+
+	private byte[][] ahead; // copies of consecutive heap pages
+
+	/**
+	 * @param scan
+	 *            the index scan whose rids to fetch. Input parameter.
+	 * @param window
+	 *            number of entries sorted and fetched together. Input
+	 *            parameter.
+	 * @param indexOrder
+	 *            return the records in the order of the index scan rather
+	 *            than in heap order. Input parameter.
+	 */
+	public BTHeapFetchScan(IndexFileScan scan, int window, boolean indexOrder) {
+		this.scan = scan;
+		this.indexOrder = indexOrder;
+		window = Math.max(window, 1);
+		keys = new KeyClass[window];
+		rids = new RID[window];
+		tuples = new Tuple[window];
+		order = new long[window];
+	}
+
+	/**
+	 * Fetch the next record.
+	 *
+	 * @param rid
+	 *            receives the rid of the record. Output parameter.
+	 * @return the record, null when the index scan is done
+	 * @exception ScanIteratorException
+	 *                error from the index scan or the heap page
+	 */
+	public Tuple get_next(RID rid) throws ScanIteratorException {
+		if (next == count) {
+			if (done)
+				return null;
+			fill();
+			if (count == 0)
+				return null;
+		}
+		int i = position(next++);
+		rid.pageNo = new PageId(rids[i].pageNo.pid);
+		rid.slotNo = rids[i].slotNo;
+		return tuples[i];
+	}
+
+	/**
+	 * @return the index key of the record last returned by get_next
+	 */
+	public KeyClass getKey() {
+		return next == 0 ? null : keys[position(next - 1)];
+	}
+
+	/*
+	 * Position in the index scan of the n-th record of the window to return.
+	 */
+	private int position(int n) {
+		return indexOrder ? n : (int) order[n];
+	}
+
+	/*
+	 * Take the next window from the index scan and read its records.
+	 */
+	private void fill() throws ScanIteratorException {
+		count = 0;
+		next = 0;
+		while (count < keys.length) {
+			KeyDataEntry entry = scan.get_next();
+			if (entry == null) {
+				done = true;
+				break;
+			}
+			RID rid = ((LeafData) entry.data).getData();
+			keys[count] = entry.key;
+			rids[count] = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+			order[count] = (long) rids[count].pageNo.pid << 32 | count;
+			count++;
+		}
+		Arrays.sort(order, 0, count);
+
+		try {
+			int i = 0;
+			while (i < count) {
+				int run = 1; // consecutive pages the entries from i on are on
+				int end = i + 1; // first entry past those pages
+				while (end < count) {
+					int p = page(end);
+					if (p == page(i) + run - 1) {
+						end++;
+					} else if (p == page(i) + run
+							&& run < LeafCopyCursor.READ_AHEAD
+							&& SystemDefs.JavabaseBM instanceof ReadAheadBufMgr) {
+						run++;
+						end++;
+					} else {
+						break;
+					}
+				}
+				if (run > 1)
+					readRun(i, end, run);
+				else
+					readPage(i, end);
+				i = end;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "heap fetch failed");
+		}
+	}
+
+	private int page(int i) {
+		return (int) (order[i] >>> 32);
+	}
+
+	/*
+	 * Read the records of order[from..to], all on one page, through a single
+	 * pin of the page.
+	 */
+	private void readPage(int from, int to) throws Exception {
+		PageId pageno = new PageId(page(from));
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		try {
+			readRecords(new HFPage(page), from, to);
+		} finally {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+	}
+
+	/*
+	 * Read the records of order[from..to], which lie on `run' consecutive
+	 * pages, from copies of the pages.
+	 */
+	private void readRun(int from, int to, int run) throws Exception {
+		if (ahead == null) {
+			ahead = new byte[LeafCopyCursor.READ_AHEAD][];
+			for (int i = 0; i < ahead.length; i++)
+				ahead[i] = new byte[MINIBASE_PAGESIZE];
+		}
+		int start = page(from);
+		((ReadAheadBufMgr) SystemDefs.JavabaseBM).copyPages(new PageId(start),
+				run, ahead);
+
+		int i = from;
+		while (i < to) {
+			int end = i + 1;
+			while (end < to && page(end) == page(i))
+				end++;
+			readRecords(new HFPage(new Page(ahead[page(i) - start])), i, end);
+			i = end;
+		}
+	}
+
+	private void readRecords(HFPage hfPage, int from, int to) throws Exception {
+		for (int i = from; i < to; i++) {
+			int position = (int) order[i];
+			tuples[position] = hfPage.getRecord(rids[position]);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * @(#) BTIndexJoin.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTIndexJoin.java Index nested-loop join of a set of outer entries with
+ * the entries of a B+ tree. Probing the index with new_scan(k, k) for each
+ * outer entry descends from the root every time and visits the leaves in
+ * the order of the outer entries. This join sorts the outer entries by key
+ * instead and probes all their keys with one BTMultiRangeScan, which goes
+ * on from the current leaf when the next key is on it and otherwise
+ * descends from the lowest index page of its last descent that covers the
+ * key. Each inner entry found is paired with the outer entries of its key
+ * as it is read, so nothing of the inner side is held.
+ *
+ * The results come in key order; for one key, the inner entries in index
+ * order, each paired with the outer entries in the order they were given.
+ */
+public class BTIndexJoin implements GlobalConst {
+
+	private final List<KeyDataEntry> outer; // sorted by key
+	private final BTMultiRangeScan scan;
+
+	private KeyDataEntry inner; // inner entry being paired, or null
+	private int groupStart; // outer entries with the key of inner
+	private int groupEnd;
+	private int next; // next of them to pair
+
+	private static final Comparator<KeyDataEntry> KEY_ORDER = new Comparator<KeyDataEntry>() {
+		public int compare(KeyDataEntry a, KeyDataEntry b) {
+			return KeyRange.compareBound(a.key, b.key, 0);
+		}
+	};
+
+	BTIndexJoin(BTreeFile bfile, Collection<KeyDataEntry> outerEntries)
+			throws java.io.IOException, IteratorException {
+		outer = new ArrayList<KeyDataEntry>(outerEntries);
+		Collections.sort(outer, KEY_ORDER); // stable: equal keys keep their order
+
+		SortedSet<KeyRange> keys = new TreeSet<KeyRange>();
+		for (KeyDataEntry entry : outer)
+			keys.add(new KeyRange(entry.key));
+		scan = bfile.multiScan(keys);
+	}
+
+	/**
+	 * Iterate once.
+	 *
+	 * @return the next pair of entries with equal keys, null when done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public JoinEntry get_next() throws ScanIteratorException {
+		while (inner == null || next == groupEnd) {
+			inner = scan.get_next();
+			if (inner == null)
+				return null;
+			if (groupEnd == 0
+					|| KEY_ORDER.compare(outer.get(groupStart), inner) != 0) {
+				// the multi-range scan only returns keys of outer entries
+				groupStart = groupEnd;
+				while (KEY_ORDER.compare(outer.get(groupStart), inner) < 0)
+					groupStart++;
+				groupEnd = groupStart + 1;
+				while (groupEnd < outer.size()
+						&& KEY_ORDER.compare(outer.get(groupEnd), inner) == 0)
+					groupEnd++;
+			}
+			next = groupStart;
+		}
+		return new JoinEntry(outer.get(next++), inner);
+	}
+
+	/**
+	 * Release the leaf held by the index scan, for a caller that stops
+	 * before get_next returns null.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		try {
+			scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
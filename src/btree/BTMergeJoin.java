@@ -0,0 +1,114 @@
+/*
+ * @(#) BTMergeJoin.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTMergeJoin.java Merge join of two ascending scans, usually of two
+ * different B+ trees. Both scans are read once, in step, and the entries
+ * with equal keys are paired as they are read. The only entries held are
+ * the inner entries of the current key, to be paired again with each outer
+ * entry of that key.
+ *
+ * The results come in key order; for one key, each outer entry paired with
+ * the inner entries in scan order. The join destroys both scans when it
+ * reaches its end; a caller that stops early calls close().
+ */
+public class BTMergeJoin implements GlobalConst {
+
+	private final BTFileScan outerScan;
+	private final BTFileScan innerScan;
+
+	private KeyDataEntry outer; // outer entry being paired
+	private final List<KeyDataEntry> group = new ArrayList<KeyDataEntry>(); // inner entries of its key
+	private int next; // next of them to pair
+	private KeyDataEntry innerAhead; // first inner entry after group
+	private boolean started;
+	private boolean done;
+	private KeyComparator keyOrder; // bound to the first outer key
+
+	/**
+	 * @param outerScan
+	 *            ascending scan of the outer entries. Input parameter.
+	 * @param innerScan
+	 *            ascending scan of the inner entries, with keys of the same
+	 *            type. Input parameter.
+	 */
+	public BTMergeJoin(BTFileScan outerScan, BTFileScan innerScan) {
+		this.outerScan = outerScan;
+		this.innerScan = innerScan;
+	}
+
+	/**
+	 * Iterate once.
+	 *
+	 * @return the next pair of entries with equal keys, null when done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public JoinEntry get_next() throws ScanIteratorException {
+		try {
+			while (!done) {
+				if (outer != null && next < group.size())
+					return new JoinEntry(outer, group.get(next++));
+
+				KeyDataEntry prev = outer;
+				outer = outerScan.get_next();
+				next = 0;
+				if (outer == null)
+					break;
+				if (keyOrder == null)
+					keyOrder = KeyComparator.of(outer.key);
+				if (prev != null && keyOrder.keyCompare(prev.key, outer.key) == 0)
+					continue; // pair the same inner entries again
+
+				group.clear();
+				if (!started) {
+					innerAhead = innerScan.get_next();
+					started = true;
+				}
+				while (innerAhead != null
+						&& keyOrder.keyCompare(innerAhead.key, outer.key) < 0)
+					innerAhead = innerScan.get_next();
+				while (innerAhead != null
+						&& keyOrder.keyCompare(innerAhead.key, outer.key) == 0) {
+					group.add(innerAhead);
+					innerAhead = innerScan.get_next();
+				}
+				if (group.isEmpty() && innerAhead == null)
+					break; // no inner entries left to pair
+			}
+			close();
+			return null;
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Destroy both scans.
+	 *
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void close() throws UnpinPageException {
+		done = true;
+		group.clear();
+		try {
+			outerScan.DestroyBTreeFileScan();
+			innerScan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
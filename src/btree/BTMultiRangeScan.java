@@ -0,0 +1,345 @@
+/*
+ * @(#) BTMultiRangeScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTMultiRangeScan.java Scan over a sorted set of key ranges (an IN-list is a
+ * set of one-key ranges) in a single left-to-right pass. Overlapping ranges
+ * are merged, so each entry is returned once, in key order.
+ *
+ * When the next range starts on the leaf the scan is on, it goes on from the
+ * current slot. Otherwise it re-descends, but not from the root: the scan
+ * remembers the index pages of its last descent together with the key range
+ * each of them covers, and starts from the lowest one that covers the new
+ * low key. The rids of a posting list are returned as entries of its key.
+ */
+public class BTMultiRangeScan extends IndexFileScan implements GlobalConst {
+
+	/*
+	 * An index page on the path of the last descent. It covers the keys in
+	 * (low, high] in the sense of findRunStart, which sends a key equal to a
+	 * separator to the left; null fences are unbounded.
+	 */
+	private static class PathFrame {
+		final PageId pageno;
+		final KeyClass low;
+		final KeyClass high;
+
+		PathFrame(PageId pageno, KeyClass low, KeyClass high) {
+			this.pageno = pageno;
+			this.low = low;
+			this.high = high;
+		}
+
+		boolean covers(KeyClass key, KeyComparator keyOrder)
+				throws KeyNotMatchException {
+			if (key == null)
+				return low == null;
+			return (low == null || keyOrder.keyCompare(low, key) < 0)
+					&& (high == null || keyOrder.keyCompare(key, high) <= 0);
+		}
+	}
+
+	BTreeFile bfile;
+	int keyType;
+	KeyComparator keyOrder;
+	int maxKeysize;
+	boolean postings; // the index keeps posting lists
+
+	private final List<KeyRange> ranges; // merged, in key order
+	private int nextRange; // index of the next range to open
+	private KeyRange curRange; // range being returned, null between ranges
+	private final List<PathFrame> path = new ArrayList<PathFrame>();
+
+	private BTLeafPage leafPage; // current leaf, pinned
+	private int slot; // next slot to look at on leafPage
+	private boolean dirty; // leafPage changed by delete_current
+	private boolean done;
+	private PostingList.Reader posting; // list being returned, or null
+	private PageId postingHead;
+	private KeyClass postingKey;
+	private RID current; // rid last returned from a list, else null
+
+	BTMultiRangeScan(BTreeFile bfile, SortedSet<KeyRange> keyRanges)
+			throws IOException {
+		this.bfile = bfile;
+		this.keyType = bfile.getHeaderPage().get_keyType();
+		this.keyOrder = KeyComparator.of(keyType);
+		this.maxKeysize = bfile.getHeaderPage().get_maxKeySize();
+		this.postings = bfile.postingLists();
+		this.ranges = merge(keyRanges);
+		dropAbsentKeys();
+		this.done = bfile.getHeaderPage().get_rootId().pid == INVALID_PAGE;
+	}
+
+	/*
+	 * Sort the ranges and merge those that overlap.
+	 */
+	private static List<KeyRange> merge(SortedSet<KeyRange> keyRanges) {
+		List<KeyRange> sorted = new ArrayList<KeyRange>(keyRanges);
+		Collections.sort(sorted);
+
+		List<KeyRange> merged = new ArrayList<KeyRange>();
+		for (KeyRange range : sorted) {
+			if (!merged.isEmpty()) {
+				KeyRange last = merged.get(merged.size() - 1);
+				if (last.hi_key == null
+						|| KeyRange.compareBound(range.lo_key, last.hi_key, -1) <= 0) {
+					KeyClass hi = KeyRange.compareBound(range.hi_key,
+							last.hi_key, 1) > 0 ? range.hi_key : last.hi_key;
+					merged.set(merged.size() - 1, new KeyRange(last.lo_key, hi));
+					continue;
+				}
+			}
+			merged.add(range);
+		}
+		return merged;
+	}
+
+	/*
+	 * Drop the one-key ranges whose key the Bloom filter of the index rules
+	 * out, so that they cost no descent.
+	 */
+	private void dropAbsentKeys() {
+		Iterator<KeyRange> it = ranges.iterator();
+		while (it.hasNext()) {
+			KeyRange range = it.next();
+			if (range.lo_key != null && range.hi_key != null
+					&& KeyRange.compareBound(range.lo_key, range.hi_key, 0) == 0
+					&& !bfile.mightContain(range.lo_key))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (!done) {
+				if (posting != null) {
+					current = posting.next();
+					if (current != null)
+						return new KeyDataEntry(postingKey, current);
+					posting = null;
+				}
+
+				if (curRange == null && !openNextRange())
+					break;
+
+				KeyDataEntry entry = current();
+				if (entry == null)
+					break; // ran off the last leaf
+
+				if (curRange.hi_key != null
+						&& keyOrder.keyCompare(entry.key, curRange.hi_key) > 0) {
+					curRange = null; // leave the entry for the next range
+					continue;
+				}
+
+				slot++;
+				if (postings && PostingList.isPosting(entry)) {
+					postingKey = entry.key;
+					postingHead = PostingList.head(entry);
+					posting = new PostingList.Reader(postingHead, null);
+					continue;
+				}
+				return entry;
+			}
+
+			finish();
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/*
+	 * Move on to the next range and position the scan on its first entry.
+	 *
+	 * @return false if there are no more ranges
+	 */
+	private boolean openNextRange() throws Exception {
+		if (nextRange >= ranges.size())
+			return false;
+
+		curRange = ranges.get(nextRange++);
+		KeyClass lo_key = curRange.lo_key;
+
+		if (leafPage != null && lo_key != null && slot < leafPage.getSlotCnt()
+				&& keyOrder.keyCompare(lo_key,
+						keyAt(leafPage.getSlotCnt() - 1)) <= 0) {
+			// the range starts on this leaf
+			while (keyOrder.keyCompare(keyAt(slot), lo_key) < 0)
+				slot++;
+			return true;
+		}
+
+		descend(lo_key);
+		while (lo_key != null && slot < leafPage.getSlotCnt()
+				&& keyOrder.keyCompare(keyAt(slot), lo_key) < 0)
+			slot++;
+		return true;
+	}
+
+	/*
+	 * Descend to the leaf findRunStart would find for lo_key, starting at the
+	 * lowest index page of the last descent that covers lo_key.
+	 */
+	private void descend(KeyClass lo_key) throws Exception {
+		while (!path.isEmpty() && !path.get(path.size() - 1).covers(lo_key,
+				keyOrder))
+			path.remove(path.size() - 1);
+
+		PageId pageno;
+		KeyClass low = null;
+		KeyClass high = null;
+		if (path.isEmpty()) {
+			pageno = bfile.getHeaderPage().get_rootId();
+		} else {
+			PathFrame frame = path.remove(path.size() - 1);
+			pageno = frame.pageno;
+			low = frame.low;
+			high = frame.high;
+		}
+
+		releaseLeaf();
+
+		BTSortedPage sortPage = new BTSortedPage(pageno, keyType);
+		while (sortPage.getType() == NodeType.INDEX) {
+			path.add(new PathFrame(pageno, low, high));
+
+			BTIndexPage pageIndex = new BTIndexPage(sortPage, keyType);
+			RID rid = new RID();
+			PageId child = pageIndex.getPrevPage();
+			KeyDataEntry curEntry = pageIndex.getFirst(rid);
+			while (curEntry != null && lo_key != null
+					&& keyOrder.keyCompare(curEntry.key, lo_key) < 0) {
+				low = curEntry.key;
+				child = ((IndexData) curEntry.data).getData();
+				curEntry = pageIndex.getNext(rid);
+			}
+			if (curEntry != null)
+				high = curEntry.key;
+
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = child;
+			sortPage = new BTSortedPage(pageno, keyType);
+		}
+
+		leafPage = new BTLeafPage(sortPage, keyType);
+		slot = 0;
+	}
+
+	/*
+	 * The entry at the scan position, going right over used up and empty
+	 * leaves. null at the end of the leaf level.
+	 */
+	private KeyDataEntry current() throws Exception {
+		while (slot >= leafPage.getSlotCnt()) {
+			PageId nextpage = leafPage.getNextPage();
+			releaseLeaf();
+			if (nextpage.pid == INVALID_PAGE)
+				return null;
+			leafPage = new BTLeafPage(nextpage, keyType);
+			slot = 0;
+		}
+		return CoveringData.entry(leafPage.getpage(), slot, keyType);
+	}
+
+	private KeyClass keyAt(int i) throws Exception {
+		return leafPage.getCurrent(new RID(leafPage.getCurPage(), i)).key;
+	}
+
+	private void releaseLeaf() throws Exception {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+			leafPage = null;
+			dirty = false;
+		}
+	}
+
+	private void finish() throws Exception {
+		releaseLeaf();
+		path.clear();
+		done = true;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current != null) {
+			try {
+				PostingList.remove(bfile, postingHead, current);
+				current = null;
+				return;
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanDeleteException();
+			}
+		}
+		if (leafPage == null || curRange == null || slot == 0) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+		try {
+			leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(), slot - 1));
+			slot--;
+			dirty = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin the current leaf if it is still pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		leafPage = null;
+		path.clear();
+		done = true;
+	}
+}
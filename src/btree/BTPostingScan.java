@@ -0,0 +1,74 @@
+/*
+ * @(#) BTPostingScan.java
+ *
+ */
+
+package btree;
+
+import global.*;
+
+/**
+ * BTPostingScan.java The scan BTreeFile.new_scan returns for an index with
+ * posting lists. It is a BTRangeScan that returns the rids of a posting list
+ * as entries of its key, in rid order, in place of the leaf entry that
+ * points to the list. Deleting one of them removes the rid from the list.
+ */
+public class BTPostingScan extends BTRangeScan {
+
+	private PostingList.Reader posting; // list being returned, or null
+	private PageId postingHead;
+	private KeyClass postingKey;
+	private RID current; // rid last returned from a list, else null
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (true) {
+				if (posting != null) {
+					current = posting.next();
+					if (current != null)
+						return new KeyDataEntry(postingKey, current);
+					posting = null;
+				}
+
+				KeyDataEntry entry = super.get_next();
+				if (entry == null || !PostingList.isPosting(entry))
+					return entry;
+				postingKey = entry.key;
+				postingHead = PostingList.head(entry);
+				posting = new PostingList.Reader(postingHead, null);
+			}
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null) {
+			super.delete_current();
+			return;
+		}
+		try {
+			PostingList.remove(bfile, postingHead, current);
+			current = null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * @(#) BTRangeScan.java
+ *
+ */
+
+package btree;
+
+import global.*;
+
+/**
+ * BTRangeScan.java The scan BTreeFile.new_scan returns. It is a BTFileScan
+ * that ends at its high key in the key order of the index: BTFileScan
+ * compares with BT.keyCompare, whose subtraction overflows for integer keys
+ * more than 2^31 apart, so new_scan leaves its endkey null and the high key
+ * is checked here instead.
+ */
+public class BTRangeScan extends BTFileScan {
+
+	KeyClass hikey; // largest key to return, null for no bound
+	KeyComparator keyOrder;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		KeyDataEntry entry = super.get_next();
+		if (entry == null || hikey == null)
+			return entry;
+		try {
+			if (keyOrder.keyCompare(entry.key, hikey) <= 0)
+				return entry;
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+			leafPage = null;
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * @(#) BTRangeSpliterator.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * BTRangeSpliterator.java Spliterator over a key range of a BTreeFile that is
+ * cut into partitions at separator keys taken from the index pages (see
+ * BTreeFile.parallelScan). Splitting hands half of the not yet started
+ * partitions to the new spliterator; each partition is read with its own
+ * LeafCopyCursor, so the partitions of a parallel stream are scanned by
+ * separate fork-join tasks.
+ *
+ * Partition i covers [bounds[i], bounds[i+1]), the last one includes its
+ * upper bound. A null bound means the index has no bound on that side.
+ */
+public class BTRangeSpliterator implements Spliterator<KeyDataEntry> {
+
+	private final BTreeFile bfile;
+	private final KeyClass[] bounds;
+	private int from; // next partition to open
+	private final int to; // one past the last partition of this spliterator
+	private LeafCopyCursor cursor; // cursor of partition from - 1
+
+	BTRangeSpliterator(BTreeFile bfile, KeyClass[] bounds, int from, int to) {
+		this.bfile = bfile;
+		this.bounds = bounds;
+		this.from = from;
+		this.to = to;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		try {
+			while (true) {
+				if (cursor != null) {
+					KeyDataEntry entry = cursor.next();
+					if (entry != null) {
+						action.accept(entry);
+						return true;
+					}
+					cursor = null;
+				}
+				if (from >= to)
+					return false;
+
+				boolean last = from == bounds.length - 2;
+				cursor = new LeafCopyCursor(bfile, bounds[from],
+						bounds[from + 1], last);
+				from++;
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("parallel scan failed", e);
+		}
+	}
+
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (cursor != null || to - from < 2)
+			return null;
+
+		int mid = (from + to) >>> 1;
+		BTRangeSpliterator prefix = new BTRangeSpliterator(bfile, bounds, from,
+				mid);
+		from = mid;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * @(#) BTReverseFileScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseFileScan.java A descending range scan. It is positioned on the
+ * right-most entry <= the high key by BTreeFile.findRunEnd and walks the leaf
+ * chain to the left through the prev-page links until it passes the low key.
+ * The rids of a posting list are returned from the last to the first.
+ */
+public class BTReverseFileScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	String treeFilename; // B+ tree we're scanning
+	BTLeafPage leafPage; // leaf page containing current record, pinned
+	RID curRid; // position in current leaf
+	boolean didfirst; // false only before get_next is called
+	boolean dirty; // current leaf was changed by delete_current
+	KeyClass startkey; // smallest key to return, null for no bound
+	int keyType;
+	KeyComparator keyOrder;
+	int maxKeysize;
+	boolean postings; // the index keeps posting lists
+
+	private List<RID> posting; // rids of the list being returned, or null
+	private int postingIndex; // next of them to return
+	private PageId postingHead;
+	private KeyClass postingKey;
+	private RID current; // rid last returned from a list, else null
+
+	/**
+	 * Iterate once (during a scan), from the high key down.
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (true) {
+				if (posting != null) {
+					if (postingIndex >= 0) {
+						current = posting.get(postingIndex--);
+						return new KeyDataEntry(postingKey, current);
+					}
+					posting = null;
+					current = null;
+				}
+
+				KeyDataEntry entry = nextEntry();
+				if (entry == null || !postings || !PostingList.isPosting(entry))
+					return entry;
+				postingKey = entry.key;
+				postingHead = PostingList.head(entry);
+				posting = PostingList.rids(postingHead);
+				postingIndex = posting.size() - 1;
+			}
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	private KeyDataEntry nextEntry() throws ScanIteratorException {
+		KeyDataEntry entry;
+
+		if (leafPage == null)
+			return null;
+
+		try {
+			if (!didfirst) {
+				didfirst = true;
+				entry = CoveringData.entry(leafPage.getpage(), curRid.slotNo,
+						keyType);
+			} else {
+				curRid.slotNo--;
+				while (curRid.slotNo < 0) {
+					// have to go left
+					PageId prevpage = leafPage.getPrevPage();
+					SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+					dirty = false;
+					if (prevpage.pid == INVALID_PAGE) {
+						leafPage = null;
+						return null;
+					}
+					leafPage = new BTLeafPage(prevpage, keyType);
+					curRid.pageNo = leafPage.getCurPage();
+					curRid.slotNo = leafPage.getSlotCnt() - 1;
+				}
+				entry = CoveringData.entry(leafPage.getpage(), curRid.slotNo,
+						keyType);
+			}
+
+			if (startkey != null && keyOrder.keyCompare(entry.key, startkey) < 0) {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+				dirty = false;
+				leafPage = null;
+				return null;
+			}
+
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		try {
+			if (current != null) {
+				PostingList.remove(bfile, postingHead, current);
+				current = null;
+				return;
+			}
+			if (leafPage == null || !didfirst) {
+				System.out.println("No Record to delete!");
+				throw new ScanDeleteException();
+			}
+
+			// the entries left of the current one keep their slots, so the
+			// next get_next() still lands on slotNo - 1
+			leafPage.deleteSortedRecord(curRid);
+			dirty = true;
+		} catch (ScanDeleteException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), dirty);
+		}
+		leafPage = null;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * @(#) BTSnapshotScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTSnapshotScan.java A read-only range scan that sees the tree as it was
+ * when the scan was created, whatever is inserted or deleted while it runs.
+ * It reads the pages of a VersionedBufMgr snapshot: the root as of the
+ * creation, and every index and leaf page either from the version kept for
+ * it or, if it has not been written since, from a copy of the page. No page
+ * stays pinned between calls, so writers go on as usual. Posting lists are
+ * read from the snapshot too.
+ */
+public class BTSnapshotScan extends IndexFileScan implements GlobalConst {
+
+	private final VersionedBufMgr.Snapshot snapshot;
+	private final int rootId;
+	private final int keyType;
+	private final KeyComparator keyOrder;
+	private final int maxKeysize;
+	private final boolean postings; // the index keeps posting lists
+	private final KeyClass startkey; // null for no bound
+	private final KeyClass endkey; // null for no bound
+
+	private byte[] leaf; // copy of the current leaf, null when done
+	private int slot; // next slot to return from leaf
+	private boolean started;
+	private PostingList.Reader posting; // list being returned, or null
+	private KeyClass postingKey;
+
+	BTSnapshotScan(BTreeFile bfile, KeyClass lo_key, KeyClass hi_key)
+			throws IOException, ConstructPageException {
+		if (!(SystemDefs.JavabaseBM instanceof VersionedBufMgr))
+			throw new ConstructPageException(null,
+					"snapshot scans need a VersionedBufMgr");
+
+		BTreeHeaderPage header = bfile.getHeaderPage();
+		this.keyType = header.get_keyType();
+		this.keyOrder = KeyComparator.of(keyType);
+		this.maxKeysize = header.get_maxKeySize();
+		this.postings = bfile.postingLists();
+		this.startkey = lo_key;
+		this.endkey = hi_key;
+		synchronized (LeafCopyCursor.bmLock()) {
+			this.snapshot = ((VersionedBufMgr) SystemDefs.JavabaseBM)
+					.openSnapshot();
+			this.rootId = header.get_rootId().pid;
+		}
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (!started) {
+				started = true;
+				leaf = rootId == INVALID_PAGE ? null : findLeaf();
+				slot = 0;
+			}
+
+			while (leaf != null) {
+				if (posting != null) {
+					RID rid = posting.next();
+					if (rid != null)
+						return new KeyDataEntry(postingKey, rid);
+					posting = null;
+				}
+
+				if (slot >= RawPage.slotCount(leaf)) {
+					int next = RawPage.nextPage(leaf);
+					leaf = next == INVALID_PAGE ? null : snapshot
+							.page(new PageId(next));
+					slot = 0;
+					continue;
+				}
+
+				KeyDataEntry entry = CoveringData.entry(leaf, slot, keyType);
+				slot++;
+				if (startkey != null && keyOrder.keyCompare(entry.key, startkey) < 0)
+					continue;
+				if (endkey != null && keyOrder.keyCompare(entry.key, endkey) > 0) {
+					close();
+					return null;
+				}
+				if (postings && PostingList.isPosting(entry)) {
+					postingKey = entry.key;
+					posting = new PostingList.Reader(PostingList.head(entry),
+							snapshot);
+					continue;
+				}
+				return entry;
+			}
+			close();
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/*
+	 * Descend from the root to the left-most leaf that may hold the low key.
+	 * Duplicates of a separator may lie left of it, so the descent goes left
+	 * of every separator equal to the low key.
+	 */
+	private byte[] findLeaf() throws ConstructPageException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		byte[] page = snapshot.page(new PageId(rootId));
+		while (RawPage.type(page) == NodeType.INDEX) {
+			int child = RawPage.prevPage(page); // left link
+			if (startkey != null) {
+				for (int i = 0; i < RawPage.slotCount(page); i++) {
+					KeyDataEntry entry = BT.getEntryFromBytes(page,
+							RawPage.slotOffset(page, i),
+							RawPage.slotLength(page, i), keyType, NodeType.INDEX);
+					if (keyOrder.keyCompare(entry.key, startkey) >= 0)
+						break;
+					child = ((IndexData) entry.data).getData().pid;
+				}
+			}
+			page = snapshot.page(new PageId(child));
+		}
+		return page;
+	}
+
+	/**
+	 * A snapshot scan is read-only.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null, "snapshot scans are read-only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. Close the snapshot and drop the page versions kept for it.
+	 * Called by get_next at the end of the range.
+	 */
+	public void DestroyBTreeFileScan() {
+		close();
+	}
+
+	private void close() {
+		leaf = null;
+		snapshot.close();
+	}
+}
@@ -8,6 +8,8 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
+import java.util.stream.*;
 
 import org.w3c.dom.Attr;
 
@@ -26,6 +28,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static String lineSep = System.getProperty("line.separator");
 
+	/* what insertEntry does with a key already in the tree */
+	private final static int INSERT = 0; // add another entry
+	private final static int IF_ABSENT = 1; // add nothing
+	private final static int UPSERT = 2; // give the entry the new rid
+
+	private final static int BUILD_RESERVE = MINIBASE_PAGESIZE / 10; // bytes buildFrom leaves free per page
+
 	private static FileOutputStream fos;
 	private static DataOutputStream trace;
 
@@ -63,6 +72,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private BloomFilter bloom; // filter of the index once loaded, else null
+	private PageId staleBloomPage; // saved filter to free on close, or null
+	private ExtentMap extents; // extent map once loaded, else null
+	private TreeMap<KeyClass, List<RID>> writeBuffer; // inserts not yet in the tree, null if none
+	private int buffered; // number of RIDs in writeBuffer
+	private boolean applying; // writeBuffer is being applied
+	private KeyComparator keyOrder; // order of the keys of the index
 
 	/**
 	 * Access method to data member.
@@ -162,6 +178,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		headerPageId = get_file_entry(filename);
 
 		headerPage = new BTreeHeaderPage(headerPageId);
+		checkNotAppendOnly(filename);
+		bindKeyOrder();
 		dbname = new String(filename);
 		/*
 		 * 
@@ -208,16 +226,54 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			BTreeHeaderExt.init(headerPage);
+			BTreeHeaderExt.set(headerPage, BTreeHeaderExt.EXTENT_MAP,
+					ExtentMap.create().getFirstPage().pid);
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
+			checkNotAppendOnly(filename);
 		}
+		bindKeyOrder();
 
 		dbname = new String(filename);
 
 	}
 
+	/*
+	 * Bind the comparator of the key type of the index, which its searches
+	 * and splits compare keys with.
+	 */
+	private void bindKeyOrder() throws ConstructPageException {
+		try {
+			keyOrder = KeyComparator.of(headerPage.get_keyType());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * An AppendOnlyBTreeFile must not be changed in place: refuse to open it.
+	 */
+	private void checkNotAppendOnly(String filename)
+			throws ConstructPageException {
+		try {
+			if (BTreeHeaderExt.get(headerPage, BTreeHeaderExt.APPEND_ONLY) == 0)
+				return;
+			unpinPage(headerPageId);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+		headerPage = null;
+		throw new ConstructPageException(null, filename
+				+ " is an append-only B+ tree");
+	}
+
 	/**
-	 * Close the B+ tree file. Unpin header page.
+	 * Close the B+ tree file. Apply the held inserts, then unpin header
+	 * page. If the held inserts cannot be applied, the file stays open with
+	 * the inserts still held, so close() may be called again.
 	 *
 	 * @exception PageUnpinnedException
 	 *                error from the lower layer
@@ -227,11 +283,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 * @exception ReplacerException
 	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                the held inserts could not be applied
 	 */
 	public void close() throws PageUnpinnedException,
 			InvalidFrameNumberException, HashEntryNotFoundException,
-			ReplacerException {
+			ReplacerException, IteratorException {
 		if (headerPage != null) {
+			applyWriteBuffer();
+			saveBloomFilter();
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
@@ -258,10 +318,47 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void destroyFile() throws IOException, IteratorException,
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
+		destroyFile(false);
+	}
+
+	/**
+	 * Destroy entire B+ tree file. An index that takes its pages from an
+	 * extent map is freed extent by extent without reading its pages; with
+	 * lazily set its extents are only queued, and are released a few at a
+	 * time as other indexes need new extents, or by reclaimDroppedPages().
+	 * An index without an extent map is always freed at once, page by page.
+	 *
+	 * @param lazily
+	 *            leave releasing the extents for later. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile(boolean lazily) throws IOException,
+			IteratorException, UnpinPageException, FreePageException,
+			DeleteFileEntryException, ConstructPageException, PinPageException {
 		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
+			dropWriteBuffer();
+			freeTree(lazily);
+			int bloomPage = BTreeHeaderExt.get(headerPage,
+					BTreeHeaderExt.BLOOM_PAGE);
+			if (bloomPage != INVALID_PAGE)
+				BloomFilter.free(new PageId(bloomPage));
+			if (staleBloomPage != null)
+				BloomFilter.free(staleBloomPage);
+			staleBloomPage = null;
+			bloom = null;
 			unpinPage(headerPageId);
 			freePage(headerPageId);
 			delete_file_entry(dbname);
@@ -269,6 +366,71 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	/**
+	 * Remove all entries, keeping the file. The pages are freed as by
+	 * destroyFile(lazily), and the emptied index takes its pages from a new
+	 * extent map from then on, also if it had none before.
+	 *
+	 * @param lazily
+	 *            leave releasing the extents for later. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void truncate(boolean lazily) throws IOException,
+			IteratorException, KeyNotMatchException, UnpinPageException,
+			FreePageException, ConstructPageException, PinPageException {
+		dropWriteBuffer();
+		freeTree(lazily);
+		extents = ExtentMap.create();
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.EXTENT_MAP,
+				extents.getFirstPage().pid);
+		updateHeader(new PageId(INVALID_PAGE));
+		rebuildBloomFilter();
+	}
+
+	/**
+	 * Release the extents of all indexes destroyed or truncated lazily that
+	 * are not released yet.
+	 *
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public static void reclaimDroppedPages() throws FreePageException {
+		ExtentMap.reclaim(Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Free all pages of the tree, through its extent map if it has one.
+	 */
+	private void freeTree(boolean lazily) throws IOException,
+			IteratorException, PinPageException, ConstructPageException,
+			UnpinPageException, FreePageException {
+		if (extents() != null) {
+			if (lazily)
+				extents.drop();
+			else
+				extents.destroy();
+			extents = null;
+			return;
+		}
+
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid != INVALID_PAGE)
+			_destroyFile(rootId);
+	}
+
 	private void _destroyFile(PageId pageno) throws IOException,
 			IteratorException, PinPageException, ConstructPageException,
 			UnpinPageException, FreePageException {
@@ -283,17 +445,139 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			RID rid = new RID();
 			PageId childId;
 			KeyDataEntry entry;
+			_destroyFile(indexPage.getLeftLink());
 			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
 					.getNext(rid)) {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
-		} else { // BTLeafPage
+			if (indexPage.getNextPage().pid != INVALID_PAGE)
+				freeTreePage(indexPage.getNextPage());
+		} else {
+			BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+			boolean postings = postingLists();
+			RID rid = new RID();
+			for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage
+					.getNext(rid))
+				if (postings && PostingList.isPosting(entry))
+					PostingList.free(this, PostingList.head(entry));
+		}
 
-			unpinPage(pageno);
-			freePage(pageno);
+		unpinPage(pageno);
+		freeTreePage(pageno);
+
+	}
+
+	/*
+	 * The extent map of the index, or null if the index takes its pages from
+	 * the buffer manager one at a time.
+	 */
+	private ExtentMap extents() throws IOException, PinPageException,
+			UnpinPageException {
+		if (extents == null) {
+			int first = BTreeHeaderExt.get(headerPage,
+					BTreeHeaderExt.EXTENT_MAP);
+			if (first != INVALID_PAGE)
+				extents = ExtentMap.open(new PageId(first));
+		}
+		return extents;
+	}
+
+	/*
+	 * Pin a new page of the given ExtentMap kind into page, taken as close
+	 * after near as the extent map allows. Returns null, pinning nothing, if
+	 * the index has no extent map.
+	 */
+	private PageId newTreePage(int kind, PageId near, Page page)
+			throws ConstructPageException {
+		try {
+			if (extents() == null)
+				return null;
+			PageId pageno = extents.allocate(kind, near);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true/* new page */);
+			return pageno;
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
+	private BTLeafPage newLeafPage(PageId near) throws IOException,
+			ConstructPageException {
+		Page page = new Page();
+		PageId pageno = newTreePage(ExtentMap.LEAF, near, page);
+		if (pageno == null)
+			return new BTLeafPage(headerPage.get_keyType());
+
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		leafPage.init(pageno, page);
+		leafPage.setType(NodeType.LEAF);
+		return leafPage;
+	}
+
+	private BTIndexPage newIndexPage(PageId near) throws IOException,
+			ConstructPageException {
+		Page page = new Page();
+		PageId pageno = newTreePage(ExtentMap.INDEX, near, page);
+		if (pageno == null)
+			return new BTIndexPage(headerPage.get_keyType());
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		indexPage.init(pageno, page);
+		indexPage.setType(NodeType.INDEX);
+		return indexPage;
+	}
+
+	private CountPage newCountPage(PageId near) throws ConstructPageException {
+		Page page = new Page();
+		PageId pageno = newTreePage(ExtentMap.INDEX, near, page);
+		if (pageno == null)
+			return CountPage.create();
+		return CountPage.create(pageno, page);
+	}
+
+	/*
+	 * Pin a new page for a posting list into page, taken from the extent map
+	 * if the index has one.
+	 */
+	PageId newPostingPage(PageId near, Page page) throws ConstructPageException {
+		PageId pageno = newTreePage(ExtentMap.LEAF, near, page);
+		if (pageno != null)
+			return pageno;
+		try {
+			pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+		if (pageno == null)
+			throw new ConstructPageException(null, "new page failed");
+		return pageno;
+	}
+
+	void freePostingPage(PageId pageno) throws FreePageException {
+		try {
+			freeTreePage(pageno);
+		} catch (FreePageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
 		}
+	}
 
+	/*
+	 * Give a page of the tree back to the extent map, or to the buffer
+	 * manager if the index has none.
+	 */
+	private void freeTreePage(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException, FreePageException {
+		if (extents() != null)
+			extents.free(pageno);
+		else
+			freePage(pageno);
 	}
 
 	private void updateHeader(PageId newRoot) throws IOException,
@@ -316,7 +600,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	/**
-	 * insert record with the given key and rid
+	 * insert record with the given key and rid. A unique index refuses a key
+	 * it already holds with a DuplicateKeyException.
 	 *
 	 * @param key
 	 *            the key of the record. Input parameter.
@@ -351,7 +636,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception LeafDeleteException
 	 *                error when delete in leaf page
 	 * @exception InsertException
-	 *                error when insert in index page
+	 *                the rid has slot -1, error when insert in index page, or
+	 *                DuplicateKeyException
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
@@ -362,477 +648,1115 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IOException
 
 	{
-		
-		PageId Temp_RootPageNo = headerPage.get_rootId();
-
-		PageId temp_inv_page = new PageId(INVALID_PAGE);
-
-		if (Temp_RootPageNo.pid == INVALID_PAGE) /*
-													 * If no Entry Exists in the
-													 * tree i.e. the tree is
-													 * empty
-													 */
-		{
-
-			BTLeafPage FirstRootPage = new BTLeafPage(
-					AttrType.attrInteger); /* Create a new Leaf Page */
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		checkRid(rid);
 
-			pinPage(FirstRootPage.getCurPage()); /* Pin the page */
+		if (bufferInsert(key, rid) || postingInsert(key, rid))
+			return;
 
-			FirstRootPage.insertRecord(key, rid); /* insert the key */
-
-			unpinPage(FirstRootPage.getCurPage(), true); /* Unpin the page */
-
-			updateHeader(FirstRootPage
-					.getCurPage()); /*
-									 * Update the header , i.e make the leaf
-									 * page = root of the tree
-									 */
-
-			FirstRootPage.setNextPage(
-					temp_inv_page); /*
-									 * Set the next and previous page to Invalid
-									 * Pages as single page exists
-									 */
-			FirstRootPage.setPrevPage(temp_inv_page);
-
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + FirstRootPage.getCurPage() + lineSep);
-				trace.flush();
-			}
-
-		}
-
-		else { /*
-				 * Else if tree is not empty, Call _insert method to insert the
-				 * entry at its correct place
-				 */
-
-			try {
-				KeyDataEntry UpEntry = _insert(Integer.parseInt(key.toString()), rid, Temp_RootPageNo);
-			} catch (NumberFormatException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (InsertRecException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IndexFullDeleteException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		if (!insertEntry(key, rid, null, unique() ? IF_ABSENT : INSERT,
+				new RID(new PageId(INVALID_PAGE), 0)))
+			throw new DuplicateKeyException(null, "key is already in the index");
+	}
 
+	/**
+	 * insert record with the given key and rid, keeping the given included
+	 * values in its leaf entry. Scans of the index return them as the
+	 * CoveringData of the entry. The index must have been given room for
+	 * them with setIncludedLength.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @param included
+	 *            the included values, null or empty for none. Input
+	 *            parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                included values longer than the index allows, the rid
+	 *                has slot -1, error when insert in index page, or
+	 *                DuplicateKeyException
+	 */
+	public void insert(KeyClass key, RID rid, byte[] included)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		if (included == null || included.length == 0) {
+			insert(key, rid);
+			return;
 		}
-		
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		if (included.length > includedLength())
+			throw new InsertException(null, "included values longer than "
+					+ includedLength() + " bytes");
+		checkRid(rid);
+
+		applyWriteBuffer(key);
+		if (!insertEntry(key, rid, included.clone(), unique() ? IF_ABSENT
+				: INSERT, new RID(new PageId(INVALID_PAGE), 0)))
+			throw new DuplicateKeyException(null, "key is already in the index");
 	}
 
-	private KeyDataEntry _insert(int key, RID rid, PageId currentPageId)  // Assuming the key is an Integer value
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException, InsertRecException, IndexFullDeleteException
-
-	{
-		Page temp_page = new Page();
-
-		PageId temp_inv_page = new PageId(INVALID_PAGE);
-
-		temp_page = pinPage(currentPageId);
-		
-		final RID data_rid=rid;//new RID();
-		
-		//data_rid=rid;
-
-		BTSortedPage temp_sorted_page = new BTSortedPage(temp_page,
-				AttrType.attrInteger); /*
-										 * Create an instance of BTSorted Page to
-										 * check the type of page
-										 */
-
-		KeyDataEntry UpEntry = null; /* UpEntry that a page gets */
-
-		KeyDataEntry idx_UpEntry = null; /* UpEntry that a page returns */
-
-		if (temp_sorted_page
-				.getType() == NodeType.INDEX) { /*
-												 * If the node type is Index -
-												 * Call _insert again on next
-												 * routed page
-												 */
-			BTIndexPage currentindexpage = new BTIndexPage(temp_page, AttrType.attrInteger);
-
-			PageId curr_index_page_id = currentindexpage
-					.getCurPage(); /* Get the Current Index Entry Page No */
-
-			PageId temp_next_page = currentindexpage.getPageNoByKey(new IntegerKey(
-					key)); /* Scroll to the Correct child using the Key */
-
-			BTSortedPage temp_sort_next_page = new BTSortedPage(temp_next_page,
-					AttrType.attrInteger); /*
-											 * Initialize an instance of next
-											 * page
-											 */
-
-			UpEntry = _insert(key, rid,
-					temp_next_page); /* Call _insert on the Child Page */
-
-			PageId temp_next_page_2 = currentindexpage.getPageNoByKey(new IntegerKey(key));
-
-			if (UpEntry != null) { /*
-									 * If Up Entry is not null - Implies Split is
-									 * there
-									 */
-				if (currentindexpage.available_space() > BT.getKeyDataLength(new IntegerKey(key),
-						NodeType.INDEX)) { /*
-											 * If Space is there in the existing
-											 * page - Insert the value and
-											 * return null
-											 */
-					pinPage(currentindexpage.getCurPage());
-
-					currentindexpage.insertKey(UpEntry.key, temp_sort_next_page
-							.getNextPage()); /*
-												 * Insert the value in the index
-												 * page and return null
-												 */
-
-					unpinPage(currentindexpage.getCurPage(),
-							true); /* unpin the page */
+	/**
+	 * Insert the record if the index holds no entry with its key, in the one
+	 * descent of the insert.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if inserted, false if the key is in the index
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                the rid has slot -1, or error when insert in index page
+	 */
+	public boolean insertIfAbsent(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		checkRid(rid);
+
+		applyWriteBuffer(key);
+		return insertEntry(key, rid, null, IF_ABSENT, new RID(new PageId(
+				INVALID_PAGE), 0));
+	}
 
-					if (trace != null) {
-						trace.writeBytes("VISIT node " + currentindexpage.getCurPage() + lineSep);
-						trace.flush();
-					}
-				}
-
-				else /*
-						 * Else if Space is not there in the Index Page - Index
-						 * Page needs to be Split
-						 */
-				{
-					BTIndexPage Split_indexpage = new BTIndexPage(
-							AttrType.attrInteger); /* Create a new index page */
-
-					Page temp_page_idx = pinPage(Split_indexpage.getCurPage());
+	/**
+	 * Insert the record, or if the index holds an entry with its key give
+	 * that entry the new rid, in the one descent of the insert. With more
+	 * than one entry of the key, only one of them is changed; for a posting
+	 * list its first rid is replaced. A changed entry keeps its included
+	 * values.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return the rid the entry had, null if the key was not in the index
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                the rid has slot -1, or error when insert in index page
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public RID upsert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			FreePageException, IOException {
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		checkRid(rid);
+
+		applyWriteBuffer(key);
+		RID found = new RID(new PageId(INVALID_PAGE), 0);
+		if (insertEntry(key, rid, null, UPSERT, found))
+			return null;
+		if (!postingLists() || !PostingList.isPosting(found))
+			return found;
+
+		PageId head = new PageId(found.pageNo.pid);
+		RID first = new PostingList.Reader(head, null).next();
+		PostingList.remove(this, head, first);
+		PostingList.add(this, head, rid);
+		return first;
+	}
 
-					RID idx_del_rid = new RID(); /*
-													 * Create an instance of RID
-													 * class
-													 */
+	/**
+	 * Build the index over a heap file, taking the key of each record from
+	 * one of its fields. The entries are sorted by HeapKeySort, which
+	 * extracts the keys and sorts and merges the runs on the common
+	 * fork-join pool, and the leaves are then written left to right, leaving
+	 * a tenth of each page free for later inserts, with the index levels
+	 * built bottom up above them. This is much faster than inserting the
+	 * records one by one and gives full, sequentially allocated leaves. The
+	 * index must be empty. Posting lists, subtree counts, the Bloom filter
+	 * and the unique flag are kept as set.
+	 *
+	 * @param heapfile
+	 *            the records to index. Input parameter.
+	 * @param fieldNo
+	 *            the field holding the key, from 1; an integer field for an
+	 *            integer key index, else a string field. Input parameter.
+	 * @exception FieldNumberOutOfBoundException
+	 *                a record has no such field
+	 * @exception KeyTooLongException
+	 *                a key exceeds the max keysize
+	 * @exception InsertException
+	 *                the index is not empty, the build failed, or
+	 *                DuplicateKeyException for a unique index
+	 * @exception IteratorException
+	 *                the write buffer could not be applied
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void buildFrom(Heapfile heapfile, int fieldNo)
+			throws FieldNumberOutOfBoundException, KeyTooLongException,
+			InsertException, IteratorException, IOException {
+		applyWriteBuffer();
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "the index is not empty");
+		if (fieldNo < 1)
+			throw new FieldNumberOutOfBoundException(null, "field " + fieldNo);
+
+		HeapKeySort sort = new HeapKeySort(headerPage.get_keyType(), fieldNo);
+		List<PageId> built = new ArrayList<PageId>(); // pages to free on failure
+		List<PageId> postings = new ArrayList<PageId>();
+		boolean done = false;
+		try {
+			sort.sort(heapfile);
+			List<KeyDataEntry> level = new ArrayList<KeyDataEntry>();
+			List<Integer> counts = new ArrayList<Integer>();
+			buildLeaves(sort, level, counts, built, postings);
+			while (level.size() > 1)
+				level = buildIndexLevel(level, counts, built);
+			if (!level.isEmpty())
+				updateHeader(((IndexData) level.get(0).data).getData());
+			done = true;
+		} catch (FieldNumberOutOfBoundException e) {
+			throw e;
+		} catch (KeyTooLongException e) {
+			throw e;
+		} catch (DuplicateKeyException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "index build failed");
+		} finally {
+			sort.close();
+			if (!done)
+				freeBuilt(built, postings);
+		}
 
-					KeyDataEntry idx_temp_key = currentindexpage.getFirst(idx_del_rid);
+		try {
+			if (bloomFilter())
+				rebuildBloomFilter();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "index build failed");
+		}
+	}
 
-					int idx_count = 1;
+	/*
+	 * Free the pages of a build that failed.
+	 */
+	private void freeBuilt(List<PageId> built, List<PageId> postings) {
+		try {
+			for (PageId head : postings)
+				PostingList.free(this, head);
+			for (PageId pageno : built)
+				freeTreePage(pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-					int idx_split_point = 1;
+	/*
+	 * Write the sorted entries into new linked leaves, filling each up to
+	 * BUILD_RESERVE bytes. For each leaf, level receives <first key, page>
+	 * and counts its number of entries. Keys with at least the posting list
+	 * threshold of entries are written as one posting list entry.
+	 */
+	private void buildLeaves(HeapKeySort sort, List<KeyDataEntry> level,
+			List<Integer> counts, List<PageId> built, List<PageId> postings)
+			throws Exception {
+		int maxKeySize = headerPage.get_maxKeySize();
+		int threshold = BTreeHeaderExt.get(headerPage,
+				BTreeHeaderExt.POSTING_LISTS);
+		boolean unique = unique();
+
+		BTLeafPage leafPage = null;
+		try {
+			KeyClass groupKey = null; // key of the entries in group
+			List<RID> group = new ArrayList<RID>();
+			KeyDataEntry entry;
+			do {
+				entry = sort.next();
+				if (entry != null) {
+					if (BT.getKeyLength(entry.key) > maxKeySize)
+						throw new KeyTooLongException(null, "");
+					if (groupKey != null
+							&& keyOrder.keyCompare(groupKey, entry.key) == 0) {
+						if (unique)
+							throw new DuplicateKeyException(null,
+									"the heap file holds a key more than once");
+						group.add(((LeafData) entry.data).getData());
+						continue;
+					}
+				}
+				if (groupKey != null) { // write out the entries of groupKey
+					if (threshold > 0 && group.size() >= threshold) {
+						PageId head = PostingList.create(this, group,
+								leafPage == null ? null : leafPage.getCurPage());
+						postings.add(head);
+						group.clear();
+						group.add(PostingList.entryRid(head));
+					}
+					for (RID rid : group) {
+						int length = BT.getKeyDataLength(groupKey,
+								NodeType.LEAF);
+						if (leafPage == null
+								|| leafPage.available_space() - length < BUILD_RESERVE
+								&& leafPage.getSlotCnt() > 0) {
+							BTLeafPage next = newLeafPage(leafPage == null ? null
+									: leafPage.getCurPage());
+							built.add(next.getCurPage());
+							next.setNextPage(new PageId(INVALID_PAGE));
+							if (leafPage == null) {
+								next.setPrevPage(new PageId(INVALID_PAGE));
+							} else {
+								next.setPrevPage(leafPage.getCurPage());
+								leafPage.setNextPage(next.getCurPage());
+								unpinPage(leafPage.getCurPage(), true);
+							}
+							leafPage = next;
+							level.add(new KeyDataEntry(groupKey, leafPage
+									.getCurPage()));
+							counts.add(0);
+						}
+						insertLeafRecord(leafPage, groupKey, rid, null);
+						counts.set(counts.size() - 1,
+								counts.get(counts.size() - 1) + 1);
+					}
+				}
+				if (entry != null) {
+					groupKey = entry.key;
+					group.clear();
+					group.add(((LeafData) entry.data).getData());
+				}
+			} while (entry != null);
+		} finally {
+			if (leafPage != null)
+				unpinPage(leafPage.getCurPage(), true);
+		}
+	}
 
-					RID idx_del_rid_2 = new RID();
+	/*
+	 * Build the index pages above the pages of level, filling each up to
+	 * BUILD_RESERVE bytes, and give them count pages if the index keeps
+	 * subtree counts. counts holds the entries below each page of level and
+	 * is replaced by those of the new level. Returns the new level.
+	 */
+	private List<KeyDataEntry> buildIndexLevel(List<KeyDataEntry> level,
+			List<Integer> counts, List<PageId> built) throws Exception {
+		boolean keepCounts = subtreeCounts();
+		List<KeyDataEntry> upper = new ArrayList<KeyDataEntry>();
+		List<Integer> upperCounts = new ArrayList<Integer>();
+
+		int i = 0;
+		while (i < level.size()) {
+			BTIndexPage indexPage = newIndexPage(((IndexData) level.get(i).data)
+					.getData());
+			PageId indexId = indexPage.getCurPage();
+			built.add(new PageId(indexId.pid));
+			CountPage countPage = null;
+			if (keepCounts) {
+				countPage = newCountPage(indexId);
+				built.add(new PageId(countPage.getPageId().pid));
+				indexPage.setNextPage(countPage.getPageId());
+			}
 
-					idx_count = (currentindexpage.getSlotCnt() + 1) / 2;
+			int first = i;
+			int below = 0;
+			for (; i < level.size(); i++) {
+				KeyDataEntry child = level.get(i);
+				PageId childId = ((IndexData) child.data).getData();
+				if (i > first) {
+					int length = BT.getKeyDataLength(child.key, NodeType.INDEX);
+					boolean last = i == level.size() - 1;
+					// the last child goes here rather than alone on a new page
+					if (indexPage.available_space() < length
+							|| !last
+							&& indexPage.available_space() - length < BUILD_RESERVE
+							|| countPage != null && i - first == CountPage.CAPACITY)
+						break;
+					insertIndexRecord(indexPage, child.key, childId);
+				} else {
+					indexPage.setLeftLink(childId);
+				}
+				if (countPage != null)
+					countPage.set(childId, counts.get(i));
+				below += counts.get(i);
+			}
 
-					KeyDataEntry idx_split_temp_key = currentindexpage.getFirst(
-							idx_del_rid); /*
-											 * creating a key data entry to
-											 * navigate the index tree
-											 */
+			if (countPage != null)
+				countPage.unpin(true);
+			upper.add(new KeyDataEntry(level.get(first).key, indexId));
+			upperCounts.add(below);
+			unpinPage(indexId, true);
+		}
 
-					while (idx_split_point < currentindexpage
-							.getSlotCnt()) { /*
-												 * Insertion into the new index
-												 * page after the split
-												 */
-						if (idx_split_point > idx_count + 1) {
-							Split_indexpage.insertKey(idx_split_temp_key.key,
-									currentindexpage.getPageNoByKey(idx_split_temp_key.key));
-							idx_split_temp_key = currentindexpage.getNext(idx_del_rid);
-						} else
-							idx_split_temp_key = currentindexpage.getNext(idx_del_rid);
+		counts.clear();
+		counts.addAll(upperCounts);
+		return upper;
+	}
 
-						if (idx_split_point == idx_count) {
-							idx_UpEntry = idx_split_temp_key;
+	/**
+	 * Give the entries of the index room for included values of up to
+	 * maxLength bytes, or, with 0, stop taking them. Entries inserted
+	 * before keep the values they have. An index with included values keeps
+	 * no posting lists, whose rids have no room for them.
+	 *
+	 * @param maxLength
+	 *            the most bytes of included values an entry takes. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                the index keeps posting lists, or the entries would not
+	 *                fit four to a page
+	 */
+	public void setIncludedLength(int maxLength) throws IOException,
+			KeyNotMatchException, ConstructPageException {
+		if (maxLength > 0 && postingLists())
+			throw new ConstructPageException(null,
+					"posting lists keep no included values");
+		if (maxLength > 0
+				&& 4 * (headerPage.get_maxKeySize() + 8 + maxLength + HFPage.SIZE_OF_SLOT) > MINIBASE_PAGESIZE
+						- HFPage.DPFIXED)
+			throw new ConstructPageException(null, "included values of "
+					+ maxLength + " bytes do not fit four entries to a page");
+
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.INCLUDED,
+				Math.max(maxLength, 0));
+	}
 
-							idx_del_rid_2 = idx_del_rid;
-						}
+	private int includedLength() throws IOException {
+		return BTreeHeaderExt.get(headerPage, BTreeHeaderExt.INCLUDED);
+	}
 
-						idx_split_point++;
-					}
+	/**
+	 * Make insert refuse keys the index already holds, or allow duplicates
+	 * again. The check is made in the leaf the insert descends to, so it
+	 * costs no extra descent. Turning it on fails if the index holds a key
+	 * more than once. A unique index keeps no posting lists and does not
+	 * hold inserts back in a write buffer.
+	 *
+	 * @param unique
+	 *            true to refuse duplicates. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                the index keeps posting lists
+	 * @exception DuplicateKeyException
+	 *                the index holds a key more than once
+	 */
+	public void setUnique(boolean unique) throws IOException,
+			IteratorException, ConstructPageException, DuplicateKeyException {
+		if (unique == unique())
+			return;
+		if (unique) {
+			if (postingLists())
+				throw new ConstructPageException(null,
+						"a unique index keeps no posting lists");
+			applyWriteBuffer();
+			if (hasDuplicateKeys())
+				throw new DuplicateKeyException(null,
+						"the index holds a key more than once");
+		}
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.UNIQUE, unique ? 1 : 0);
+	}
 
-					Split_indexpage.insertKey(UpEntry.key, temp_sort_next_page
-							.getNextPage()); /*
-												 * Inserting the Push Up/Copy Up
-												 * Entry
-												 */
-					Split_indexpage.setLeftLink(currentindexpage.getPageNoByKey(idx_UpEntry.key));
+	/*
+	 * true if some key has more than one entry.
+	 */
+	private boolean hasDuplicateKeys() throws IteratorException {
+		try {
+			BTFileScan scan = new_scan(null, null);
+			KeyClass prev = null;
+			boolean duplicate = false;
+			for (KeyDataEntry entry = scan.get_next(); entry != null
+					&& !duplicate; entry = scan.get_next()) {
+				duplicate = prev != null
+						&& keyOrder.keyCompare(prev, entry.key) == 0;
+				prev = entry.key;
+			}
+			scan.DestroyBTreeFileScan();
+			return duplicate;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
 
-					unpinPage(Split_indexpage.getCurPage(), true);
+	private boolean unique() throws IOException {
+		return BTreeHeaderExt.get(headerPage, BTreeHeaderExt.UNIQUE) != 0;
+	}
 
-					if (trace != null) {
-						trace.writeBytes("VISIT node " + Split_indexpage.getCurPage() + lineSep);
-						trace.flush();
-					}
+	/*
+	 * Insert <key, rid> into the tree as mode asks: INSERT always adds the
+	 * entry; IF_ABSENT and UPSERT look for an entry with the key in the leaf
+	 * the insert reaches, and if there is one set found to its rid and add
+	 * nothing, UPSERT giving the entry the new rid unless it points to a
+	 * posting list. Returns true if the entry was added.
+	 */
+	private boolean insertEntry(KeyClass key, RID rid, byte[] included,
+			int mode, RID found)
+			throws KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		PageId Temp_RootPageNo = headerPage.get_rootId();
 
-					int del_flag = 1;
+		if (Temp_RootPageNo.pid == INVALID_PAGE) /*
+													 * If no Entry Exists in the
+													 * tree i.e. the tree is
+													 * empty
+													 */
+		{
 
-					int total_idx_slots = currentindexpage.getSlotCnt();
+			BTLeafPage FirstRootPage = newLeafPage(null); /* Create a new Leaf Page, pinned */
 
-					KeyDataEntry idx_split_temp_key_2 = currentindexpage.getFirst(idx_del_rid_2);
+			FirstRootPage.setNextPage(new PageId(INVALID_PAGE)); /*
+																 * Set the next
+																 * and previous
+																 * page to
+																 * Invalid Pages
+																 * as single page
+																 * exists
+																 */
+			FirstRootPage.setPrevPage(new PageId(INVALID_PAGE));
 
-					if (currentindexpage.getCurPage().pid == headerPage
-							.get_rootId().pid) { /*
-													 * If Split happens at root -
-													 * Creating a new index page
-													 * and assigning it as root
-													 */
-						BTIndexPage temp_index_page = new BTIndexPage(AttrType.attrInteger);
+			insertLeafRecord(FirstRootPage, key, rid, included); /* insert the key */
 
-						pinPage(temp_index_page.getCurPage());
+			unpinPage(FirstRootPage.getCurPage(), true); /* Unpin the page */
 
-						temp_index_page.insertKey(idx_UpEntry.key, Split_indexpage.getCurPage());
+			updateHeader(FirstRootPage
+					.getCurPage()); /*
+									 * Update the header , i.e make the leaf
+									 * page = root of the tree
+									 */
 
-						unpinPage(temp_index_page.getCurPage(), true);
+			bloomAdd(key);
 
-						updateHeader(temp_index_page.getCurPage()); // Catch-
-																	// Correct
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + FirstRootPage.getCurPage() + lineSep);
+				trace.flush();
+			}
 
-						temp_index_page.setLeftLink(currentindexpage.getCurPage());
+			return true;
+		}
 
-						if (trace != null) {
-							trace.writeBytes("VISIT node " + temp_index_page.getCurPage() + lineSep);
-							trace.flush();
-						}
-					}
+		/*
+		 * Else if tree is not empty, Call _insert method to insert the entry at
+		 * its correct place
+		 */
+		KeyDataEntry UpEntry = _insert(key, rid, included, Temp_RootPageNo,
+				mode, found);
+		if (found.pageNo.pid != INVALID_PAGE)
+			return false;
+
+		bloomAdd(key);
+
+		if (UpEntry != null) { /*
+								 * The root was split - create a new index page
+								 * above both halves and make it the root
+								 */
+			BTIndexPage temp_index_page = newIndexPage(Temp_RootPageNo);
+
+			temp_index_page.setLeftLink(Temp_RootPageNo);
+
+			insertIndexRecord(temp_index_page, UpEntry.key,
+					((IndexData) UpEntry.data).getData());
+
+			if (subtreeCounts()) {
+				CountPage counts = newCountPage(temp_index_page.getCurPage());
+				counts.set(Temp_RootPageNo, subtreeCount(Temp_RootPageNo));
+				counts.set(((IndexData) UpEntry.data).getData(),
+						subtreeCount(((IndexData) UpEntry.data).getData()));
+				temp_index_page.setNextPage(counts.getPageId());
+				counts.unpin(true);
+			}
 
-					KeyDataEntry idx_split_temp_key_3;
+			unpinPage(temp_index_page.getCurPage(), true);
 
-					KeyClass del_key = null;
+			updateHeader(temp_index_page.getCurPage());
 
-					int i = 0;
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + temp_index_page.getCurPage() + lineSep);
+				trace.flush();
+			}
+		}
+		return true;
+	}
 
-					KeyDataEntry temp_arr[] = new KeyDataEntry[total_idx_slots];
+	/*
+	 * Insert <key, rid> below currentPageId. If the page had to be split, the
+	 * returned entry holds the first key of the new right sibling and, as
+	 * IndexData, the sibling's page id; the caller inserts it one level up.
+	 * Returns null if no split happened. Every page pinned here is unpinned
+	 * before returning. mode and found are those of insertEntry; found stays
+	 * at page INVALID_PAGE if the entry is added.
+	 */
+	private KeyDataEntry _insert(KeyClass key, RID rid, byte[] included,
+			PageId currentPageId, int mode, RID found)
+			throws PinPageException, IOException, ConstructPageException,
+			LeafDeleteException, DeleteRecException, IndexSearchException,
+			UnpinPageException, LeafInsertRecException, ConvertException,
+			IteratorException, IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException, InsertException
 
-					while (del_flag < total_idx_slots) { /*
-															 * Storing the values
-															 * to be deleted
-															 * from existing
-															 * split index page
-															 * after the split
-															 */
-						if (BT.keyCompare(idx_UpEntry.key, idx_split_temp_key_2.key) == 0)
-							del_key = idx_split_temp_key_2.key;
+	{
+		Page temp_page = pinPage(currentPageId);
 
-						if (BT.keyCompare(idx_UpEntry.key, idx_split_temp_key_2.key) <= 0) {
+		BTSortedPage temp_sorted_page = new BTSortedPage(temp_page,
+				headerPage.get_keyType()); /*
+											 * Create an instance of BTSorted
+											 * Page to check the type of page
+											 */
 
-							temp_arr[i] = currentindexpage.getNext(idx_del_rid_2);
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + currentPageId + lineSep);
+			trace.flush();
+		}
 
-							i++;
+		if (temp_sorted_page.getType() == NodeType.INDEX) { /*
+															 * If the node type
+															 * is Index - Call
+															 * _insert again on
+															 * next routed page
+															 */
+			BTIndexPage currentindexpage = new BTIndexPage(temp_page,
+					headerPage.get_keyType());
 
-						} else {
-							idx_split_temp_key_2 = currentindexpage.getNext(idx_del_rid_2);
-						}
+			RawKey raw = rawKey(key);
+			PageId temp_next_page = raw != null ? rawChild(
+					temp_page.getpage(), raw, true) : currentindexpage
+					.getPageNoByKey(key); /* Scroll to the Correct child using the Key */
 
-						del_flag++;
+			KeyDataEntry UpEntry = _insert(key, rid, included,
+					temp_next_page, mode, found); /* Call _insert on the Child Page */
 
-					}
+			if (found.pageNo.pid != INVALID_PAGE) { /* Nothing was added */
+				unpinPage(currentPageId);
+				return null;
+			}
 
-					for (int j = 0; j < i; j++) { /*
-													 * Deleting the values from
-													 * existing split index page
-													 * after the split
-													 */
-						currentindexpage.deleteKey(temp_arr[j].key);
-					}
+			CountPage counts = null;
+			if (subtreeCounts()) { /*
+									 * One more entry below the child; if it
+									 * split, the new sibling takes its share
+									 */
+				counts = CountPage.pin(currentindexpage.getNextPage());
+				int child_count = counts.get(temp_next_page) + 1;
+				if (UpEntry != null) {
+					PageId sibling = ((IndexData) UpEntry.data).getData();
+					int sibling_count = subtreeCount(sibling);
+					counts.set(sibling, sibling_count);
+					child_count -= sibling_count;
+				}
+				counts.set(temp_next_page, child_count);
+			}
 
-					currentindexpage.deleteKey(idx_UpEntry.key);
+			KeyDataEntry idx_UpEntry = null;
 
-					unpinPage(currentindexpage.getCurPage(), true);
+			if (UpEntry != null) { /*
+									 * If Up Entry is not null - Implies Split
+									 * is there
+									 */
+				if (currentindexpage.available_space() >= BT.getKeyDataLength(
+						UpEntry.key, NodeType.INDEX)) { /*
+														 * If Space is there in
+														 * the existing page -
+														 * Insert the value
+														 */
+					insertIndexRecord(currentindexpage, UpEntry.key,
+							((IndexData) UpEntry.data).getData());
+				} else { /*
+						 * Else if Space is not there in the Index Page - Index
+						 * Page needs to be Split
+						 */
+					idx_UpEntry = _splitIndex(currentindexpage, UpEntry, counts);
 				}
 			}
 
+			if (counts != null)
+				counts.unpin(true);
+
+			unpinPage(currentPageId, UpEntry != null);
+
 			return idx_UpEntry;
 		}
 
-		if (temp_sorted_page.getType() == NodeType.LEAF) { /*
-															 * If the node type
-															 * is of type Leaf
-															 */
-			BTLeafPage currentleafpage = new BTLeafPage(temp_page, AttrType.attrInteger);
+		/* Otherwise the node is of type Leaf */
+		BTLeafPage currentleafpage = new BTLeafPage(temp_page,
+				headerPage.get_keyType());
+
+		if (mode != INSERT) { /* Look for the key before adding it */
+			RID entryRid = findEntry(currentleafpage, key);
+			if (entryRid != null) {
+				RID old = entryRid(entryRid,
+						mode == UPSERT ? rid : null);
+				found.pageNo.pid = old.pageNo.pid;
+				found.slotNo = old.slotNo;
+				unpinPage(currentPageId);
+				return null;
+			}
+		}
 
-			PageId curr_leaf_page_id = currentleafpage.getCurPage();
+		KeyDataEntry UpEntry = null;
 
-			/*
-			 * If the space is available in the leaf page - directly insert the
-			 * value
-			 */
-			if (currentleafpage.available_space() > BT.getKeyDataLength(new IntegerKey(key), NodeType.LEAF))
+		/*
+		 * If the space is available in the leaf page - directly insert the
+		 * value
+		 */
+		if (currentleafpage.available_space() >= CoveringData.recordLength(
+				key, included)) {
+			insertLeafRecord(currentleafpage, key, rid, included);
+		} else { /*
+				 * Else if space is full - Split will happen at the leaf page
+				 */
+			UpEntry = _splitLeaf(currentleafpage, key, rid, included);
+		}
 
-			{
-				pinPage(currentleafpage.getCurPage());
+		unpinPage(currentPageId, true);
 
-				currentleafpage.insertRecord(new IntegerKey(key), rid);
+		return UpEntry;
+	}
 
-				unpinPage(currentleafpage.getCurPage(), true);
+	/*
+	 * The position of an entry with the given key on a pinned leaf, or on
+	 * the leaves left of it if every entry of the leaf has a greater key:
+	 * equal keys may be left of the separator an insert is routed by. null
+	 * if there is none.
+	 */
+	private RID findEntry(BTLeafPage leafPage, KeyClass key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		RawKey raw = rawKey(key);
+		if (raw != null) {
+			byte[] data = leafPage.getpage();
+			int slot = raw.search(data, false);
+			if (slot < RawPage.slotCount(data) && raw.matches(data, slot))
+				return new RID(leafPage.getCurPage(), slot);
+			return slot == 0 ? findEntryLeft(leafPage, key) : null;
+		}
 
-			} else { /*
-						 * Else if space is full - Split will happen at the leaf
-						 * page
-						 */
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage
+				.getNext(rid)) {
+			int cmp = keyOrder.keyCompare(entry.key, key);
+			if (cmp == 0)
+				return new RID(leafPage.getCurPage(), rid.slotNo);
+			if (cmp > 0)
+				return rid.slotNo == 0 ? findEntryLeft(leafPage, key) : null;
+		}
+		return leafPage.getSlotCnt() == 0 ? findEntryLeft(leafPage, key)
+				: null;
+	}
 
-				// System.out.println("No Space left for record to insert :
-				// Split will occur");
-				
-							
-				PageId curr_key_page=data_rid.pageNo;
-				
-				BTLeafPage split_new_leafpage = new BTLeafPage(
-						AttrType.attrInteger); /*
-												 * Create a new BTLeaf Page where
-												 * new entries will be copied
-												 */
+	private RID findEntryLeft(BTLeafPage leafPage, KeyClass key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageno = new PageId(leafPage.getPrevPage().pid);
+		while (pageno.pid != INVALID_PAGE) {
+			BTLeafPage prevLeaf = new BTLeafPage(pinPage(pageno),
+					headerPage.get_keyType());
+			int last = prevLeaf.getSlotCnt() - 1;
+			if (last >= 0) {
+				RID rid = new RID(pageno, last);
+				boolean equal = keyOrder.keyCompare(
+						prevLeaf.getCurrent(rid).key, key) == 0;
+				unpinPage(pageno);
+				return equal ? rid : null;
+			}
+			PageId prev = new PageId(prevLeaf.getPrevPage().pid);
+			unpinPage(pageno);
+			pageno = prev;
+		}
+		return null;
+	}
 
-				pinPage(split_new_leafpage.getCurPage());
+	/*
+	 * Read the rid of the leaf entry at the given position and, unless
+	 * newRid is null, replace it in place with newRid.
+	 *
+	 * @return the rid the entry had
+	 */
+	private RID entryRid(RID position, RID newRid) throws PinPageException,
+			UnpinPageException, IOException {
+		byte[] data = pinPage(position.pageNo).getpage();
+		int end = RawPage.slotOffset(data, position.slotNo)
+				+ RawPage.slotLength(data, position.slotNo);
+		RID old = new RID(new PageId(RawPage.getInt(data, end - 4)),
+				RawPage.getInt(data, end - 8));
+		if (newRid != null && !(postingLists() && PostingList.isPosting(old))) {
+			RawPage.setInt(newRid.slotNo, data, end - 8);
+			RawPage.setInt(newRid.pageNo.pid, data, end - 4);
+			unpinPage(position.pageNo, true);
+		} else {
+			unpinPage(position.pageNo);
+		}
+		return old;
+	}
 
-				/*
-				 * Set the pointers correctly to next and prev pages so that all
-				 * leaf pages behave as a doubly linked list
-				 */
+	/*
+	 * Split a full leaf page while inserting <key, rid>. The page keeps the
+	 * lower half of its entries plus the new one in sort order, a new leaf
+	 * linked in to its right gets the upper half. Returns the copy-up entry
+	 * <first key of the new leaf, new leaf page id>.
+	 */
+	private KeyDataEntry _splitLeaf(BTLeafPage currentleafpage, KeyClass key,
+			RID rid, byte[] included) throws IOException,
+			ConstructPageException, IteratorException, KeyNotMatchException,
+			DeleteRecException, LeafInsertRecException, PinPageException,
+			UnpinPageException, NodeNotMatchException {
 
-				split_new_leafpage.setPrevPage(curr_leaf_page_id);
+		PageId curr_leaf_page_id = currentleafpage.getCurPage();
 
-				split_new_leafpage.setNextPage(temp_inv_page);
+		/*
+		 * Create a new BTLeaf Page next to the old one where new entries will
+		 * be copied, pinned
+		 */
+		BTLeafPage split_new_leafpage = newLeafPage(curr_leaf_page_id);
 
-				currentleafpage.setNextPage(split_new_leafpage.getCurPage());
+		/*
+		 * Set the pointers correctly to next and prev pages so that all leaf
+		 * pages behave as a doubly linked list
+		 */
+		PageId old_next_page = currentleafpage.getNextPage();
 
-				KeyDataEntry temp_key = currentleafpage.getFirst(rid);
+		split_new_leafpage.setPrevPage(curr_leaf_page_id);
 
-				RID del_rid = new RID();
+		split_new_leafpage.setNextPage(old_next_page);
 
-				RID del_rid_2 = new RID();
+		if (old_next_page.pid != INVALID_PAGE) { /*
+												 * Old right neighbour now
+												 * points back to the new page
+												 */
+			BTLeafPage old_next_leafpage = new BTLeafPage(pinPage(old_next_page),
+					headerPage.get_keyType());
 
-				int count = 1, flag = 0, del_flag = 1;
+			old_next_leafpage.setPrevPage(split_new_leafpage.getCurPage());
 
-				del_rid_2 = rid;
+			unpinPage(old_next_page, true);
+		}
 
-				/* Calculating where the new key should go */
-				
-				while (count < currentleafpage.getSlotCnt() / 2) {
-					temp_key = currentleafpage.getNext(rid);
+		currentleafpage.setNextPage(split_new_leafpage.getCurPage());
 
-					if (count == currentleafpage.getSlotCnt() / 2 - 2) {
+		/* All entries of the page plus the new one, in key order */
+		List<KeyDataEntry> entries = takeEntries(currentleafpage);
+		KeyDataEntry new_entry = new KeyDataEntry(key, rid);
+		if (included != null) // the constructors copy the data to a LeafData
+			new_entry.data = new CoveringData(rid, included);
+		entries.add(insertPosition(entries, key, keyOrder), new_entry);
 
-						flag = BT.keyCompare(new IntegerKey(key), temp_key.key);
-						if (flag < 0) {
-							del_rid = rid;
-							break;
-						}
+		/*
+		 * Split in the middle of the bytes: with included values the records
+		 * differ in length
+		 */
+		int[] lengths = new int[entries.size()];
+		int total = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			KeyDataEntry entry = entries.get(i);
+			lengths[i] = CoveringData.recordLength(entry.key,
+					CoveringData.included(entry));
+			total += lengths[i];
+		}
+		int split_point = 0;
+		for (int below = 0; split_point < lengths.length - 1
+				&& 2 * (below + lengths[split_point]) <= total; split_point++)
+			below += lengths[split_point];
+		split_point = Math.max(split_point, 1);
+
+		for (int i = 0; i < entries.size(); i++) { /*
+													 * Lower half stays, upper
+													 * half goes to the new page
+													 */
+			KeyDataEntry entry = entries.get(i);
+			RID entry_rid = ((LeafData) entry.data).getData();
+			insertLeafRecord(i < split_point ? currentleafpage
+					: split_new_leafpage, entry.key, entry_rid, CoveringData
+					.included(entry));
+		}
 
-					}
+		KeyDataEntry UpEntry = new KeyDataEntry(entries.get(split_point).key,
+				split_new_leafpage.getCurPage()); /* Finding the copy up value */
 
-					count++;
+		unpinPage(split_new_leafpage.getCurPage(), true);
 
-					del_rid = rid;
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + split_new_leafpage.getCurPage() + lineSep);
+			trace.flush();
+		}
 
-				}
-				
-				
-				KeyDataEntry split_temp_key = currentleafpage.getCurrent(rid);
+		return UpEntry;
+	}
 
-				int split_point = 1;
+	/*
+	 * Split a full index page while inserting UpEntry. The middle entry is
+	 * pushed up: its child becomes the left link of the new index page, which
+	 * takes the entries after it. When counts is not null the counts of the
+	 * children that move are moved to a new count page for the new index
+	 * page. Returns the push-up entry <middle key, new index page id>.
+	 */
+	private KeyDataEntry _splitIndex(BTIndexPage currentindexpage,
+			KeyDataEntry UpEntry, CountPage counts) throws IOException,
+			ConstructPageException, IteratorException, KeyNotMatchException,
+			DeleteRecException, IndexInsertRecException, UnpinPageException {
 
-				while (count < currentleafpage
-						.getSlotCnt()) { /*
-											 * Inserting Split records into new
-											 * split leaf page
-											 */
+		BTIndexPage Split_indexpage = newIndexPage(currentindexpage
+				.getCurPage()); /* Create a new index page, pinned */
 
-					split_temp_key = currentleafpage.getNext(del_rid);
+		List<KeyDataEntry> entries = takeEntries(currentindexpage);
+		entries.add(insertPosition(entries, UpEntry.key, keyOrder), UpEntry);
 
-					split_new_leafpage.insertRecord(split_temp_key);
+		int split_point = entries.size() / 2;
 
-					if (split_point == 1) { /* Finding the copy up value */
-						UpEntry = split_temp_key;
-					}
+		KeyDataEntry middle = entries.get(split_point);
 
-					count++;
+		for (int i = 0; i < split_point; i++) {
+			KeyDataEntry entry = entries.get(i);
+			insertIndexRecord(currentindexpage, entry.key,
+					((IndexData) entry.data).getData());
+		}
 
-					split_point++;
-				}
-				
-				
-				KeyDataEntry split_temp_key_2 = currentleafpage.getFirst(del_rid_2);
+		Split_indexpage.setLeftLink(((IndexData) middle.data).getData());
+		for (int i = split_point + 1; i < entries.size(); i++) {
+			KeyDataEntry entry = entries.get(i);
+			insertIndexRecord(Split_indexpage, entry.key,
+					((IndexData) entry.data).getData());
+		}
 
-				int total_slots = currentleafpage.getSlotCnt();
+		if (counts != null) { /* Move the counts of the children that moved */
+			CountPage split_counts = newCountPage(Split_indexpage.getCurPage());
+			for (int i = split_point; i < entries.size(); i++) {
+				PageId child = ((IndexData) entries.get(i).data).getData();
+				split_counts.set(child, counts.get(child));
+				counts.remove(child);
+			}
+			Split_indexpage.setNextPage(split_counts.getPageId());
+			split_counts.unpin(true);
+		}
 
-				while (del_flag <= total_slots) { /*
-													 * Deleting the values from
-													 * existing leaf page that
-													 * are copied to new page
-													 * after the split
-													 */
-					if (BT.keyCompare(UpEntry.key, split_temp_key_2.key) <= 0) {
-						currentleafpage.delEntry(split_temp_key_2);
-						split_temp_key_2 = currentleafpage.getCurrent(del_rid_2);
-					}
+		KeyDataEntry idx_UpEntry = new KeyDataEntry(middle.key,
+				Split_indexpage.getCurPage());
 
-					else
-						split_temp_key_2 = currentleafpage.getNext(del_rid_2);
+		unpinPage(Split_indexpage.getCurPage(), true);
 
-					del_flag++;
-				}
-				
-				
-				if (flag > 0) /* Deciding on which page the new key will go */
-					split_new_leafpage.insertRecord(new IntegerKey(key), new RID(curr_key_page,key));
-
-				else
-					currentleafpage.insertRecord(new IntegerKey(key), new RID(curr_key_page,key));
-
-				if (currentleafpage
-						.getPrevPage().pid == -1) { /*
-													 * If split happens to be at
-													 * the root page - create a
-													 * new index page and set it
-													 * as root of the tree
-													 */
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + Split_indexpage.getCurPage() + lineSep);
+			trace.flush();
+		}
 
-					BTIndexPage temp_index_page = new BTIndexPage(AttrType.attrInteger);
+		return idx_UpEntry;
+	}
 
-					pinPage(temp_index_page.getCurPage());
+	/*
+	 * Remove all entries from a leaf or index page and return them in key
+	 * order.
+	 */
+	static List<KeyDataEntry> takeEntries(BTSortedPage sortedPage)
+			throws IOException, IteratorException, DeleteRecException {
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		RID rid = new RID();
+		PageId pageno = sortedPage.getCurPage();
 
-					temp_index_page.insertKey(UpEntry.key, split_new_leafpage.getCurPage());
+		if (sortedPage.getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = (BTIndexPage) sortedPage;
+			for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+					.getNext(rid))
+				entries.add(entry);
+		} else { // read the records themselves to keep their included values
+			byte[] data = sortedPage.getpage();
+			try {
+				for (int slot = 0; slot < RawPage.slotCount(data); slot++)
+					entries.add(CoveringData.entry(data, slot,
+							sortedPage.keyType));
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+		}
 
-					unpinPage(temp_index_page.getCurPage());
+		while (sortedPage.getSlotCnt() > 0)
+			sortedPage.deleteSortedRecord(new RID(pageno, 0));
 
-					updateHeader(temp_index_page.getCurPage());
+		return entries;
+	}
 
-					temp_index_page.setLeftLink(currentleafpage.getCurPage());
+	/*
+	 * Position of a new key in a key ordered list: after all entries with an
+	 * equal key, the same side getPageNoByKey routes equal keys to.
+	 */
+	static int insertPosition(List<KeyDataEntry> entries, KeyClass key,
+			KeyComparator order) throws KeyNotMatchException {
+		int pos = entries.size();
+		while (pos > 0 && order.keyCompare(entries.get(pos - 1).key, key) > 0)
+			pos--;
+		return pos;
+	}
 
-					if (trace != null) {
-						trace.writeBytes("VISIT node " + temp_index_page.getCurPage() + lineSep);
-						trace.flush();
-					}
-				}
+	/*
+	 * Insert <key, rid> into a leaf page that has room for it, with its
+	 * included values unless those are null, in the key order of the index
+	 * (see RawKey.insertRecord).
+	 */
+	static void insertLeafRecord(BTLeafPage leafPage, KeyClass key, RID rid,
+			byte[] included) throws LeafInsertRecException {
+		RID slotRid;
+		try {
+			byte[] record = included == null ? BT
+					.getBytesFromEntry(new KeyDataEntry(key, rid))
+					: CoveringData.record(key, rid, included);
+			slotRid = RawKey.of(key, leafPage.keyType).insertRecord(leafPage,
+					record);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+		if (slotRid == null)
+			throw new LeafInsertRecException(null, "no room on the leaf");
+	}
 
-				unpinPage(split_new_leafpage.getCurPage(),true);
+	/*
+	 * Insert <key, child> into an index page that has room for it, in the key
+	 * order of the index (see RawKey.insertRecord).
+	 */
+	static void insertIndexRecord(BTIndexPage indexPage, KeyClass key,
+			PageId child) throws IndexInsertRecException {
+		RID slotRid;
+		try {
+			slotRid = RawKey.of(key, indexPage.keyType).insertRecord(
+					indexPage,
+					BT.getBytesFromEntry(new KeyDataEntry(key, child)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IndexInsertRecException(e, "");
+		}
+		if (slotRid == null)
+			throw new IndexInsertRecException(null,
+					"no room on the index page");
+	}
 
-				if (trace != null) {
-					trace.writeBytes("VISIT node " + split_new_leafpage.getCurPage() + lineSep);
-					trace.flush();
-				}
+	/*
+	 * true if index pages of this file keep subtree entry counts
+	 */
+	private boolean subtreeCounts() throws IOException {
+		return BTreeHeaderExt.get(headerPage, BTreeHeaderExt.SUBTREE_COUNTS) != 0;
+	}
 
-			}
+	/*
+	 * Number of leaf entries below a page: its slot count for a leaf, the sum
+	 * of its count page for an index page.
+	 */
+	private int subtreeCount(PageId pageno) throws IOException,
+			PinPageException, UnpinPageException {
+		BTSortedPage sortedPage = new BTSortedPage(pinPage(pageno),
+				headerPage.get_keyType());
+		int count;
 
+		if (sortedPage.getType() == NodeType.INDEX) {
+			CountPage counts = CountPage.pin(sortedPage.getNextPage());
+			count = counts.total();
+			counts.unpin(false);
+		} else {
+			count = sortedPage.getSlotCnt();
 		}
 
-		/* return the correct entry as per the page */
-		if (temp_sorted_page.getType() == NodeType.INDEX)
-			return idx_UpEntry;
-
-		else
-			return UpEntry;
-
+		unpinPage(pageno);
+		return count;
 	}
-	
-
 
 
 	/**
@@ -888,12 +1812,88 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
+		applyWriteBuffer(key);
+		Boolean deleted = postingDelete(key, rid);
+		if (deleted != null)
+			return deleted;
 		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
 			return NaiveDelete(key, rid);
 		else
 			throw new DeleteFashionException(null, "");
 	}
 
+	/**
+	 * Delete all entries with lo_key <= key <= hi_key; null bounds are open.
+	 * The tree is descended once: leaves that hold keys both in and out of
+	 * the range have the entries deleted in place, while whole subtrees
+	 * inside the range are freed without reading their entries, their index
+	 * entries removed and the leaf chain linked around them. The root is
+	 * replaced by its only child while it has no separators left.
+	 *
+	 * @param lo_key
+	 *            the smallest key to delete. Input parameter.
+	 * @param hi_key
+	 *            the largest key to delete. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteRecException
+	 *                error when delete in a page
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			FreePageException, DeleteRecException {
+		applyWriteBuffer();
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return;
+		if (lo_key != null && hi_key != null
+				&& keyOrder.keyCompare(lo_key, hi_key) > 0)
+			return;
+
+		if (lo_key == null && hi_key == null) {
+			_destroyFile(rootId);
+			updateHeader(new PageId(INVALID_PAGE));
+			return;
+		}
+
+		_deleteRange(rootId, lo_key, hi_key, null, null);
+
+		// drop index roots left with only their left link
+		while (true) {
+			Page page = pinPage(rootId);
+			BTSortedPage sortedPage = new BTSortedPage(page,
+					headerPage.get_keyType());
+			if (sortedPage.getType() != NodeType.INDEX
+					|| sortedPage.getSlotCnt() > 0) {
+				unpinPage(rootId);
+				return;
+			}
+			BTIndexPage indexPage = new BTIndexPage(page,
+					headerPage.get_keyType());
+			PageId child = indexPage.getLeftLink();
+			PageId countPageId = indexPage.getNextPage();
+			unpinPage(rootId);
+			if (countPageId.pid != INVALID_PAGE)
+				freeTreePage(countPageId);
+			freeTreePage(rootId);
+			updateHeader(child);
+			rootId = child;
+		}
+	}
+
 	/*
 	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
 	 * *pstartrid)
@@ -928,6 +1928,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		PageId nextpageno;
 		RID curRid;
 		KeyDataEntry curEntry;
+		RawKey raw = rawKey(lo_key);
 
 		pageno = headerPage.get_rootId();
 
@@ -951,13 +1952,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		while (sortPage.getType() == NodeType.INDEX) {
 			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+			if (raw != null) {
+				prevpageno = rawChild(page.getpage(), raw, false);
+			} else {
+				prevpageno = pageIndex.getPrevPage();
+				curEntry = pageIndex.getFirst(startrid);
+				while (curEntry != null && lo_key != null
+						&& keyOrder.keyCompare(curEntry.key, lo_key) < 0) {
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+					prevpageno = ((IndexData) curEntry.data).getData();
+					curEntry = pageIndex.getNext(startrid);
+				}
 			}
 
 			unpinPage(pageno);
@@ -975,6 +1980,26 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
 
+		if (raw != null) { // first slot with a key >= lo_key, going right
+							// past the leaves without one
+			int slot;
+			while ((slot = raw.search(pageLeaf.getpage(), false)) == pageLeaf
+					.getSlotCnt()) {
+				nextpageno = pageLeaf.getNextPage();
+				unpinPage(pageno);
+				if (nextpageno.pid == INVALID_PAGE) {
+					return null;
+				}
+
+				pageno = nextpageno;
+				pageLeaf = new BTLeafPage(pinPage(pageno),
+						headerPage.get_keyType());
+			}
+			startrid.pageNo = pageLeaf.getCurPage();
+			startrid.slotNo = slot;
+			return pageLeaf;
+		}
+
 		curEntry = pageLeaf.getFirst(startrid);
 		while (curEntry == null) {
 			// skip empty leaf pages off to left
@@ -1001,7 +2026,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// scan will unpin it when done
 		}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
+		while (keyOrder.keyCompare(curEntry.key, lo_key) < 0) {
 			curEntry = pageLeaf.getNext(startrid);
 			while (curEntry == null) { // have to go right
 				nextpageno = pageLeaf.getNextPage();
@@ -1022,6 +2047,111 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return pageLeaf;
 	}
 
+	/*
+	 * findRunEnd. Mirror image of findRunStart for descending scans: find the
+	 * right-most occurrence of a key <= `hi_key', going all the way right if
+	 * hi_key is null.
+	 *
+	 * @param hi_key find right-most key <= hi_key, going all the way right if
+	 * hi_key is null.
+	 *
+	 * @param endrid it will return the last rid <= hi_key
+	 *
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		BTIndexPage pageIndex;
+		Page page;
+		BTSortedPage sortPage;
+		PageId pageno;
+		PageId nextpageno;
+		PageId prevpageno;
+		KeyDataEntry curEntry;
+		int lastSlot;
+		RawKey raw = rawKey(hi_key);
+
+		pageno = headerPage.get_rootId();
+
+		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
+			return null;
+		}
+
+		page = pinPage(pageno);
+		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			if (raw != null) {
+				nextpageno = rawChild(page.getpage(), raw, true);
+			} else {
+				nextpageno = pageIndex.getPrevPage();
+				curEntry = pageIndex.getFirst(endrid);
+				while (curEntry != null
+						&& (hi_key == null || keyOrder.keyCompare(curEntry.key,
+								hi_key) <= 0)) {
+
+					nextpageno = ((IndexData) curEntry.data).getData();
+					curEntry = pageIndex.getNext(endrid);
+				}
+			}
+
+			unpinPage(pageno);
+
+			pageno = nextpageno;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+		}
+
+		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+
+		while (true) {
+			lastSlot = -1;
+			if (raw != null) {
+				lastSlot = raw.search(pageLeaf.getpage(), true) - 1;
+			} else {
+				curEntry = pageLeaf.getFirst(endrid);
+				while (curEntry != null
+						&& (hi_key == null || keyOrder.keyCompare(curEntry.key,
+								hi_key) <= 0)) {
+					lastSlot = endrid.slotNo;
+					curEntry = pageLeaf.getNext(endrid);
+				}
+			}
+
+			if (lastSlot >= 0) {
+				endrid.pageNo = pageLeaf.getCurPage();
+				endrid.slotNo = lastSlot;
+				return pageLeaf;
+				// pageno/pageLeaf is still pinned; scan will unpin it
+			}
+
+			// nothing <= hi_key on this page (or it is empty), go left
+			prevpageno = pageLeaf.getPrevPage();
+			unpinPage(pageno);
+			if (prevpageno.pid == INVALID_PAGE) {
+				return null;
+			}
+
+			pageno = prevpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+		}
+	}
+
 	/*
 	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
 	 * 
@@ -1039,11 +2169,14 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			throws LeafDeleteException, KeyNotMatchException, PinPageException,
 			ConstructPageException, IOException, UnpinPageException,
 			PinPageException, IndexSearchException, IteratorException {
-	// remove the return statement and start your code.
+		if (!mightContain(key)) {
+			System.out.println("Key not found !!");
+			return false;
+		}
 		try {
-			BTLeafPage TempPage = new BTLeafPage(AttrType.attrInteger);
-			TempPage = findRunStart(key,
-					rid); /* Find the leaf Page where the record is present */
+			RID curRid = new RID();
+			BTLeafPage TempPage = findRunStart(key,
+					curRid); /* Find the leaf Page where the record is present */
 
 			if (TempPage == null) /*
 									 * Implies the entered key value does not
@@ -1053,21 +2186,26 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				System.out.println("Key not found !!");
 				return false;
 			} else {
-				if (BT.keyCompare(key, TempPage.getCurrent(
-						rid).key) == 0) /*
-										 * Condition due to a logical error in
-										 */
+				PageId leafPageId = TempPage.getCurPage();
+
+				if (keyOrder.keyCompare(key, TempPage.getCurrent(
+						curRid).key) == 0) /*
+											 * Condition due to a logical error
+											 * in
+											 */
 				{
-					pinPage(TempPage.getCurPage());
 					TempPage.deleteSortedRecord(
-							rid); /*
-									 * Delete the record from the page
-									 * findRunStart method
-									 */
-					unpinPage(TempPage.getCurPage(), true);
+							curRid); /*
+										 * Delete the record from the page
+										 * findRunStart method
+										 */
+					unpinPage(leafPageId, true);
+
+					if (subtreeCounts())
+						adjustCounts(headerPage.get_rootId(), key, leafPageId, -1);
 
 					if (trace != null) {
-						trace.writeBytes("VISIT node " + TempPage + lineSep);
+						trace.writeBytes("VISIT node " + leafPageId + lineSep);
 						trace.flush();
 					}
 
@@ -1075,6 +2213,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				}
 
 				else {
+					unpinPage(leafPageId);
 					System.out.println(
 							"Key not found !!"); /*
 													 * Trying to delete the already
@@ -1088,22 +2227,241 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			throw new PinPageException(e, "");
 		}
 	}
+
+	/*
+	 * Delete the entries lo_key <= key <= hi_key below pageno, whose keys
+	 * lie within [lowFence, highFence]; null fences are open. Equal keys may
+	 * sit on both sides of a separator, so both fences are inclusive. A page
+	 * is never entirely inside the range: its parent frees such pages.
+	 */
+	private void _deleteRange(PageId pageno, KeyClass lo_key,
+			KeyClass hi_key, KeyClass lowFence, KeyClass highFence)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			FreePageException, DeleteRecException {
+		Page page = pinPage(pageno);
+		if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+			deleteLeafRange(new BTLeafPage(page, headerPage.get_keyType()),
+					lo_key, hi_key);
+			return;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		List<PageId> children = new ArrayList<PageId>();
+		List<KeyClass> fences = new ArrayList<KeyClass>();
+		RID rid = new RID();
+
+		// a copy: setLeftLink below changes the PageId getLeftLink returns
+		children.add(new PageId(indexPage.getLeftLink().pid));
+		fences.add(lowFence);
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+				.getNext(rid)) {
+			children.add(((IndexData) entry.data).getData());
+			fences.add(entry.key);
+		}
+		fences.add(highFence);
+
+		boolean counts = subtreeCounts();
+		boolean[] freed = new boolean[children.size()];
+		for (int i = 0; i < children.size(); i++) {
+			KeyClass low = fences.get(i);
+			KeyClass high = fences.get(i + 1);
+			if (hi_key != null && low != null
+					&& keyOrder.keyCompare(low, hi_key) > 0)
+				break;
+			if (lo_key != null && high != null
+					&& keyOrder.keyCompare(high, lo_key) < 0)
+				continue;
+
+			PageId child = children.get(i);
+			if ((lo_key == null || low != null
+					&& keyOrder.keyCompare(lo_key, low) <= 0)
+					&& (hi_key == null || high != null
+							&& keyOrder.keyCompare(high, hi_key) <= 0)) {
+				unlinkLeaves(child);
+				_destroyFile(child);
+				freed[i] = true;
+			} else {
+				_deleteRange(child, lo_key, hi_key, low, high);
+				if (counts) {
+					CountPage countPage = CountPage.pin(indexPage.getNextPage());
+					countPage.set(child, subtreeCount(child));
+					countPage.unpin(true);
+				}
+			}
+		}
+
+		// separator i - 1 leads to child i; remove from the right so the
+		// slots still to remove keep their numbers
+		for (int i = children.size() - 1; i > 0; i--)
+			if (freed[i])
+				indexPage.deleteSortedRecord(new RID(pageno, i - 1));
+		if (freed[0]) {
+			// the first child left takes over the left link and lower fence
+			RID first = new RID();
+			KeyDataEntry entry = indexPage.getFirst(first);
+			indexPage.setLeftLink(((IndexData) entry.data).getData());
+			indexPage.deleteSortedRecord(first);
+		}
+		if (counts) {
+			CountPage countPage = CountPage.pin(indexPage.getNextPage());
+			for (int i = 0; i < children.size(); i++)
+				if (freed[i])
+					countPage.remove(children.get(i));
+			countPage.unpin(true);
+		}
+		unpinPage(pageno, true);
+	}
+
+	/*
+	 * Delete the entries lo_key <= key <= hi_key of a pinned leaf and unpin
+	 * it. The posting lists of deleted entries are freed.
+	 */
+	private void deleteLeafRange(BTLeafPage leafPage, KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, UnpinPageException, PinPageException,
+			FreePageException, DeleteRecException {
+		PageId pageno = leafPage.getCurPage();
+		List<Integer> slots = new ArrayList<Integer>();
+		List<PageId> lists = new ArrayList<PageId>();
+		RID rid = new RID();
+		boolean postings = postingLists();
+
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage
+				.getNext(rid)) {
+			if (hi_key != null && keyOrder.keyCompare(entry.key, hi_key) > 0)
+				break;
+			if (lo_key != null && keyOrder.keyCompare(entry.key, lo_key) < 0)
+				continue;
+			slots.add(rid.slotNo);
+			if (postings && PostingList.isPosting(entry))
+				lists.add(PostingList.head(entry));
+		}
+
+		for (int i = slots.size() - 1; i >= 0; i--)
+			leafPage.deleteSortedRecord(new RID(pageno, slots.get(i)));
+		unpinPage(pageno, !slots.isEmpty());
+
+		for (PageId head : lists)
+			PostingList.free(this, head);
+	}
+
+	/*
+	 * Link the leaves before and after the subtree at pageno to each other,
+	 * leaving its leaves out of the chain.
+	 */
+	private void unlinkLeaves(PageId pageno) throws IOException,
+			IteratorException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		BTLeafPage first = new BTLeafPage(pinPage(edgeLeaf(pageno, false)),
+				headerPage.get_keyType());
+		PageId prev = first.getPrevPage();
+		unpinPage(first.getCurPage());
+		BTLeafPage last = new BTLeafPage(pinPage(edgeLeaf(pageno, true)),
+				headerPage.get_keyType());
+		PageId next = last.getNextPage();
+		unpinPage(last.getCurPage());
+
+		if (prev.pid != INVALID_PAGE) {
+			BTLeafPage leafPage = new BTLeafPage(pinPage(prev),
+					headerPage.get_keyType());
+			leafPage.setNextPage(next);
+			unpinPage(prev, true);
+		}
+		if (next.pid != INVALID_PAGE) {
+			BTLeafPage leafPage = new BTLeafPage(pinPage(next),
+					headerPage.get_keyType());
+			leafPage.setPrevPage(prev);
+			unpinPage(next, true);
+		}
+	}
+
+	/*
+	 * The left-most, or with last set the right-most, leaf below pageno.
+	 */
+	private PageId edgeLeaf(PageId pageno, boolean last) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		while (true) {
+			Page page = pinPage(pageno);
+			if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+				unpinPage(pageno);
+				return pageno;
+			}
+			BTIndexPage indexPage = new BTIndexPage(page,
+					headerPage.get_keyType());
+			PageId child = indexPage.getLeftLink();
+			if (last) {
+				RID rid = new RID();
+				for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+						.getNext(rid))
+					child = ((IndexData) entry.data).getData();
+			}
+			unpinPage(pageno);
+			pageno = child;
+		}
+	}
+
+	/*
+	 * Add delta to the subtree counts on the path from pageno down to the leaf
+	 * leafPageId, which holds an entry with the given key. Only the children
+	 * that can hold `key' are searched: the one findRunStart descends to and
+	 * those whose separator equals the key.
+	 *
+	 * @return true if leafPageId was found below pageno
+	 */
+	private boolean adjustCounts(PageId pageno, KeyClass key,
+			PageId leafPageId, int delta) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (pageno.pid == leafPageId.pid)
+			return true;
+
+		Page page = pinPage(pageno);
+		if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return false;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		PageId countPageId = indexPage.getNextPage();
+		List<PageId> candidates = new ArrayList<PageId>();
+		RID rid = new RID();
+
+		candidates.add(indexPage.getLeftLink());
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+				.getNext(rid)) {
+			int cmp = keyOrder.keyCompare(entry.key, key);
+			if (cmp > 0)
+				break;
+			if (cmp < 0)
+				candidates.clear();
+			candidates.add(((IndexData) entry.data).getData());
+		}
+		unpinPage(pageno);
+
+		for (PageId child : candidates) {
+			if (adjustCounts(child, key, leafPageId, delta)) {
+				CountPage counts = CountPage.pin(countPageId);
+				counts.set(child, counts.get(child) + delta);
+				counts.unpin(true);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
-	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
-	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
-	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
-	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
-	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	 * scan from lo_key to hi_key
+	 * Turn the per-child subtree entry counts of the index pages on or off.
+	 * Turning them on builds the counts for the whole tree once; after that
+	 * insert and Delete keep them up to date, and count, rank and select run
+	 * in one root-to-leaf descent. Deletes made through a scan's
+	 * delete_current are not counted.
 	 *
-	 * @param lo_key
-	 *            the key where we begin scanning. Input parameter.
-	 * @param hi_key
-	 *            the key where we stop scanning. Input parameter.
+	 * @param maintain
+	 *            true to keep counts. Input parameter.
 	 * @exception IOException
 	 *                error from the lower layer
-	 * @exception KeyNotMatchException
-	 *                key is not integer key nor string key
 	 * @exception IteratorException
 	 *                iterator error
 	 * @exception ConstructPageException
@@ -1112,20 +2470,1008 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error when pin a page
 	 * @exception UnpinPageException
 	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
 	 */
-	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
-			throws IOException, KeyNotMatchException, IteratorException,
-			ConstructPageException, PinPageException, UnpinPageException
+	public void setSubtreeCounts(boolean maintain) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException {
+		if (maintain == subtreeCounts())
+			return;
+		if (maintain && postingLists())
+			throw new ConstructPageException(null,
+					"subtree counts do not count posting lists");
+
+		applyWriteBuffer();
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid != INVALID_PAGE) {
+			if (maintain)
+				buildCounts(rootId);
+			else
+				dropCounts(rootId);
+		}
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.SUBTREE_COUNTS,
+				maintain ? 1 : 0);
+	}
 
-	{
-		BTFileScan scan = new BTFileScan();
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+	/*
+	 * Create the count pages below pageno and return its entry count.
+	 */
+	private int buildCounts(PageId pageno) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (sortedPage.getType() != NodeType.INDEX) {
+			int count = sortedPage.getSlotCnt();
+			unpinPage(pageno);
+			return count;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		CountPage counts = newCountPage(pageno);
+		RID rid = new RID();
+
+		counts.set(indexPage.getLeftLink(), buildCounts(indexPage.getLeftLink()));
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+				.getNext(rid)) {
+			PageId child = ((IndexData) entry.data).getData();
+			counts.set(child, buildCounts(child));
+		}
+
+		int total = counts.total();
+		indexPage.setNextPage(counts.getPageId());
+		counts.unpin(true);
+		unpinPage(pageno, true);
+		return total;
+	}
+
+	/*
+	 * Free the count pages below pageno.
+	 */
+	private void dropCounts(PageId pageno) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException {
+		Page page = pinPage(pageno);
+
+		if (new BTSortedPage(page, headerPage.get_keyType()).getType() != NodeType.INDEX) {
+			unpinPage(pageno);
+			return;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		RID rid = new RID();
+
+		dropCounts(indexPage.getLeftLink());
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+				.getNext(rid))
+			dropCounts(((IndexData) entry.data).getData());
+
+		freeTreePage(indexPage.getNextPage());
+		indexPage.setNextPage(new PageId(INVALID_PAGE));
+		unpinPage(pageno, true);
+	}
+
+	/**
+	 * Number of entries with lo_key <= key <= hi_key; null bounds are open.
+	 * With subtree counts this takes two root-to-leaf descents, otherwise the
+	 * range is scanned.
+	 *
+	 * @param lo_key
+	 *            the smallest key to count. Input parameter.
+	 * @param hi_key
+	 *            the largest key to count. Input parameter.
+	 * @return number of entries in the range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		applyWriteBuffer();
+		int upto = hi_key == null ? countBelow(null, true) : countBelow(hi_key,
+				true);
+		int below = lo_key == null ? 0 : countBelow(lo_key, false);
+		return Math.max(0, upto - below);
+	}
+
+	/**
+	 * Rank of a key: the number of entries with a smaller key.
+	 *
+	 * @param key
+	 *            the key to rank. Input parameter.
+	 * @return number of entries < key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int rank(KeyClass key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		applyWriteBuffer();
+		return countBelow(key, false);
+	}
+
+	/**
+	 * The entry of rank k, i.e. the (k+1)-th entry in key order.
+	 *
+	 * @param k
+	 *            0 based position. Input parameter.
+	 * @return the entry, null if k is out of range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry select(int k) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		applyWriteBuffer();
+		PageId pageno = headerPage.get_rootId();
+
+		if (k < 0 || pageno.pid == INVALID_PAGE)
+			return null;
+
+		if (postingLists()) {
+			IndexFileScan scan = new_scan(null, null);
+			try {
+				while (k > 0 && scan.get_next() != null)
+					k--;
+			} catch (ScanIteratorException e) {
+				throw new IteratorException(e, "");
+			}
+			KeyDataEntry entry = firstEntry(scan);
+			return k == 0 ? entry : null;
+		}
+
+		if (!subtreeCounts()) {
+			RID rid = new RID();
+			BTLeafPage pageLeaf = findRunStart(null, rid);
+			KeyDataEntry entry = pageLeaf == null ? null : pageLeaf.getCurrent(rid);
+			while (entry != null && k-- > 0) {
+				entry = pageLeaf.getNext(rid);
+				while (entry == null) {
+					PageId nextpageno = pageLeaf.getNextPage();
+					unpinPage(pageLeaf.getCurPage());
+					if (nextpageno.pid == INVALID_PAGE)
+						return null;
+					pageLeaf = new BTLeafPage(pinPage(nextpageno),
+							headerPage.get_keyType());
+					entry = pageLeaf.getFirst(rid);
+				}
+			}
+			if (pageLeaf != null)
+				unpinPage(pageLeaf.getCurPage());
+			return entry;
+		}
+
+		Page page = pinPage(pageno);
+		while (new BTSortedPage(page, headerPage.get_keyType()).getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+			CountPage counts = CountPage.pin(indexPage.getNextPage());
+			RID rid = new RID();
+			PageId child = indexPage.getLeftLink();
+			KeyDataEntry entry = indexPage.getFirst(rid);
+
+			while (k >= counts.get(child) && entry != null) {
+				k -= counts.get(child);
+				child = ((IndexData) entry.data).getData();
+				entry = indexPage.getNext(rid);
+			}
+			boolean found = k < counts.get(child);
+			counts.unpin(false);
+			unpinPage(pageno);
+			if (!found)
+				return null;
+
+			pageno = child;
+			page = pinPage(pageno);
+		}
+
+		BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		KeyDataEntry entry = null;
+		if (k < pageLeaf.getSlotCnt())
+			entry = pageLeaf.getCurrent(new RID(pageno, k));
+		unpinPage(pageno);
+		return entry;
+	}
+
+	/**
+	 * The entry with the smallest key, found by going all the way left.
+	 *
+	 * @return the entry, null if the index is empty
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry min() throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		applyWriteBuffer();
+		if (postingLists())
+			return firstEntry(new_scan(null, null));
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunStart(null, rid);
+		if (pageLeaf == null)
+			return null;
+		KeyDataEntry entry = pageLeaf.getCurrent(rid);
+		unpinPage(pageLeaf.getCurPage());
+		return entry;
+	}
+
+	/**
+	 * The entry with the largest key, found by going all the way right.
+	 *
+	 * @return the entry, null if the index is empty
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry max() throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		applyWriteBuffer();
+		if (postingLists())
+			return firstEntry(new_scan(null, null, Order.DESCENDING));
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunEnd(null, rid);
+		if (pageLeaf == null)
+			return null;
+		KeyDataEntry entry = pageLeaf.getCurrent(rid);
+		unpinPage(pageLeaf.getCurPage());
+		return entry;
+	}
+
+	/*
+	 * Number of entries with a key < key (inclusive: <= key); key == null
+	 * counts all entries. Descends once along the path findRunStart (or, when
+	 * inclusive, findRunEnd) takes, adding up the counts of the children left
+	 * of it. Without subtree counts the entries are scanned.
+	 */
+	private int countBelow(KeyClass key, boolean inclusive)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		PageId pageno = headerPage.get_rootId();
+		int below = 0;
+		RID rid = new RID();
+		KeyDataEntry entry;
+
+		if (pageno.pid == INVALID_PAGE)
+			return 0;
+
+		if (!subtreeCounts()) {
+			BTFileScan scan = new_scan(null, key);
+			try {
+				while ((entry = scan.get_next()) != null
+						&& (inclusive || keyOrder
+								.keyCompare(entry.key, key) < 0))
+					below++;
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IteratorException(e, "");
+			}
+			return below;
+		}
+
+		RawKey raw = rawKey(key);
+		Page page = pinPage(pageno);
+		while (new BTSortedPage(page, headerPage.get_keyType()).getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+			CountPage counts = CountPage.pin(indexPage.getNextPage());
+			PageId child = indexPage.getLeftLink();
+
+			if (raw != null) {
+				byte[] data = page.getpage();
+				int left = raw.search(data, inclusive);
+				for (int slot = 0; slot < left; slot++) {
+					below += counts.get(child);
+					child = new PageId(RawPage.indexChild(data, slot));
+				}
+			} else {
+				for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+						.getNext(rid)) {
+					if (key != null) {
+						int cmp = keyOrder.keyCompare(entry.key, key);
+						if (cmp > 0 || (cmp == 0 && !inclusive))
+							break;
+					}
+					below += counts.get(child);
+					child = ((IndexData) entry.data).getData();
+				}
+			}
+
+			counts.unpin(false);
+			unpinPage(pageno);
+			pageno = child;
+			page = pinPage(pageno);
+		}
+
+		BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		if (raw != null) {
+			below += raw.search(page.getpage(), inclusive);
+		} else {
+			for (entry = pageLeaf.getFirst(rid); entry != null; entry = pageLeaf
+					.getNext(rid)) {
+				if (key != null) {
+					int cmp = keyOrder.keyCompare(entry.key, key);
+					if (cmp > 0 || (cmp == 0 && !inclusive))
+						break;
+				}
+				below++;
+			}
+		}
+		unpinPage(pageno);
+		return below;
+	}
+
+	/*
+	 * key in the form of the keys on the pages, so a search for it compares
+	 * the records of a page as they are rather than decode each entry to
+	 * compare it with keyOrder. null if key is null or not of the key type
+	 * of the index.
+	 */
+	private RawKey rawKey(KeyClass key) throws IOException {
+		return RawKey.of(key, headerPage.get_keyType());
+	}
+
+	/*
+	 * The child of an index page a search for key goes to: the one right of
+	 * the last separator < key (inclusive: <= key), or the left link if there
+	 * is none.
+	 */
+	static PageId rawChild(byte[] data, RawKey key, boolean inclusive) {
+		int slot = key.search(data, inclusive);
+		return new PageId(slot == 0 ? RawPage.prevPage(data) : RawPage
+				.indexChild(data, slot - 1));
+	}
+
+	/**
+	 * Hold back up to `entries' inserts in memory and apply them to the tree
+	 * together, in key order, once that many are held. Each leaf is then read
+	 * and written once for all the held inserts that go to it, rather than
+	 * once per insert, which saves most of the I/O of random inserts into an
+	 * index larger than the buffer pool. The held inserts are applied before
+	 * the index is scanned or counted, and on close; deleting a key,
+	 * inserting it with included values, insertIfAbsent and upsert apply the
+	 * held inserts of that key only, so the entries of a key stay in insert
+	 * order. verify() and stats() see the tree without them. 0 applies the
+	 * held inserts and stops holding any back.
+	 *
+	 * Held inserts are not durable: they live only in this BTreeFile object
+	 * and are lost on a crash, or if the file is left without close() or
+	 * flushWriteBuffer(). If close() cannot apply them, it throws and keeps
+	 * them held.
+	 *
+	 * @param entries
+	 *            the number of inserts to hold back. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                the held inserts could not be applied
+	 */
+	public void setWriteBuffer(int entries) throws IOException,
+			IteratorException {
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.WRITE_BUFFER,
+				Math.max(entries, 0));
+		if (buffered >= entries)
+			applyWriteBuffer();
+	}
+
+	/**
+	 * Apply the inserts held back by setWriteBuffer() to the tree now.
+	 *
+	 * @exception IteratorException
+	 *                the held inserts could not be applied
+	 */
+	public void flushWriteBuffer() throws IteratorException {
+		applyWriteBuffer();
+	}
+
+	/*
+	 * Hold the insert back if the index has a write buffer. false if it must
+	 * go to the tree now.
+	 */
+	private boolean bufferInsert(KeyClass key, RID rid) throws IOException,
+			KeyNotMatchException, IteratorException {
+		if (applying || unique())
+			return false;
+		int limit = BTreeHeaderExt.get(headerPage, BTreeHeaderExt.WRITE_BUFFER);
+		if (limit == 0)
+			return false;
+
+		if (writeBuffer == null)
+			writeBuffer = new TreeMap<KeyClass, List<RID>>(keyOrder);
+		List<RID> rids;
+		try {
+			rids = writeBuffer.get(key);
+		} catch (ClassCastException e) {
+			throw new KeyNotMatchException(null, "key type mismatch");
+		}
+		if (rids == null)
+			writeBuffer.put(key, rids = new ArrayList<RID>());
+		rids.add(new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+		if (++buffered >= limit)
+			applyWriteBuffer();
+		return true;
+	}
+
+	/*
+	 * Insert all held entries into the tree, in key order and, for equal
+	 * keys, in the order they were inserted.
+	 */
+	void applyWriteBuffer() throws IteratorException {
+		if (applying)
+			return;
+		while (writeBuffer != null && !writeBuffer.isEmpty())
+			applyWriteBuffer(writeBuffer.firstKey());
+	}
+
+	/*
+	 * Insert the held entries with the given key into the tree. An entry that
+	 * fails stays held, with the ones after it.
+	 */
+	private void applyWriteBuffer(KeyClass key) throws IteratorException {
+		if (applying || writeBuffer == null)
+			return;
+		List<RID> rids = writeBuffer.get(key);
+		if (rids == null)
+			return;
+
+		applying = true;
+		try {
+			while (!rids.isEmpty()) {
+				insert(key, rids.get(0));
+				rids.remove(0);
+				buffered--;
+			}
+			writeBuffer.remove(key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "apply write buffer failed");
+		} finally {
+			applying = false;
+		}
+	}
+
+	private void dropWriteBuffer() {
+		writeBuffer = null;
+		buffered = 0;
+	}
+
+	/**
+	 * Keep the rids of a key in a posting list once the key has `threshold'
+	 * entries. The leaf then holds a single entry for the key, pointing to
+	 * pages that hold its rids sorted and delta encoded, a byte or two per
+	 * rid, so the duplicates of a frequent key take a fraction of the leaf
+	 * space and an equality scan reads the list instead of a run of leaves.
+	 * Inserts and deletes of the key add and remove single rids of the list.
+	 * Scans return the rids of a list as entries of its key, in rid order;
+	 * stats() counts a list as one leaf entry. A key is turned into a list
+	 * by the insert that takes it to the threshold. 0 turns all lists back
+	 * into leaf entries. Posting lists cannot be combined with subtree
+	 * counts or a unique index.
+	 *
+	 * @param threshold
+	 *            the number of entries of a key that makes a list. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                the lists could not be turned back into entries
+	 * @exception ConstructPageException
+	 *                the index keeps subtree counts or included values, or
+	 *                is unique
+	 */
+	public void setPostingLists(int threshold) throws IOException,
+			IteratorException, ConstructPageException {
+		if (threshold > 0 && subtreeCounts())
+			throw new ConstructPageException(null,
+					"subtree counts do not count posting lists");
+		if (threshold > 0 && unique())
+			throw new ConstructPageException(null,
+					"a unique index keeps no posting lists");
+		if (threshold > 0 && includedLength() > 0)
+			throw new ConstructPageException(null,
+					"posting lists keep no included values");
+
+		applyWriteBuffer();
+		boolean expand = threshold <= 0 && postingLists();
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.POSTING_LISTS,
+				Math.max(threshold, 0));
+		if (expand)
+			expandPostingLists();
+	}
+
+	boolean postingLists() throws IOException {
+		return BTreeHeaderExt.get(headerPage, BTreeHeaderExt.POSTING_LISTS) != 0;
+	}
+
+	/*
+	 * Refuse a record rid with slot -1, which the leaves keep for the head
+	 * of a posting list.
+	 */
+	private static void checkRid(RID rid) throws InsertException {
+		if (PostingList.isPosting(rid))
+			throw new InsertException(null, "slot " + rid.slotNo
+					+ " is kept for posting lists");
+	}
+
+	/*
+	 * Add the rid to the posting list of the key if it has one, or make one
+	 * if the insert takes the key to the threshold. false if the entry goes
+	 * into the leaf as usual.
+	 */
+	private boolean postingInsert(KeyClass key, RID rid) throws IOException,
+			KeyTooLongException, KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException {
+		int threshold = BTreeHeaderExt.get(headerPage,
+				BTreeHeaderExt.POSTING_LISTS);
+		if (threshold == 0)
+			return false;
+
+		List<RID> rids = keyRids(key);
+		for (RID r : rids)
+			if (PostingList.isPosting(r)) {
+				PostingList.add(this, r.pageNo, rid);
+				return true;
+			}
+		if (rids.size() + 1 < threshold)
+			return false;
+
+		for (RID r : rids)
+			deleteLeafEntry(key, r);
+		rids.add(new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+		insertEntry(key, PostingList.entryRid(PostingList.create(this, rids,
+				null)), null, INSERT, new RID(new PageId(INVALID_PAGE), 0));
+		return true;
+	}
+
+	/*
+	 * Delete the rid from the posting list of the key, or, as NaiveDelete
+	 * does, some other rid of the key if the list does not hold that one. A
+	 * list that becomes empty is freed. null if the key has no list.
+	 */
+	private Boolean postingDelete(KeyClass key, RID rid) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			LeafDeleteException {
+		if (!postingLists())
+			return null;
+
+		for (RID r : keyRids(key)) {
+			if (!PostingList.isPosting(r))
+				continue;
+			boolean removed = PostingList.remove(this, r.pageNo, rid);
+			if (!removed) {
+				RID any = new PostingList.Reader(r.pageNo, null).next();
+				removed = any != null && PostingList.remove(this, r.pageNo, any);
+			}
+			if (PostingList.size(r.pageNo) == 0) {
+				deleteLeafEntry(key, r);
+				PostingList.free(this, r.pageNo);
+			}
+			if (removed)
+				return true;
+		}
+		return null;
+	}
+
+	/*
+	 * Turn every posting list back into leaf entries. Called as the lists
+	 * are turned off, so every slot -1 entry is still the head of one.
+	 */
+	private void expandPostingLists() throws IteratorException {
+		try {
+			List<KeyDataEntry> lists = new ArrayList<KeyDataEntry>();
+			RID rid = new RID();
+			BTLeafPage pageLeaf = findRunStart(null, rid);
+			while (pageLeaf != null) {
+				for (KeyDataEntry entry = pageLeaf.getFirst(rid); entry != null; entry = pageLeaf
+						.getNext(rid))
+					if (PostingList.isPosting(entry))
+						lists.add(entry);
+				PageId nextpage = pageLeaf.getNextPage();
+				unpinPage(pageLeaf.getCurPage());
+				pageLeaf = nextpage.pid == INVALID_PAGE ? null : new BTLeafPage(
+						pinPage(nextpage), headerPage.get_keyType());
+			}
+
+			for (KeyDataEntry entry : lists) {
+				PageId head = PostingList.head(entry);
+				List<RID> rids = PostingList.rids(head);
+				deleteLeafEntry(entry.key, PostingList.entryRid(head));
+				PostingList.free(this, head);
+				for (RID r : rids)
+					insert(entry.key, r);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "expand posting lists failed");
+		}
+	}
+
+	/*
+	 * The rids of the leaf entries with the given key, in leaf order.
+	 */
+	private List<RID> keyRids(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		RID rid = new RID();
+		BTLeafPage pageLeaf = findRunStart(key, rid);
+		KeyDataEntry entry = pageLeaf == null ? null : pageLeaf.getCurrent(rid);
+		while (entry != null && keyOrder.keyCompare(entry.key, key) == 0) {
+			rids.add(((LeafData) entry.data).getData());
+			entry = pageLeaf.getNext(rid);
+			while (entry == null) {
+				PageId nextpage = pageLeaf.getNextPage();
+				unpinPage(pageLeaf.getCurPage());
+				if (nextpage.pid == INVALID_PAGE)
+					return rids;
+				pageLeaf = new BTLeafPage(pinPage(nextpage),
+						headerPage.get_keyType());
+				entry = pageLeaf.getFirst(rid);
+			}
+		}
+		if (pageLeaf != null)
+			unpinPage(pageLeaf.getCurPage());
+		return rids;
+	}
+
+	/*
+	 * Delete the leaf entry <key, rid>. false if there is none.
+	 */
+	private boolean deleteLeafEntry(KeyClass key, RID rid) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, LeafDeleteException {
+		RID cur = new RID();
+		BTLeafPage pageLeaf = findRunStart(key, cur);
+		while (pageLeaf != null) {
+			PageId leafPageId = pageLeaf.getCurPage();
+			if (pageLeaf.delEntry(new KeyDataEntry(key, rid))) {
+				unpinPage(leafPageId, true);
+				if (subtreeCounts())
+					adjustCounts(headerPage.get_rootId(), key, leafPageId, -1);
+				return true;
+			}
+
+			int last = pageLeaf.getSlotCnt() - 1;
+			PageId nextpage = pageLeaf.getNextPage();
+			boolean past = last >= 0
+					&& keyOrder.keyCompare(pageLeaf.getCurrent(new RID(
+							leafPageId, last)).key, key) > 0;
+			unpinPage(leafPageId);
+			if (past || nextpage.pid == INVALID_PAGE)
+				return false;
+			pageLeaf = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+		}
+		return false;
+	}
+
+	/*
+	 * The first entry of a scan, which is then destroyed.
+	 */
+	private static KeyDataEntry firstEntry(IndexFileScan scan)
+			throws IteratorException {
+		try {
+			KeyDataEntry entry = scan.get_next();
+			if (scan instanceof BTFileScan)
+				((BTFileScan) scan).DestroyBTreeFileScan();
+			else
+				((BTReverseFileScan) scan).DestroyBTreeFileScan();
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Keep or stop keeping a Bloom filter over the keys of this index. With a
+	 * filter, deleting or looking up (lo_key = hi_key scans) a key that was
+	 * never inserted returns without descending the tree. The filter is held
+	 * in memory while the index is open and saved to its own pages on close;
+	 * deleted keys stay in it until rebuildBloomFilter() is called.
+	 *
+	 * @param keep
+	 *            true to keep a filter, false to drop it. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public void setBloomFilter(boolean keep) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException {
+		if (keep == bloomFilter())
+			return;
+
+		if (keep) {
+			BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_FILTER, 1);
+			rebuildBloomFilter();
+		} else {
+			dropSavedBloomFilter();
+			if (staleBloomPage != null)
+				BloomFilter.free(staleBloomPage);
+			staleBloomPage = null;
+			bloom = null;
+			BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_FILTER, 0);
+		}
+	}
+
+	/**
+	 * Build the Bloom filter anew from the keys in the leaves, sized for
+	 * twice their number. Call it after loading many keys or deleting many keys.
+	 * Does nothing if the index keeps no filter.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void rebuildBloomFilter() throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		applyWriteBuffer();
+		if (!bloomFilter())
+			return;
+
+		dropSavedBloomFilter();
+		// room for as many keys again before it has to be rebuilt
+		BloomFilter filter = new BloomFilter(2 * leafKeys(null));
+		leafKeys(filter);
+		bloom = filter;
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_KEYS, 0);
+	}
+
+	private boolean bloomFilter() throws IOException {
+		return BTreeHeaderExt.get(headerPage, BTreeHeaderExt.BLOOM_FILTER) != 0;
+	}
+
+	/*
+	 * The filter of this index, read from its pages on first use. A filter
+	 * that was not saved, because the index was not closed, is rebuilt.
+	 * Null if the index keeps no filter.
+	 */
+	private BloomFilter bloom() throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (bloom == null && bloomFilter()) {
+			int first = BTreeHeaderExt.get(headerPage, BTreeHeaderExt.BLOOM_PAGE);
+			if (first != INVALID_PAGE)
+				bloom = BloomFilter.read(new PageId(first));
+			else
+				rebuildBloomFilter();
+		}
+		return bloom;
+	}
+
+	/*
+	 * Add a newly inserted key to the filter. Once it holds as many keys as
+	 * it was sized for, the filter is rebuilt at the new size.
+	 */
+	private void bloomAdd(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BloomFilter filter = bloom();
+		if (filter == null)
+			return;
+
+		dropSavedBloomFilter();
+		filter.add(key);
+		int added = BTreeHeaderExt.get(headerPage, BTreeHeaderExt.BLOOM_KEYS) + 1;
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_KEYS, added);
+		if (added > filter.capacity() / 2)
+			rebuildBloomFilter();
+	}
+
+	/*
+	 * false if the key is certainly not in the index. A filter that cannot
+	 * be read answers true, so the caller just searches the tree.
+	 */
+	boolean mightContain(KeyClass key) {
+		try {
+			BloomFilter filter = bloom();
+			return filter == null || filter.mightContain(key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return true;
+		}
+	}
+
+	/*
+	 * true if [lo_key, hi_key] is a single key that is not in the index.
+	 */
+	private boolean isAbsentKey(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		return lo_key != null && hi_key != null
+				&& keyOrder.keyCompare(lo_key, hi_key) == 0
+				&& !mightContain(lo_key);
+	}
+
+	/*
+	 * The saved copy of the filter goes stale with the first change after it
+	 * was read. Mark it as not saved and write the header page through, so
+	 * that an index that is not closed rebuilds its filter rather than trust
+	 * the stale copy. Its pages are freed on close.
+	 */
+	private void dropSavedBloomFilter() throws IOException {
+		int first = BTreeHeaderExt.get(headerPage, BTreeHeaderExt.BLOOM_PAGE);
+		if (first == INVALID_PAGE)
+			return;
+
+		BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_PAGE, INVALID_PAGE);
+		staleBloomPage = new PageId(first);
+		try {
+			SystemDefs.JavabaseDB.write_page(headerPageId, headerPage);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException("write header page failed");
+		}
+	}
+
+	/*
+	 * Save the filter to new pages and free the stale ones. A filter that
+	 * cannot be saved is rebuilt on next use.
+	 */
+	private void saveBloomFilter() {
+		try {
+			if (staleBloomPage != null) {
+				BloomFilter.free(staleBloomPage);
+				staleBloomPage = null;
+			}
+			if (bloom != null
+					&& BTreeHeaderExt.get(headerPage, BTreeHeaderExt.BLOOM_PAGE) == INVALID_PAGE)
+				BTreeHeaderExt.set(headerPage, BTreeHeaderExt.BLOOM_PAGE,
+						bloom.write().pid);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		bloom = null;
+	}
+
+	/*
+	 * Count the entries in the leaves, adding each key to filter unless it is
+	 * null.
+	 */
+	private int leafKeys(BloomFilter filter) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return 0;
+
+		RID rid = new RID();
+		KeyDataEntry entry;
+		int n = 0;
+		BTLeafPage pageLeaf = findRunStart(null, rid);
+		while (pageLeaf != null) {
+			for (entry = pageLeaf.getFirst(rid); entry != null; entry = pageLeaf
+					.getNext(rid)) {
+				if (filter != null)
+					filter.add(entry.key);
+				n++;
+			}
+			PageId nextpage = pageLeaf.getNextPage();
+			unpinPage(pageLeaf.getCurPage());
+			pageLeaf = nextpage.pid == INVALID_PAGE ? null : new BTLeafPage(
+					pinPage(nextpage), headerPage.get_keyType());
+		}
+		return n;
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
+	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
+	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
+	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
+	 * scan from lo_key to hi_key
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException
+
+	{
+		applyWriteBuffer();
+		BTRangeScan scan = postingLists() ? new BTPostingScan()
+				: includedLength() > 0 ? new BTCoveringScan()
+						: new BTRangeScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE
+				|| isAbsentKey(lo_key, hi_key)) {
 			scan.leafPage = null;
 			return scan;
 		}
 
 		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
+		scan.hikey = hi_key;
+		scan.keyOrder = keyOrder;
 		scan.didfirst = false;
 		scan.deletedcurrent = false;
 		scan.curRid = new RID();
@@ -1138,6 +3484,327 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return scan;
 	}
 
+	/**
+	 * create a scan with given keys and order. Order.ASCENDING gives the same
+	 * scan as new_scan(lo_key, hi_key). Order.DESCENDING starts at the
+	 * right-most key <= hi_key and follows the prev-page links of the leaves
+	 * until it passes lo_key; null bounds mean the same as for new_scan.
+	 *
+	 * @param lo_key
+	 *            the smallest key to return. Input parameter.
+	 * @param hi_key
+	 *            the largest key to return. Input parameter.
+	 * @param order
+	 *            Order.ASCENDING or Order.DESCENDING. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public IndexFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int order)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException
+
+	{
+		applyWriteBuffer();
+		if (order != Order.DESCENDING)
+			return new_scan(lo_key, hi_key);
+
+		BTReverseFileScan scan = new BTReverseFileScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE
+				|| isAbsentKey(lo_key, hi_key)) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		scan.treeFilename = dbname;
+		scan.startkey = lo_key;
+		scan.didfirst = false;
+		scan.dirty = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.keyOrder = keyOrder;
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.postings = postingLists();
+		scan.bfile = this;
+
+		// this sets up scan at the last position, ready for iteration
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
+		return scan;
+	}
+
+	/**
+	 * create a reusable batch scan over an integer key index. The bounds
+	 * follow the same cases as new_scan. The returned scan fills caller
+	 * supplied arrays and can be repositioned with BTBatchScan.reset().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the index does not have integer keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTBatchScan new_batch_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null, "batch scan needs integer keys");
+
+		BTBatchScan scan = new BTBatchScan(this);
+		scan.reset(lo_key, hi_key);
+		return scan;
+	}
+
+	/**
+	 * create a scan over a set of key ranges, e.g. the one-key ranges of an
+	 * IN-list. The ranges are visited left to right in one pass: a range that
+	 * starts on the current leaf continues from it, any other range descends
+	 * from the lowest index page of the previous descent that covers its low
+	 * key instead of from the root. Overlapping ranges are merged.
+	 *
+	 * @param ranges
+	 *            the key ranges to scan. Input parameter.
+	 * @return the scan, positioned before the first entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                held inserts could not be applied
+	 */
+	public BTMultiRangeScan multiScan(SortedSet<KeyRange> ranges)
+			throws IOException, IteratorException {
+		applyWriteBuffer();
+		return new BTMultiRangeScan(this, ranges);
+	}
+
+	/**
+	 * create an index nested-loop join of the given outer entries with the
+	 * entries of this index. The outer entries are sorted by key and their
+	 * keys probed in one multiScan, so no probe descends from the root again
+	 * and each leaf is read once.
+	 *
+	 * @param outer
+	 *            the outer entries, e.g. <key, rid> of the outer records.
+	 *            Input parameter.
+	 * @return the join, positioned before the first result
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                held inserts could not be applied
+	 */
+	public BTIndexJoin indexJoin(Collection<KeyDataEntry> outer)
+			throws IOException, IteratorException {
+		return new BTIndexJoin(this, outer);
+	}
+
+	/**
+	 * create a read-only scan that sees the index as it is now, however it is
+	 * changed while the scan runs. The bounds follow the same cases as
+	 * new_scan. The buffer manager must be a VersionedBufMgr; the scan keeps
+	 * a snapshot open until it reaches its end or DestroyBTreeFileScan() is
+	 * called, so it should not be left open.
+	 *
+	 * The scan may be read on another thread while this thread changes the
+	 * index: VersionedBufMgr pins and unpins pages under
+	 * LeafCopyCursor.bmLock(). It must be created between changes, not by
+	 * another thread while an insert or delete is under way.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                the buffer manager is not a VersionedBufMgr
+	 */
+	public BTSnapshotScan new_snapshot_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, ConstructPageException {
+		try {
+			applyWriteBuffer();
+		} catch (IteratorException e) {
+			throw new ConstructPageException(e, "apply write buffer failed");
+		}
+		return new BTSnapshotScan(this, lo_key, hi_key);
+	}
+
+	/**
+	 * Scan the range [lo_key, hi_key] with up to `parallelism' threads. The
+	 * range is cut into that many partitions at separator keys read from the
+	 * upper index levels, and the result is a parallel stream whose
+	 * spliterator hands out whole partitions, so each partition is read by
+	 * its own fork-join task. The stream keeps key order when collected in
+	 * encounter order. Null bounds mean the same as for new_scan.
+	 *
+	 * The buffer manager is not thread safe: while the stream runs, other
+	 * threads may only use it under LeafCopyCursor.bmLock().
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param parallelism
+	 *            number of partitions to cut the range into. Input parameter.
+	 * @return a parallel stream of the entries in the range
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public Stream<KeyDataEntry> parallelScan(KeyClass lo_key, KeyClass hi_key,
+			int parallelism) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		applyWriteBuffer();
+		List<KeyClass> separators;
+
+		synchronized (LeafCopyCursor.bmLock()) {
+			separators = rangeSeparators(lo_key, hi_key, parallelism - 1);
+		}
+
+		KeyClass[] bounds = new KeyClass[separators.size() + 2];
+		bounds[0] = lo_key;
+		for (int i = 0; i < separators.size(); i++)
+			bounds[i + 1] = separators.get(i);
+		bounds[bounds.length - 1] = hi_key;
+
+		return StreamSupport.stream(new BTRangeSpliterator(this, bounds, 0,
+				bounds.length - 1), true);
+	}
+
+	/*
+	 * Pick up to `want' separator keys strictly inside (lo_key, hi_key],
+	 * evenly spread over the range. Index levels are read top down, visiting
+	 * only children that overlap the range, until a level yields enough keys
+	 * or the next level is the leaf level.
+	 */
+	private List<KeyClass> rangeSeparators(KeyClass lo_key, KeyClass hi_key,
+			int want) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		List<KeyClass> keys = new ArrayList<KeyClass>();
+		List<PageId> level = new ArrayList<PageId>();
+		int keyType = headerPage.get_keyType();
+
+		if (want <= 0 || headerPage.get_rootId().pid == INVALID_PAGE)
+			return keys;
+
+		level.add(headerPage.get_rootId());
+		while (!level.isEmpty() && keys.size() < want) {
+			List<KeyClass> levelKeys = new ArrayList<KeyClass>();
+			List<PageId> children = new ArrayList<PageId>();
+
+			for (PageId pageno : level) {
+				Page page = pinPage(pageno);
+				if (new BTSortedPage(page, keyType).getType() != NodeType.INDEX) {
+					unpinPage(pageno);
+					return keys; // reached the leaves
+				}
+
+				BTIndexPage pageIndex = new BTIndexPage(page, keyType);
+				RID rid = new RID();
+				KeyClass lowFence = null;
+				PageId child = pageIndex.getPrevPage();
+				for (KeyDataEntry entry = pageIndex.getFirst(rid); entry != null; entry = pageIndex
+						.getNext(rid)) {
+					if (overlaps(lowFence, entry.key, lo_key, hi_key))
+						children.add(child);
+					if ((lo_key == null || keyOrder.keyCompare(entry.key,
+							lo_key) > 0)
+							&& (hi_key == null || keyOrder.keyCompare(
+									entry.key, hi_key) <= 0))
+						levelKeys.add(entry.key);
+					lowFence = entry.key;
+					child = ((IndexData) entry.data).getData();
+				}
+				if (overlaps(lowFence, null, lo_key, hi_key))
+					children.add(child);
+
+				unpinPage(pageno);
+			}
+
+			keys = levelKeys;
+			level = children;
+		}
+
+		if (keys.size() <= want)
+			return keys;
+
+		List<KeyClass> picked = new ArrayList<KeyClass>();
+		for (int i = 1; i <= want; i++) {
+			KeyClass key = keys.get(i * keys.size() / (want + 1));
+			if (picked.isEmpty()
+					|| keyOrder.keyCompare(picked.get(picked.size() - 1), key) < 0)
+				picked.add(key);
+		}
+		return picked;
+	}
+
+	/*
+	 * true if the child range [lowFence, highFence) overlaps [lo_key, hi_key];
+	 * null fences and bounds are unbounded.
+	 */
+	private boolean overlaps(KeyClass lowFence, KeyClass highFence,
+			KeyClass lo_key, KeyClass hi_key) throws KeyNotMatchException {
+		return (lowFence == null || hi_key == null || keyOrder.keyCompare(
+				lowFence, hi_key) <= 0)
+				&& (highFence == null || lo_key == null || keyOrder.keyCompare(
+						highFence, lo_key) > 0);
+	}
+
+	/**
+	 * Check the structure of the tree: page types, key order, keys within the
+	 * fences of the separators above them, the prev/next links of the leaf
+	 * chain and, if kept, the subtree counts. The tree is read level by level
+	 * with the pages of each level read in parallel; it must not be changed
+	 * while the check runs.
+	 *
+	 * @return a description of each problem found, empty for a sound tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public List<String> verify() throws IOException {
+		return new BTreeVerifier(this, subtreeCounts()).run().problems();
+	}
+
+	/**
+	 * Collect the height, pages and fill per level, empty leaves and
+	 * key/data bytes of the tree, reading it the same way as verify().
+	 *
+	 * @return the statistics of the tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTreeStats stats() throws IOException {
+		return new BTreeVerifier(this, false).run().stats();
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
@@ -0,0 +1,84 @@
+/*
+ * @(#) BTreeHeaderExt.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTreeHeaderExt.java Additional fields of the B+ tree header page.
+ * BTreeHeaderPage keeps its own fields in the lengths of slots 1 to 3 of the
+ * otherwise unused slot directory; the fields here take the slots after
+ * those, one int per slot split over its length and offset shorts. A magic
+ * value in the first of them marks headers that carry these fields, so the
+ * headers of older files read back as all defaults.
+ */
+final class BTreeHeaderExt implements GlobalConst {
+
+	private static final int EXT_MAGIC = 0x4254;
+
+	static final int MAGIC = 4;
+	/** 1 if index pages keep per-child subtree entry counts */
+	static final int SUBTREE_COUNTS = 5;
+	/** 1 if the index keeps a Bloom filter over its keys */
+	static final int BLOOM_FILTER = 6;
+	/** first page of the saved filter, INVALID_PAGE if it is not saved */
+	static final int BLOOM_PAGE = 7;
+	/** number of keys added to the filter since it was last built */
+	static final int BLOOM_KEYS = 8;
+	/** first page of the extent map, INVALID_PAGE if pages are not taken from extents */
+	static final int EXTENT_MAP = 9;
+	/** 1 if the file is an AppendOnlyBTreeFile */
+	static final int APPEND_ONLY = 10;
+	/** number of inserts held back and applied together, 0 for none */
+	static final int WRITE_BUFFER = 11;
+	/** number of entries of a key that turn them into a posting list, 0 for none */
+	static final int POSTING_LISTS = 12;
+	/** 1 if insert refuses keys already in the index */
+	static final int UNIQUE = 13;
+
+	/** most bytes of included values a leaf entry takes, 0 for none */
+	static final int INCLUDED = 14;
+
+	private static final int[] DEFAULTS = { 0, 0, 0, 0, EXT_MAGIC, 0, 0,
+			INVALID_PAGE, 0, INVALID_PAGE, 0, 0, 0, 0, 0 };
+
+	private BTreeHeaderExt() {
+	}
+
+	/**
+	 * Write the magic value and the defaults of all fields.
+	 */
+	static void init(BTreeHeaderPage header) throws IOException {
+		for (int field = MAGIC; field < DEFAULTS.length; field++)
+			put(header, field, DEFAULTS[field]);
+	}
+
+	static int get(BTreeHeaderPage header, int field) throws IOException {
+		if (read(header, MAGIC) != EXT_MAGIC)
+			return DEFAULTS[field];
+		return read(header, field);
+	}
+
+	static void set(BTreeHeaderPage header, int field, int value)
+			throws IOException {
+		if (read(header, MAGIC) != EXT_MAGIC)
+			init(header);
+		put(header, field, value);
+	}
+
+	private static int read(BTreeHeaderPage header, int field)
+			throws IOException {
+		return (header.getSlotLength(field) << 16)
+				| (header.getSlotOffset(field) & 0xffff);
+	}
+
+	private static void put(BTreeHeaderPage header, int field, int value)
+			throws IOException {
+		header.setSlot(field, value >> 16, value & 0xffff);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * @(#) BTreeStats.java
+ *
+ */
+
+package btree;
+
+/**
+ * BTreeStats.java Shape and space usage of a B+ tree, as collected by
+ * BTreeFile.stats(). Level 0 is the root, level height - 1 the leaves. Fill
+ * is the fraction of the space behind the page header that is in use.
+ */
+public class BTreeStats {
+
+	/** number of levels, 0 for an empty tree */
+	public final int height;
+	/** number of pages on each level */
+	public final int[] pagesPerLevel;
+	/** average fill of the pages on each level */
+	public final double[] fillPerLevel;
+	/** number of leaves without entries */
+	public final int emptyLeaves;
+	/** number of leaf entries */
+	public final long entries;
+	/** bytes of keys in the leaves */
+	public final long keyBytes;
+	/** bytes of rids in the leaves */
+	public final long dataBytes;
+
+	BTreeStats(int[] pagesPerLevel, double[] fillPerLevel, int emptyLeaves,
+			long entries, long keyBytes, long dataBytes) {
+		this.height = pagesPerLevel.length;
+		this.pagesPerLevel = pagesPerLevel;
+		this.fillPerLevel = fillPerLevel;
+		this.emptyLeaves = emptyLeaves;
+		this.entries = entries;
+		this.keyBytes = keyBytes;
+		this.dataBytes = dataBytes;
+	}
+
+	/**
+	 * @return the number of pages of the tree, not counting the header page
+	 */
+	public int pages() {
+		int n = 0;
+		for (int pages : pagesPerLevel)
+			n += pages;
+		return n;
+	}
+
+	/**
+	 * @return the average fill of the leaves, 0 for an empty tree
+	 */
+	public double leafFill() {
+		return height == 0 ? 0 : fillPerLevel[height - 1];
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		String lineSep = System.getProperty("line.separator");
+		sb.append("height ").append(height).append(", ").append(entries)
+				.append(" entries, ").append(keyBytes).append(" key bytes, ")
+				.append(dataBytes).append(" data bytes, ").append(emptyLeaves)
+				.append(" empty leaves").append(lineSep);
+		for (int level = 0; level < height; level++)
+			sb.append("level ").append(level).append(": ")
+					.append(pagesPerLevel[level]).append(" pages, fill ")
+					.append(String.format("%.2f", fillPerLevel[level]))
+					.append(lineSep);
+		return sb.toString();
+	}
+}
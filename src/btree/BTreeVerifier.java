@@ -0,0 +1,353 @@
+/*
+ * @(#) BTreeVerifier.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+import java.util.stream.*;
+
+import diskmgr.*;
+import global.*;
+import heap.HFPage;
+
+/**
+ * BTreeVerifier.java One pass over a B+ tree that checks its structure and
+ * collects its statistics. The tree is read level by level; the pages of a
+ * level are read in parallel on the common fork-join pool, each from a copy
+ * taken under LeafCopyCursor.bmLock(), and the level is checked as a whole
+ * before the next one is read.
+ *
+ * Every page is checked for its type, its own page id, key order, key size
+ * and for keys outside the fences of the separators above it (both fences
+ * inclusive, as duplicates may sit on either side). Each level must hold
+ * only index or only leaf pages, no page may be reached twice, the leaves
+ * must be linked left to right in tree order both ways, and if the tree
+ * keeps subtree counts they must match the entries below each child.
+ */
+final class BTreeVerifier implements GlobalConst {
+
+	private static final int SPACE = MINIBASE_PAGESIZE - HFPage.DPFIXED;
+
+	/*
+	 * A page to visit, with the fences its keys must lie within. A null fence
+	 * is unbounded.
+	 */
+	private static class Node {
+		final int pid;
+		final KeyClass low;
+		final KeyClass high;
+
+		Node(int pid, KeyClass low, KeyClass high) {
+			this.pid = pid;
+			this.low = low;
+			this.high = high;
+		}
+	}
+
+	/*
+	 * What was read from one page.
+	 */
+	private static class Visit {
+		final Node node;
+		final List<String> problems = new ArrayList<String>();
+		short type;
+		int prev;
+		int next;
+		int slots;
+		int free;
+		long keyBytes;
+		KeyClass first; // smallest and largest key, null if none
+		KeyClass last;
+		final List<Node> children = new ArrayList<Node>();
+		int[] childCounts; // subtree counts from the count page, or null
+		long entries; // entries below this page, filled in bottom up
+
+		Visit(Node node) {
+			this.node = node;
+		}
+	}
+
+	private final int keyType;
+	private final KeyComparator keyOrder; // the order the pages are written in
+	private final int maxKeySize;
+	private final int maxIncluded; // bytes of included values a leaf entry may take
+	private final boolean counts;
+	private final int root;
+
+	private final List<String> problems = new ArrayList<String>();
+	private final List<List<Visit>> levels = new ArrayList<List<Visit>>();
+
+	BTreeVerifier(BTreeFile bfile, boolean counts)
+			throws java.io.IOException {
+		BTreeHeaderPage header = bfile.getHeaderPage();
+		this.keyType = header.get_keyType();
+		this.keyOrder = KeyComparator.of(keyType);
+		this.maxKeySize = header.get_maxKeySize();
+		this.maxIncluded = BTreeHeaderExt.get(header, BTreeHeaderExt.INCLUDED);
+		this.counts = counts;
+		this.root = header.get_rootId().pid;
+	}
+
+	/**
+	 * Read and check the whole tree.
+	 */
+	BTreeVerifier run() {
+		if (root == INVALID_PAGE)
+			return this;
+
+		Set<Integer> seen = new HashSet<Integer>();
+		List<Node> level = Collections.singletonList(new Node(root, null, null));
+		while (!level.isEmpty()) {
+			List<Visit> visits = level.parallelStream().map(this::visit)
+					.collect(Collectors.toList());
+			levels.add(visits);
+
+			boolean index = false, leaf = false;
+			List<Node> below = new ArrayList<Node>();
+			for (Visit visit : visits) {
+				problems.addAll(visit.problems);
+				index |= visit.type == NodeType.INDEX;
+				leaf |= visit.type == NodeType.LEAF;
+				for (Node child : visit.children) {
+					if (seen.add(child.pid))
+						below.add(child);
+					else
+						problems.add("page " + child.pid
+								+ " is reached more than once");
+				}
+			}
+
+			if (index && leaf) {
+				problems.add("level " + (levels.size() - 1)
+						+ " holds both index and leaf pages");
+				break;
+			}
+			if (leaf)
+				checkLeafChain(visits);
+			level = below;
+		}
+
+		countEntries();
+		return this;
+	}
+
+	/**
+	 * @return the problems found, empty for a sound tree
+	 */
+	List<String> problems() {
+		return problems;
+	}
+
+	BTreeStats stats() {
+		int height = levels.size();
+		int[] pages = new int[height];
+		double[] fill = new double[height];
+		int emptyLeaves = 0;
+		long entries = 0, keyBytes = 0, dataBytes = 0;
+
+		for (int level = 0; level < height; level++) {
+			List<Visit> visits = levels.get(level);
+			long used = 0;
+			for (Visit visit : visits) {
+				used += SPACE - visit.free;
+				if (visit.type == NodeType.LEAF) {
+					if (visit.slots == 0)
+						emptyLeaves++;
+					entries += visit.slots;
+					keyBytes += visit.keyBytes;
+					dataBytes += 8L * visit.slots;
+				}
+			}
+			pages[level] = visits.size();
+			fill[level] = visits.isEmpty() ? 0 : (double) used
+					/ ((long) SPACE * visits.size());
+		}
+		return new BTreeStats(pages, fill, emptyLeaves, entries, keyBytes,
+				dataBytes);
+	}
+
+	/*
+	 * Read one page and check what can be checked on it alone.
+	 */
+	private Visit visit(Node node) {
+		Visit visit = new Visit(node);
+		byte[] data;
+		try {
+			data = copy(node.pid);
+		} catch (Exception e) {
+			visit.problems.add("page " + node.pid + " cannot be read: " + e);
+			return visit;
+		}
+
+		visit.type = RawPage.type(data);
+		visit.prev = RawPage.prevPage(data);
+		visit.next = RawPage.nextPage(data);
+		visit.slots = RawPage.slotCount(data);
+		visit.free = RawPage.freeSpace(data);
+
+		if (visit.type != NodeType.INDEX && visit.type != NodeType.LEAF) {
+			visit.problems.add("page " + node.pid + " has type " + visit.type);
+			visit.slots = 0;
+			return visit;
+		}
+		if (RawPage.curPage(data) != node.pid)
+			visit.problems.add("page " + node.pid + " claims to be page "
+					+ RawPage.curPage(data));
+
+		int dataLength = visit.type == NodeType.LEAF ? 8 : 4;
+		KeyClass low = node.low;
+		if (visit.type == NodeType.INDEX)
+			visit.children.add(new Node(visit.prev, node.low, null));
+
+		for (int slot = 0; slot < visit.slots; slot++) {
+			KeyDataEntry entry;
+			try {
+				entry = BT.getEntryFromBytes(data,
+						RawPage.slotOffset(data, slot),
+						RawPage.slotLength(data, slot), keyType, visit.type);
+				int keyLength = RawPage.slotLength(data, slot) - dataLength;
+				if (visit.type == NodeType.LEAF) {
+					int included = keyLength - BT.getKeyLength(entry.key);
+					if (included > maxIncluded)
+						visit.problems.add("page " + node.pid + " slot " + slot
+								+ " has " + included + " bytes of included values");
+					keyLength -= included;
+				}
+				if (keyLength > maxKeySize)
+					visit.problems.add("page " + node.pid + " slot " + slot
+							+ " has a key of " + keyLength + " bytes");
+				visit.keyBytes += keyLength;
+
+				if (low != null && keyOrder.keyCompare(entry.key, low) < 0)
+					visit.problems.add("page " + node.pid + " slot " + slot
+							+ ": key " + entry.key + (slot == 0 ? " below fence "
+									: " below previous key ") + low);
+				if (node.high != null
+						&& keyOrder.keyCompare(entry.key, node.high) > 0)
+					visit.problems.add("page " + node.pid + " slot " + slot
+							+ ": key " + entry.key + " above fence "
+							+ node.high);
+			} catch (Exception e) {
+				visit.problems.add("page " + node.pid + " slot " + slot
+						+ " cannot be decoded: " + e);
+				continue;
+			}
+
+			if (visit.first == null)
+				visit.first = entry.key;
+			visit.last = entry.key;
+			low = entry.key;
+
+			if (visit.type == NodeType.INDEX) {
+				int last = visit.children.size() - 1;
+				Node left = visit.children.get(last);
+				visit.children.set(last, new Node(left.pid, left.low,
+						entry.key));
+				visit.children.add(new Node(((IndexData) entry.data).getData().pid,
+						entry.key, null));
+			}
+		}
+
+		if (visit.type == NodeType.INDEX) {
+			// the last child is bounded by this page's own high fence
+			int last = visit.children.size() - 1;
+			Node right = visit.children.get(last);
+			visit.children.set(last, new Node(right.pid, right.low, node.high));
+
+			if (counts)
+				readCounts(visit);
+		}
+		return visit;
+	}
+
+	private void readCounts(Visit visit) {
+		if (visit.next == INVALID_PAGE) {
+			visit.problems.add("index page " + visit.node.pid
+					+ " has no count page");
+			return;
+		}
+		try {
+			synchronized (LeafCopyCursor.bmLock()) {
+				CountPage countPage = CountPage.pin(new PageId(visit.next));
+				visit.childCounts = new int[visit.children.size()];
+				for (int i = 0; i < visit.childCounts.length; i++)
+					visit.childCounts[i] = countPage.get(new PageId(
+							visit.children.get(i).pid));
+				countPage.unpin(false);
+			}
+		} catch (Exception e) {
+			visit.problems.add("count page " + visit.next + " of page "
+					+ visit.node.pid + " cannot be read: " + e);
+		}
+	}
+
+	/*
+	 * The leaves, in tree order, must form one doubly linked chain.
+	 */
+	private void checkLeafChain(List<Visit> leaves) {
+		KeyClass last = null;
+		for (int i = 0; i < leaves.size(); i++) {
+			Visit leaf = leaves.get(i);
+			int prev = i == 0 ? INVALID_PAGE : leaves.get(i - 1).node.pid;
+			int next = i == leaves.size() - 1 ? INVALID_PAGE : leaves
+					.get(i + 1).node.pid;
+			if (leaf.prev != prev)
+				problems.add("leaf " + leaf.node.pid + " links back to "
+						+ leaf.prev + " instead of " + prev);
+			if (leaf.next != next)
+				problems.add("leaf " + leaf.node.pid + " links on to "
+						+ leaf.next + " instead of " + next);
+
+			try {
+				if (last != null && leaf.first != null
+						&& keyOrder.keyCompare(leaf.first, last) < 0)
+					problems.add("leaf " + leaf.node.pid + " starts with key "
+							+ leaf.first + " below " + last
+							+ " on the leaf before it");
+			} catch (KeyNotMatchException e) {
+				problems.add("leaf " + leaf.node.pid + ": " + e);
+			}
+			if (leaf.last != null)
+				last = leaf.last;
+		}
+	}
+
+	/*
+	 * Sum up the entries below every page from the leaves up, and compare
+	 * them with the subtree counts kept in the index pages.
+	 */
+	private void countEntries() {
+		Map<Integer, Long> below = new HashMap<Integer, Long>();
+		for (int level = levels.size() - 1; level >= 0; level--) {
+			for (Visit visit : levels.get(level)) {
+				if (visit.type == NodeType.LEAF)
+					visit.entries = visit.slots;
+				for (int i = 0; i < visit.children.size(); i++) {
+					Long n = below.get(visit.children.get(i).pid);
+					if (n == null)
+						continue; // not read
+					visit.entries += n;
+					if (visit.childCounts != null && visit.childCounts[i] != n)
+						problems.add("index page " + visit.node.pid
+								+ " counts " + visit.childCounts[i]
+								+ " entries below page "
+								+ visit.children.get(i).pid + " instead of " + n);
+				}
+				below.put(visit.node.pid, visit.entries);
+			}
+		}
+	}
+
+	private static byte[] copy(int pid) throws Exception {
+		synchronized (LeafCopyCursor.bmLock()) {
+			PageId pageno = new PageId(pid);
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			byte[] data = page.getpage().clone();
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			return data;
+		}
+	}
+}
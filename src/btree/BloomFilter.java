@@ -0,0 +1,183 @@
+/*
+ * @(#) BloomFilter.java
+ *
+ */
+
+package btree;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BloomFilter.java A blocked Bloom filter over the keys of an index. All bits
+ * of one key fall into a single 512 bit block, so a probe touches one cache
+ * line. Sized at 10 bits per key with 7 bits set per key it answers about 1%
+ * of the probes for absent keys with "maybe".
+ *
+ * On disk the filter is a chain of pages, each holding the int page id of
+ * the next page, the int number of words on this page and then the words.
+ */
+class BloomFilter implements GlobalConst {
+
+	private static final int BLOCK_WORDS = 8;
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+	private static final int PAGE_WORDS = (MINIBASE_PAGESIZE - 8) / 8;
+
+	private final long[] words;
+	private final int blocks;
+
+	/**
+	 * An empty filter sized for the given number of keys.
+	 */
+	BloomFilter(int expectedKeys) {
+		long bits = Math.max(1L, (long) expectedKeys) * BITS_PER_KEY;
+		blocks = (int) Math.max(1, (bits + 511) / 512);
+		words = new long[blocks * BLOCK_WORDS];
+	}
+
+	private BloomFilter(long[] words) {
+		this.words = words;
+		this.blocks = words.length / BLOCK_WORDS;
+	}
+
+	/**
+	 * @return the number of keys the filter was sized for
+	 */
+	int capacity() {
+		return words.length * 64 / BITS_PER_KEY;
+	}
+
+	void add(KeyClass key) {
+		long h = hash(key);
+		int base = block(h);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & 511;
+			words[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false only if the key was never added
+	 */
+	boolean mightContain(KeyClass key) {
+		long h = hash(key);
+		int base = block(h);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & 511;
+			if ((words[base + (bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private int block(long h) {
+		return (int) ((((h >>> 40) & 0xffffffL) * blocks) >>> 24) * BLOCK_WORDS;
+	}
+
+	private static long hash(KeyClass key) {
+		long h;
+		if (key instanceof IntegerKey)
+			h = ((IntegerKey) key).getKey().intValue();
+		else
+			h = ((StringKey) key).getKey().hashCode() * 0x9e3779b97f4a7c15L
+					+ ((StringKey) key).getKey().length();
+		// murmur3 fmix64
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Write the filter to a new chain of pages.
+	 *
+	 * @return the id of the first page
+	 */
+	PageId write() throws ConstructPageException, UnpinPageException {
+		PageId first = new PageId(INVALID_PAGE);
+		try {
+			// written back to front so each page knows its successor
+			int pages = (words.length + PAGE_WORDS - 1) / PAGE_WORDS;
+			for (int p = pages - 1; p >= 0; p--) {
+				Page page = new Page();
+				PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+				if (pageno == null)
+					throw new ConstructPageException(null, "new page failed");
+				byte[] data = page.getpage();
+				int from = p * PAGE_WORDS;
+				int n = Math.min(PAGE_WORDS, words.length - from);
+				RawPage.setInt(first.pid, data, 0);
+				RawPage.setInt(n, data, 4);
+				for (int i = 0; i < n; i++) {
+					RawPage.setInt((int) (words[from + i] >>> 32), data, 8 + 8 * i);
+					RawPage.setInt((int) words[from + i], data, 12 + 8 * i);
+				}
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				first = pageno;
+			}
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "writing bloom filter failed");
+		}
+		return first;
+	}
+
+	/**
+	 * Read a filter written by write().
+	 */
+	static BloomFilter read(PageId first) throws PinPageException {
+		try {
+			long[] words = new long[0];
+			PageId pageno = new PageId(first.pid);
+			while (pageno.pid != INVALID_PAGE) {
+				Page page = new Page();
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				byte[] data = page.getpage();
+				int n = RawPage.getInt(data, 4);
+				int from = words.length;
+				long[] grown = new long[from + n];
+				System.arraycopy(words, 0, grown, 0, from);
+				words = grown;
+				for (int i = 0; i < n; i++)
+					words[from + i] = ((long) RawPage.getInt(data, 8 + 8 * i) << 32)
+							| (RawPage.getInt(data, 12 + 8 * i) & 0xffffffffL);
+				PageId next = new PageId(RawPage.getInt(data, 0));
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				pageno = next;
+			}
+			return new BloomFilter(words);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "reading bloom filter failed");
+		}
+	}
+
+	/**
+	 * Free a chain of pages written by write().
+	 */
+	static void free(PageId first) throws FreePageException {
+		try {
+			PageId pageno = new PageId(first.pid);
+			while (pageno.pid != INVALID_PAGE) {
+				Page page = new Page();
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				PageId next = new PageId(RawPage.getInt(page.getpage(), 0));
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				SystemDefs.JavabaseBM.freePage(pageno);
+				pageno = next;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * @(#) ChecksumDB.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * ChecksumDB.java A database that stamps every page with a CRC32C when the
+ * buffer manager writes it back and checks the stamp when the page is read
+ * again, so that a torn or otherwise damaged page is reported on the read
+ * instead of being handed to the B+ tree.
+ *
+ * The page format has no room for a trailer, so the stamps are kept in a
+ * side file next to the database, two ints per page: the stamp of the page
+ * as last written and the one before it. The side file is mapped into
+ * memory, so a stamp is stored without a system call, and the stamps of a
+ * write are stored before the page itself is written. A page that matches
+ * either stamp is accepted: a crash between the two writes leaves a page
+ * that matches its previous stamp, while a torn page matches neither. Only
+ * the first stamped write of a page has no previous stamp to fall back on.
+ * Neither file is synced, so after a crash of the operating system, rather
+ * than of the process, either write may be lost.
+ *
+ * A page is checked only on its first read by this process; once it has
+ * been read or written here its later reads skip the check. Pages without a
+ * stamp (never written through a ChecksumDB, or whose stamp happens to be
+ * 0) are not checked.
+ */
+public class ChecksumDB extends VectoredDB {
+
+	private static final String SUFFIX = ".crc";
+	private static final int STAMP_SIZE = 8; // current, previous
+
+	private RandomAccessFile stampFile;
+	private MappedByteBuffer stamps; // per page: current, previous stamp
+	private final BitSet validated = new BitSet();
+	private final CRC32C crc = new CRC32C();
+
+	/**
+	 * Reopen the database of SystemDefs as a ChecksumDB and make it the one
+	 * the buffer manager reads and writes pages through. Call it right after
+	 * creating SystemDefs, while no page is pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                error from the lower layer
+	 */
+	public static void install() throws IOException, FileIOException,
+			DiskMgrException {
+		install(new ChecksumDB());
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		openStamps(false);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		openStamps(true);
+	}
+
+	private void openStamps(boolean create) throws IOException {
+		stampFile = new RandomAccessFile(db_name() + SUFFIX, "rw");
+		long length = (long) db_num_pages() * STAMP_SIZE;
+		if (create)
+			stampFile.setLength(0);
+		if (stampFile.length() < length)
+			stampFile.setLength(length);
+		stamps = stampFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				length);
+		validated.clear();
+	}
+
+	public void closeDB() throws IOException {
+		closeStamps();
+		super.closeDB();
+	}
+
+	public void DBDestroy() throws IOException {
+		closeStamps();
+		super.DBDestroy();
+		new File(db_name() + SUFFIX).delete();
+	}
+
+	private void closeStamps() throws IOException {
+		if (stampFile != null) {
+			stampFile.close();
+			stampFile = null;
+			stamps = null;
+		}
+	}
+
+	protected void pageRead(int pid, Page page) throws FileIOException {
+		super.pageRead(pid, page);
+
+		if (validated.get(pid))
+			return;
+		int stamp = stamps != null && pid < db_num_pages() ? stamps
+				.getInt(pid * STAMP_SIZE) : 0;
+		if (stamp != 0) {
+			int sum = checksum(page.getpage());
+			if (sum != stamp) {
+				if (sum != stamps.getInt(pid * STAMP_SIZE + 4))
+					throw new FileIOException(null, "page " + pid
+							+ " does not match its checksum, torn write?");
+				// the last write of the page never reached the disk
+				stamps.putInt(pid * STAMP_SIZE, sum);
+			}
+		}
+		validated.set(pid);
+	}
+
+	/*
+	 * Stamp the pages before they are written, keeping the stamps they
+	 * had as the previous ones.
+	 */
+	protected void pagesWriting(int start, int n, Page[] pages)
+			throws IOException {
+		super.pagesWriting(start, n, pages);
+		if (stamps == null)
+			return; // still opening
+
+		for (int i = 0; i < n && start + i < db_num_pages(); i++) {
+			int at = (start + i) * STAMP_SIZE;
+			int stamp = checksum(pages[i].getpage());
+			int current = stamps.getInt(at);
+			if (current != stamp) {
+				stamps.putInt(at + 4, current);
+				stamps.putInt(at, stamp);
+			}
+		}
+	}
+
+	protected void pageWritten(int pid, Page page) throws IOException {
+		super.pageWritten(pid, page);
+		validated.set(pid);
+	}
+
+	/*
+	 * Forget the stamps of a page whose contents are no longer kept in its
+	 * slot, so that the old slot contents never pass as a lost write.
+	 */
+	void clearStamp(int pid) {
+		if (stamps != null && pid < db_num_pages())
+			stamps.putLong(pid * STAMP_SIZE, 0);
+	}
+
+	private int checksum(byte[] data) {
+		crc.reset();
+		crc.update(data, 0, MINIBASE_PAGESIZE);
+		return (int) crc.getValue();
+	}
+}
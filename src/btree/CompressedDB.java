@@ -0,0 +1,347 @@
+/*
+ * @(#) CompressedDB.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * CompressedDB.java A ChecksumDB that stores B+ tree leaf pages compressed.
+ * When the buffer manager writes back a leaf page that LeafCodec can shrink
+ * to at most three quarters of a page, the encoding goes to a store file
+ * next to the database instead of the page's fixed slot, and reading the
+ * page decodes it into the buffer frame. All other pages, and leaves that do
+ * not compress, are written as usual.
+ *
+ * The store is a file of 32 byte units. Each record takes a run of units
+ * and starts with the page id, a sequence number, the encoding length and a
+ * CRC32C over those and the encoding. A page is written to a new run before
+ * the run of its previous version is released, so after a crash the record
+ * with the highest sequence number holds the latest version; if that record
+ * fails its CRC, reading the page reports it as damaged, and the damaged
+ * record is kept until the page is written again so that a reopen reports
+ * it too.
+ *
+ * Released runs are merged with free neighbours and marked with a free
+ * header (page id -2 and the number of units of the run). A record takes
+ * the first free run that is large enough, and the rest of the run stays
+ * free. Free space at the end of the store is cut off, when it is released
+ * and when the store is opened.
+ *
+ * The fixed slots of compressed pages are never written, so the database
+ * file stays sparse there; a page that was once written uncompressed keeps
+ * its old slot contents on disk, and its checksum stamps are cleared.
+ */
+public class CompressedDB extends ChecksumDB {
+
+	private static final String SUFFIX = ".cz";
+	private static final int UNIT = 32;
+	private static final int RECORD_HEADER = 14; // pid, seq, length, crc
+	private static final int MAX_STORED = MINIBASE_PAGESIZE * 3 / 4;
+	private static final int FREE = -2; // page id of a free run header
+
+	private RandomAccessFile store;
+	private final Map<Integer, int[]> records = new HashMap<Integer, int[]>(); // pid -> {unit, units}
+	private final Map<Integer, int[]> damaged = new HashMap<Integer, int[]>(); // pid -> damaged latest record
+	private final TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>(); // unit -> units of a free run
+	private int endUnit; // first unit past the last run
+	private int seq;
+
+	private final byte[] buf = new byte[RECORD_HEADER + MINIBASE_PAGESIZE];
+	private final byte[] freeHeader = new byte[8];
+	private final CRC32C crc = new CRC32C();
+
+	/**
+	 * Reopen the database of SystemDefs as a CompressedDB and make it the
+	 * one the buffer manager reads and writes pages through. Call it right
+	 * after creating SystemDefs, while no page is pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                error from the lower layer
+	 */
+	public static void install() throws IOException, FileIOException,
+			DiskMgrException {
+		install(new CompressedDB());
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		openStore(false);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		openStore(true);
+	}
+
+	/*
+	 * Find the latest record of every page and release all others, then cut
+	 * off the free space at the end.
+	 */
+	private void openStore(boolean create) throws IOException {
+		store = new RandomAccessFile(db_name() + SUFFIX, "rw");
+		if (create)
+			store.setLength(0);
+		records.clear();
+		damaged.clear();
+		free.clear();
+		seq = 0;
+
+		Map<Integer, Integer> latest = new HashMap<Integer, Integer>(); // pid -> seq
+		List<int[]> stale = new ArrayList<int[]>();
+		int units = (int) (store.length() / UNIT);
+		int unit = 0;
+		while (unit < units) {
+			store.seek((long) unit * UNIT);
+			int n = (int) Math.min(buf.length, store.length() - (long) unit * UNIT);
+			store.readFully(buf, 0, n);
+			int pid = RawPage.getInt(buf, 0);
+			int recSeq = RawPage.getInt(buf, 4);
+			int length = RawPage.getShort(buf, 8) & 0xffff;
+			if (pid == FREE) {
+				int run = recSeq >= 1 && recSeq <= units - unit ? recSeq : 1;
+				stale.add(new int[] { unit, run });
+				unit += run;
+				continue;
+			}
+			int run = runUnits(length);
+			if (length > MAX_STORED || unit + run > units) {
+				// not a record header, e.g. torn; skip a unit
+				stale.add(new int[] { unit, 1 });
+				unit++;
+				continue;
+			}
+
+			int[] record = new int[] { unit, run };
+			Integer seen = latest.get(pid);
+			if (pid < 0 || (seen != null && seen > recSeq)) {
+				stale.add(record);
+			} else {
+				seq = Math.max(seq, recSeq + 1);
+				if (seen != null) {
+					int[] older = records.remove(pid);
+					if (older == null)
+						older = damaged.remove(pid);
+					if (older != null)
+						stale.add(older);
+				}
+				latest.put(pid, recSeq);
+				if (RawPage.getInt(buf, 10) == checksum(buf, length))
+					records.put(pid, record);
+				else
+					damaged.put(pid, record);
+			}
+			unit += run;
+		}
+		endUnit = units;
+
+		for (int[] record : stale)
+			release(record);
+	}
+
+	public void closeDB() throws IOException {
+		closeStore();
+		super.closeDB();
+	}
+
+	public void DBDestroy() throws IOException {
+		closeStore();
+		super.DBDestroy();
+		new File(db_name() + SUFFIX).delete();
+	}
+
+	private void closeStore() throws IOException {
+		if (store != null) {
+			store.close();
+			store = null;
+		}
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		int pid = pageno.pid;
+		int[] record = records.get(pid);
+		if (record == null) {
+			if (damaged.containsKey(pid))
+				throw new FileIOException(null, "compressed page " + pid
+						+ " does not match its checksum, torn write?");
+			super.read_page(pageno, apage);
+			return;
+		}
+
+		int length = record[1] * UNIT;
+		store.seek((long) record[0] * UNIT);
+		store.readFully(buf, 0, Math.min(buf.length, length));
+		length = RawPage.getShort(buf, 8) & 0xffff;
+		if (RawPage.getInt(buf, 0) != pid
+				|| RawPage.getInt(buf, 10) != checksum(buf, length))
+			throw new FileIOException(null, "compressed page " + pid
+					+ " does not match its checksum, torn write?");
+		LeafCodec.decode(buf, RECORD_HEADER, length, apage.getpage());
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		int pid = pageno.pid;
+		byte[] packed = LeafCodec.encode(apage.getpage());
+		if (packed == null || packed.length > MAX_STORED) {
+			super.write_page(pageno, apage);
+			drop(pid);
+			return;
+		}
+
+		RawPage.setInt(pid, buf, 0);
+		RawPage.setInt(seq++, buf, 4);
+		buf[8] = (byte) (packed.length >>> 8);
+		buf[9] = (byte) packed.length;
+		System.arraycopy(packed, 0, buf, RECORD_HEADER, packed.length);
+		RawPage.setInt(checksum(buf, packed.length), buf, 10);
+
+		int[] record = allocate(runUnits(packed.length));
+		store.seek((long) record[0] * UNIT);
+		store.write(buf, 0, record[1] * UNIT);
+
+		int[] older = records.put(pid, record);
+		if (older != null)
+			release(older);
+		older = damaged.remove(pid);
+		if (older != null)
+			release(older);
+		clearStamp(pid);
+		ReadAheadBufMgr.pageWritten(pid);
+	}
+
+	/**
+	 * Read n consecutive pages; a run that holds compressed pages is read
+	 * page by page.
+	 */
+	public void readPages(PageId start, int n, Page[] dst)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		for (int i = 0; i < n; i++) {
+			int pid = start.pid + i;
+			if (records.containsKey(pid) || damaged.containsKey(pid)) {
+				for (i = 0; i < n; i++)
+					read_page(new PageId(start.pid + i), dst[i]);
+				return;
+			}
+		}
+		super.readPages(start, n, dst);
+	}
+
+	/**
+	 * Write n consecutive pages, each compressed or not on its own.
+	 */
+	public void writePages(PageId start, int n, Page[] src)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		for (int i = 0; i < n; i++)
+			write_page(new PageId(start.pid + i), src[i]);
+	}
+
+	public void deallocate_page(PageId start_page_num, int run_size)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		super.deallocate_page(start_page_num, run_size);
+		for (int i = 0; i < run_size; i++)
+			drop(start_page_num.pid + i);
+	}
+
+	public void deallocate_page(PageId start_page_num)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		super.deallocate_page(start_page_num);
+		drop(start_page_num.pid);
+	}
+
+	/*
+	 * Forget the compressed copy of a page.
+	 */
+	private void drop(int pid) throws IOException {
+		int[] record = records.remove(pid);
+		if (record != null)
+			release(record);
+		record = damaged.remove(pid);
+		if (record != null)
+			release(record);
+	}
+
+	/*
+	 * Take the first free run of at least the given units, leaving the rest
+	 * of it free, or append a run at the end of the store.
+	 */
+	private int[] allocate(int units) throws IOException {
+		for (Map.Entry<Integer, Integer> run : free.entrySet()) {
+			if (run.getValue() < units)
+				continue;
+			int start = run.getKey();
+			int rest = run.getValue() - units;
+			free.remove(start);
+			if (rest > 0) {
+				// marked before the record overwrites the old free header
+				free.put(start + units, rest);
+				markFree(start + units, rest);
+			}
+			return new int[] { start, units };
+		}
+		int[] record = new int[] { endUnit, units };
+		endUnit += units;
+		return record;
+	}
+
+	/*
+	 * Free a run, merged with the free runs next to it. A run that ends the
+	 * store is cut off instead.
+	 */
+	private void release(int[] record) throws IOException {
+		int start = record[0];
+		int units = record[1];
+		Map.Entry<Integer, Integer> before = free.lowerEntry(start);
+		if (before != null && before.getKey() + before.getValue() == start) {
+			free.remove(before.getKey());
+			start = before.getKey();
+			units += before.getValue();
+		}
+		Integer after = free.remove(start + units);
+		if (after != null)
+			units += after;
+
+		if (start + units >= endUnit) {
+			endUnit = start;
+			store.setLength((long) endUnit * UNIT);
+			return;
+		}
+		free.put(start, units);
+		markFree(start, units);
+	}
+
+	private void markFree(int start, int units) throws IOException {
+		RawPage.setInt(FREE, freeHeader, 0);
+		RawPage.setInt(units, freeHeader, 4);
+		store.seek((long) start * UNIT);
+		store.write(freeHeader);
+	}
+
+	private static int runUnits(int length) {
+		return (RECORD_HEADER + length + UNIT - 1) / UNIT;
+	}
+
+	/* CRC32C over the page id, sequence number, length and encoding */
+	private int checksum(byte[] record, int length) {
+		crc.reset();
+		crc.update(record, 0, 10);
+		crc.update(record, RECORD_HEADER, length);
+		return (int) crc.getValue();
+	}
+}
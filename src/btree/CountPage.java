@@ -0,0 +1,136 @@
+/*
+ * @(#) CountPage.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * CountPage.java The per-child subtree entry counts of one index page, kept on
+ * a page of their own that the index page points to through its (otherwise
+ * unused) next-page link. The layout is an int entry count followed by
+ * (child page id, entry count) pairs in no particular order, so entries only
+ * need to be found again by child page id after the index page reorders or
+ * splits.
+ */
+class CountPage implements GlobalConst {
+
+	static final int CAPACITY = (MINIBASE_PAGESIZE - 4) / 8;
+
+	private final PageId pageno;
+	private final byte[] data;
+
+	private CountPage(PageId pageno, Page page) {
+		this.pageno = pageno;
+		this.data = page.getpage();
+	}
+
+	/**
+	 * Allocate an empty count page. It is returned pinned.
+	 */
+	static CountPage create() throws ConstructPageException {
+		try {
+			Page page = new Page();
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			if (pageno == null)
+				throw new ConstructPageException(null, "new page failed");
+			return create(pageno, page);
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
+	/**
+	 * Make an empty count page of a page the caller allocated and pinned.
+	 */
+	static CountPage create(PageId pageno, Page page) {
+		CountPage counts = new CountPage(pageno, page);
+		RawPage.setInt(0, counts.data, 0);
+		return counts;
+	}
+
+	/**
+	 * Pin an existing count page.
+	 */
+	static CountPage pin(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			return new CountPage(pageno, page);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	void unpin(boolean dirty) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	PageId getPageId() {
+		return pageno;
+	}
+
+	private int size() {
+		return RawPage.getInt(data, 0);
+	}
+
+	private int find(int child) {
+		int n = size();
+		for (int i = 0; i < n; i++)
+			if (RawPage.getInt(data, 4 + 8 * i) == child)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return entries below the given child, 0 if it is not recorded
+	 */
+	int get(PageId child) {
+		int i = find(child.pid);
+		return i < 0 ? 0 : RawPage.getInt(data, 8 + 8 * i);
+	}
+
+	void set(PageId child, int count) {
+		int i = find(child.pid);
+		if (i < 0) {
+			i = size();
+			RawPage.setInt(i + 1, data, 0);
+			RawPage.setInt(child.pid, data, 4 + 8 * i);
+		}
+		RawPage.setInt(count, data, 8 + 8 * i);
+	}
+
+	void remove(PageId child) {
+		int i = find(child.pid);
+		if (i < 0)
+			return;
+		int last = size() - 1;
+		System.arraycopy(data, 4 + 8 * last, data, 4 + 8 * i, 8);
+		RawPage.setInt(last, data, 0);
+	}
+
+	/**
+	 * @return entries below all recorded children
+	 */
+	int total() {
+		int n = size();
+		int sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += RawPage.getInt(data, 8 + 8 * i);
+		return sum;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * @(#) CoveringData.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * CoveringData.java The data of a leaf entry that carries included values:
+ * column values the index keeps next to the rid, so a query that needs only
+ * them and the key is answered without fetching the heap record.
+ *
+ * The values are stored between the key and the rid of the leaf record,
+ * [key][included][rid.slotNo][rid.pageNo]. The key is read from the front
+ * of a record and the rid from its end, so code that reads entries as
+ * LeafData sees the same key and rid as for a record without them.
+ */
+public class CoveringData extends LeafData {
+
+	private final byte[] included;
+
+	CoveringData(RID rid, byte[] included) {
+		super(rid);
+		this.included = included;
+	}
+
+	/**
+	 * @return the included values of the entry, as given to insert
+	 */
+	public byte[] getIncluded() {
+		return included;
+	}
+
+	/**
+	 * @return the included values of a leaf entry, null if it has none
+	 */
+	static byte[] included(KeyDataEntry entry) {
+		return entry.data instanceof CoveringData ? ((CoveringData) entry.data).included
+				: null;
+	}
+
+	/**
+	 * Read the leaf record of a slot, with its included values if it has
+	 * any.
+	 */
+	static KeyDataEntry entry(byte[] page, int slot, int keyType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		int offset = RawPage.slotOffset(page, slot);
+		int length = RawPage.slotLength(page, slot);
+		KeyDataEntry entry = BT.getEntryFromBytes(page, offset, length,
+				keyType, NodeType.LEAF);
+		int keyLength = BT.getKeyLength(entry.key);
+		if (length != keyLength + 8)
+			entry.data = new CoveringData(((LeafData) entry.data).getData(),
+					Arrays.copyOfRange(page, offset + keyLength, offset
+							+ length - 8));
+		return entry;
+	}
+
+	/**
+	 * The leaf record of <key, rid> with its included values, in the layout
+	 * described above.
+	 */
+	static byte[] record(KeyClass key, RID rid, byte[] included)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException, IOException {
+		byte[] plain = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+		int keyLength = plain.length - 8;
+		byte[] record = new byte[plain.length + included.length];
+		System.arraycopy(plain, 0, record, 0, keyLength);
+		System.arraycopy(included, 0, record, keyLength, included.length);
+		System.arraycopy(plain, keyLength, record, keyLength
+				+ included.length, 8);
+		return record;
+	}
+
+	/**
+	 * Length of the leaf record of <key, rid> with the given included
+	 * values, which may be null.
+	 */
+	static int recordLength(KeyClass key, byte[] included)
+			throws KeyNotMatchException, NodeNotMatchException, IOException {
+		return BT.getKeyDataLength(key, NodeType.LEAF)
+				+ (included == null ? 0 : included.length);
+	}
+
+	public String toString() {
+		return super.toString() + " +" + included.length;
+	}
+}
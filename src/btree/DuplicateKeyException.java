@@ -0,0 +1,27 @@
+/*
+ * @(#) DuplicateKeyException.java
+ *
+ */
+
+package btree;
+
+/**
+ * DuplicateKeyException.java Thrown by insert when the key is already in a
+ * unique index. It is an InsertException, so callers of insert need not
+ * catch it separately.
+ */
+public class DuplicateKeyException extends InsertException {
+	private static final long serialVersionUID = 1L;
+
+	public DuplicateKeyException() {
+		super();
+	}
+
+	public DuplicateKeyException(String s) {
+		super(null, s);
+	}
+
+	public DuplicateKeyException(Exception e, String s) {
+		super(e, s);
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * @(#) ExtentMap.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * ExtentMap.java The space map of the extents a B+ tree takes its pages
+ * from. An extent is a run of EXTENT_SIZE pages allocated from the database
+ * in one go and given to either leaf or index pages, so that leaves created
+ * one after another, and a leaf and the sibling split off it, end up next to
+ * each other in the file.
+ *
+ * The map is a chain of pages, each an int page id of the next map page, an
+ * int entry count and 16 byte entries: the first page of the extent, its
+ * kind and size as shorts and a long bitmap of the pages in use. Changes are
+ * written through to the map pages as they are made. A page given back to
+ * the map stays allocated in the database; it is only marked free for the
+ * next page of its kind.
+ *
+ * Since the map knows every page of the tree, the tree can be dropped by
+ * deallocating its extents without reading any tree page. A dropped map can
+ * also be queued and its extents released a few at a time, whenever another
+ * index needs a new extent or when reclaim() is called.
+ */
+final class ExtentMap implements GlobalConst {
+
+	static final int EXTENT_SIZE = 64;
+
+	static final int LEAF = 1;
+	static final int INDEX = 2;
+
+	private static final int HEADER = 8;
+	private static final int ENTRY = 16;
+	private static final int PER_PAGE = (MINIBASE_PAGESIZE - HEADER) / ENTRY;
+
+	private static class Extent {
+		final int start;
+		final int kind;
+		final int size;
+		long used; // bit i set if page start + i is in use
+		final int mapPage; // where the entry is kept
+		final int entry;
+
+		Extent(int start, int kind, int size, long used, int mapPage, int entry) {
+			this.start = start;
+			this.kind = kind;
+			this.size = size;
+			this.used = used;
+			this.mapPage = mapPage;
+			this.entry = entry;
+		}
+
+		boolean full() {
+			return Long.numberOfTrailingZeros(~used) >= size;
+		}
+
+		/* the first free page after offset, else the first free page */
+		int freePage(int offset) {
+			long free = ~used & (size == 64 ? -1L : (1L << size) - 1);
+			long after = offset >= 63 ? 0 : free & (-1L << (offset + 1));
+			return Long.numberOfTrailingZeros(after != 0 ? after : free);
+		}
+	}
+
+	/* dropped maps whose extents are not yet released */
+	private static final Deque<ExtentMap> dropped = new ArrayDeque<ExtentMap>();
+
+	private final PageId first;
+	private final List<Extent> extents = new ArrayList<Extent>();
+	private final TreeMap<Integer, Extent> byStart = new TreeMap<Integer, Extent>();
+	private final Extent[] current = new Extent[3]; // last extent used, by kind
+	private int lastMapPage;
+	private int lastCount;
+
+	private ExtentMap(PageId first) {
+		this.first = first;
+	}
+
+	/**
+	 * Allocate an empty map.
+	 */
+	static ExtentMap create() throws ConstructPageException {
+		PageId pageno = newMapPage();
+		ExtentMap map = new ExtentMap(pageno);
+		map.lastMapPage = pageno.pid;
+		return map;
+	}
+
+	/**
+	 * Read the map that starts at the given page.
+	 */
+	static ExtentMap open(PageId first) throws PinPageException,
+			UnpinPageException {
+		ExtentMap map = new ExtentMap(new PageId(first.pid));
+		int pid = first.pid;
+		while (pid != INVALID_PAGE) {
+			PageId pageno = new PageId(pid);
+			byte[] data = pin(pageno).getpage();
+			int n = RawPage.getInt(data, 4);
+			for (int i = 0; i < n; i++) {
+				int off = HEADER + ENTRY * i;
+				map.add(new Extent(RawPage.getInt(data, off),
+						RawPage.getShort(data, off + 4),
+						RawPage.getShort(data, off + 6), getLong(data, off + 8),
+						pid, i));
+			}
+			map.lastMapPage = pid;
+			map.lastCount = n;
+			pid = RawPage.getInt(data, 0);
+			unpin(pageno, false);
+		}
+		return map;
+	}
+
+	PageId getFirstPage() {
+		return first;
+	}
+
+	/**
+	 * Take a page of the given kind, as close after near as possible: from
+	 * the extent of near if it is of that kind and not full, else from the
+	 * extent last used for the kind, else from any extent of the kind, else
+	 * from a newly allocated extent. The page is not pinned.
+	 *
+	 * @param kind
+	 *            LEAF or INDEX. Input parameter.
+	 * @param near
+	 *            the page the new one should follow, or null. Input
+	 *            parameter.
+	 * @return the page id
+	 * @exception ConstructPageException
+	 *                no extent could be allocated
+	 */
+	PageId allocate(int kind, PageId near) throws ConstructPageException {
+		Extent extent = near == null ? null : extentOf(near.pid);
+		int offset = -1;
+		if (extent != null && extent.kind == kind && !extent.full()) {
+			offset = near.pid - extent.start;
+		} else {
+			extent = current[kind];
+			if (extent == null || extent.full()) {
+				extent = null;
+				for (Extent e : extents)
+					if (e.kind == kind && !e.full()) {
+						extent = e;
+						break;
+					}
+				if (extent == null)
+					extent = newExtent(kind);
+			}
+		}
+		current[kind] = extent;
+
+		int page = extent.freePage(offset);
+		extent.used |= 1L << page;
+		write(extent);
+		return new PageId(extent.start + page);
+	}
+
+	/**
+	 * Mark a page free for reuse by its extent. Pages the map does not know
+	 * are deallocated from the database.
+	 *
+	 * @param pageno
+	 *            the page, not pinned. Input parameter.
+	 * @exception FreePageException
+	 *                error from the lower layer
+	 */
+	void free(PageId pageno) throws FreePageException {
+		Extent extent = extentOf(pageno.pid);
+		if (extent == null) {
+			try {
+				SystemDefs.JavabaseBM.freePage(pageno);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new FreePageException(e, "");
+			}
+			return;
+		}
+		extent.used &= ~(1L << (pageno.pid - extent.start));
+		try {
+			write(extent);
+		} catch (ConstructPageException e) {
+			throw new FreePageException(e, "");
+		}
+	}
+
+	/**
+	 * Write the map pages to disk now, not when the buffer pool flushes them.
+	 *
+	 * @exception ConstructPageException
+	 *                error from the lower layer
+	 */
+	void sync() throws ConstructPageException {
+		try {
+			int pid = first.pid;
+			while (pid != INVALID_PAGE) {
+				PageId pageno = new PageId(pid);
+				Page page = pin(pageno);
+				SystemDefs.JavabaseDB.write_page(pageno, page);
+				pid = RawPage.getInt(page.getpage(), 0);
+				unpin(pageno, false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "write extent map failed");
+		}
+	}
+
+	/**
+	 * Deallocate every extent and the map pages. Pages that are still in the
+	 * buffer pool are dropped from it; none may be pinned.
+	 *
+	 * @exception FreePageException
+	 *                error from the lower layer
+	 */
+	void destroy() throws FreePageException {
+		release(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Queue the map to have its extents released later by reclaim(). The map
+	 * must not be used any more.
+	 */
+	void drop() {
+		dropped.add(this);
+	}
+
+	/**
+	 * Release up to max extents of dropped maps, and the pages of the maps
+	 * that have none left.
+	 *
+	 * @param max
+	 *            the number of extents to release. Input parameter.
+	 * @return the number of extents released
+	 * @exception FreePageException
+	 *                error from the lower layer
+	 */
+	static int reclaim(int max) throws FreePageException {
+		int released = 0;
+		while (released < max && !dropped.isEmpty()) {
+			ExtentMap map = dropped.peek();
+			released += map.release(max - released);
+			if (map.extents.isEmpty())
+				dropped.remove();
+		}
+		return released;
+	}
+
+	/*
+	 * Deallocate up to max extents, last first, and the map pages once all
+	 * extents are gone. The map pages are not updated, the map is dropped.
+	 */
+	private int release(int max) throws FreePageException {
+		int released = 0;
+		try {
+			while (released < max && !extents.isEmpty()) {
+				Extent extent = extents.remove(extents.size() - 1);
+				byStart.remove(extent.start);
+				for (int i = 0; i < extent.size; i++)
+					SystemDefs.JavabaseBM.freePage(new PageId(extent.start + i));
+				released++;
+			}
+			Arrays.fill(current, null);
+			if (!extents.isEmpty() || lastMapPage == INVALID_PAGE)
+				return released;
+
+			int pid = first.pid;
+			while (pid != INVALID_PAGE) {
+				PageId pageno = new PageId(pid);
+				pid = RawPage.getInt(pin(pageno).getpage(), 0);
+				unpin(pageno, false);
+				SystemDefs.JavabaseBM.freePage(pageno);
+			}
+			lastMapPage = INVALID_PAGE;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+		return released;
+	}
+
+	private Extent extentOf(int pid) {
+		Map.Entry<Integer, Extent> entry = byStart.floorEntry(pid);
+		if (entry == null || pid >= entry.getKey() + entry.getValue().size)
+			return null;
+		return entry.getValue();
+	}
+
+	private void add(Extent extent) {
+		extents.add(extent);
+		byStart.put(extent.start, extent);
+	}
+
+	/*
+	 * Allocate EXTENT_SIZE pages, or as long a run as the database still
+	 * has, and record it in the map.
+	 */
+	private Extent newExtent(int kind) throws ConstructPageException {
+		PageId start = new PageId();
+		int size = EXTENT_SIZE;
+		try {
+			reclaim(1); // keep releasing dropped extents as the files grow
+		} catch (FreePageException e) {
+			throw new ConstructPageException(e, "reclaim extents failed");
+		}
+		while (true) {
+			try {
+				SystemDefs.JavabaseDB.allocate_page(start, size);
+				break;
+			} catch (OutOfSpaceException e) {
+				try {
+					if (reclaim(Integer.MAX_VALUE) > 0)
+						continue;
+				} catch (FreePageException f) {
+					throw new ConstructPageException(f, "reclaim extents failed");
+				}
+				if (size == 1)
+					throw new ConstructPageException(e, "no free pages");
+				size /= 2;
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "allocate extent failed");
+			}
+		}
+
+		if (lastCount == PER_PAGE) {
+			PageId next = newMapPage();
+			try {
+				PageId last = new PageId(lastMapPage);
+				RawPage.setInt(next.pid, pin(last).getpage(), 0);
+				unpin(last, true);
+			} catch (Exception e) {
+				throw new ConstructPageException(e, "extend extent map failed");
+			}
+			lastMapPage = next.pid;
+			lastCount = 0;
+		}
+
+		Extent extent = new Extent(start.pid, kind, size, 0, lastMapPage,
+				lastCount++);
+		add(extent);
+		try {
+			PageId last = new PageId(lastMapPage);
+			RawPage.setInt(lastCount, pin(last).getpage(), 4);
+			unpin(last, true);
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "extend extent map failed");
+		}
+		return extent;
+	}
+
+	/* write the entry of an extent through to its map page */
+	private void write(Extent extent) throws ConstructPageException {
+		try {
+			PageId pageno = new PageId(extent.mapPage);
+			byte[] data = pin(pageno).getpage();
+			int off = HEADER + ENTRY * extent.entry;
+			RawPage.setInt(extent.start, data, off);
+			RawPage.setInt((extent.kind << 16) | extent.size, data, off + 4);
+			RawPage.setInt((int) (extent.used >>> 32), data, off + 8);
+			RawPage.setInt((int) extent.used, data, off + 12);
+			unpin(pageno, true);
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "write extent map failed");
+		}
+	}
+
+	private static PageId newMapPage() throws ConstructPageException {
+		try {
+			Page page = new Page();
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			if (pageno == null)
+				throw new ConstructPageException(null, "new page failed");
+			RawPage.setInt(INVALID_PAGE, page.getpage(), 0);
+			RawPage.setInt(0, page.getpage(), 4);
+			SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			return pageno;
+		} catch (ConstructPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "new page failed");
+		}
+	}
+
+	private static long getLong(byte[] data, int off) {
+		return ((long) RawPage.getInt(data, off) << 32)
+				| (RawPage.getInt(data, off + 4) & 0xffffffffL);
+	}
+
+	private static Page pin(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private static void unpin(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * @(#) HeapKeySort.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * HeapKeySort.java External merge sort of the <key, rid> entries of a heap
+ * file, for BTreeFile.buildFrom. The heap is scanned by the calling thread,
+ * as the buffer manager serves one thread only, and the records are handed
+ * over in runs of RUN_ENTRIES. Extracting the keys from the records and
+ * sorting a run is done on the common fork-join pool while the scan goes
+ * on, and each sorted run is written to a temporary file. The runs are then
+ * merged MERGE_WAYS at a time, the merges of one pass again in parallel,
+ * until the last pass can be read as one sorted stream. A heap that fits in
+ * one run is never written out.
+ *
+ * Keys are read from records laid out by heap.Tuple: a field count, the
+ * field offsets and the fields. Entries with equal keys come out in rid
+ * order.
+ */
+final class HeapKeySort implements GlobalConst {
+
+	static final int RUN_ENTRIES = 1 << 18;
+	static final int MERGE_WAYS = 64;
+
+	private final int keyType;
+	private final KeyComparator keyOrder;
+	private final int fieldNo;
+
+	private final List<CompletableFuture<File>> runs = new ArrayList<CompletableFuture<File>>();
+	private final List<File> files = new ArrayList<File>(); // every file written, to delete
+	private KeyDataEntry[] memory; // the only run, if not written out
+	private int memoryNext;
+	private PriorityQueue<RunReader> merge; // readers of the last pass
+
+	/*
+	 * A sorted run being read back.
+	 */
+	private final class RunReader implements Comparable<RunReader> {
+		private final DataInputStream in;
+		KeyDataEntry head; // next entry, null at the end
+
+		RunReader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			advance();
+		}
+
+		void advance() throws IOException {
+			try {
+				KeyClass key = keyType == AttrType.attrInteger ? new IntegerKey(
+						in.readInt()) : new StringKey(in.readUTF());
+				int pid = in.readInt();
+				head = new KeyDataEntry(key, new RID(new PageId(pid),
+						in.readInt()));
+			} catch (EOFException e) {
+				head = null;
+				in.close();
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		public int compareTo(RunReader other) {
+			return entryOrder.compare(head, other.head);
+		}
+	}
+
+	/*
+	 * Key order, then rid order.
+	 */
+	private final Comparator<KeyDataEntry> entryOrder = new Comparator<KeyDataEntry>() {
+		public int compare(KeyDataEntry a, KeyDataEntry b) {
+			int cmp = keyOrder.compare(a.key, b.key);
+			if (cmp != 0)
+				return cmp;
+			RID ra = ((LeafData) a.data).getData();
+			RID rb = ((LeafData) b.data).getData();
+			if (ra.pageNo.pid != rb.pageNo.pid)
+				return ra.pageNo.pid < rb.pageNo.pid ? -1 : 1;
+			return Integer.compare(ra.slotNo, rb.slotNo);
+		}
+	};
+
+	/**
+	 * @param keyType
+	 *            AttrType.attrInteger or AttrType.attrString. Input parameter.
+	 * @param fieldNo
+	 *            the field of the records that holds the key, from 1. Input
+	 *            parameter.
+	 */
+	HeapKeySort(int keyType, int fieldNo) {
+		this.keyType = keyType;
+		this.keyOrder = KeyComparator.of(keyType);
+		this.fieldNo = fieldNo;
+	}
+
+	/**
+	 * Read the heap file and sort its entries. Afterwards next() returns
+	 * them in order.
+	 */
+	void sort(Heapfile heapfile) throws FieldNumberOutOfBoundException,
+			IOException, InvalidTupleSizeException {
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		Scan scan = heapfile.openScan();
+		try {
+			List<byte[]> records = new ArrayList<byte[]>();
+			List<RID> rids = new ArrayList<RID>();
+			RID rid = new RID();
+			for (Tuple tuple = scan.getNext(rid); tuple != null; tuple = scan
+					.getNext(rid)) {
+				records.add(tuple.getTupleByteArray());
+				rids.add(new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+				if (records.size() == RUN_ENTRIES) {
+					if (runs.size() >= parallelism)
+						join(runs.get(runs.size() - parallelism)); // bound the runs in memory
+					startRun(records, rids);
+					records = new ArrayList<byte[]>();
+					rids = new ArrayList<RID>();
+				}
+			}
+			if (runs.isEmpty()) {
+				memory = sortRun(records, rids);
+				return;
+			}
+			if (!records.isEmpty())
+				startRun(records, rids);
+		} finally {
+			scan.closescan();
+		}
+
+		List<File> pass = new ArrayList<File>();
+		for (CompletableFuture<File> run : runs)
+			pass.add(join(run));
+		while (pass.size() > MERGE_WAYS) {
+			List<CompletableFuture<File>> merges = new ArrayList<CompletableFuture<File>>();
+			for (int i = 0; i < pass.size(); i += MERGE_WAYS) {
+				final List<File> group = pass.subList(i,
+						Math.min(i + MERGE_WAYS, pass.size()));
+				merges.add(CompletableFuture.supplyAsync(() -> mergeRuns(group)));
+			}
+			pass = new ArrayList<File>();
+			for (CompletableFuture<File> run : merges)
+				pass.add(join(run));
+		}
+		merge = openRuns(pass);
+	}
+
+	/**
+	 * @return the next entry in key order, null when all are returned
+	 */
+	KeyDataEntry next() throws IOException {
+		if (memory != null)
+			return memoryNext < memory.length ? memory[memoryNext++] : null;
+		if (merge == null || merge.isEmpty())
+			return null;
+		RunReader reader = merge.poll();
+		KeyDataEntry entry = reader.head;
+		reader.advance();
+		if (reader.head != null)
+			merge.add(reader);
+		return entry;
+	}
+
+	/**
+	 * Close the runs and delete the temporary files.
+	 */
+	void close() {
+		memory = null;
+		if (merge != null)
+			for (RunReader reader : merge)
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+		merge = null;
+		for (CompletableFuture<File> run : runs)
+			try {
+				run.join(); // its file must exist before it can be deleted
+			} catch (CompletionException e) {
+				// reported by sort
+			}
+		for (File file : files)
+			file.delete();
+		files.clear();
+	}
+
+	private void startRun(final List<byte[]> records, final List<RID> rids) {
+		runs.add(CompletableFuture.supplyAsync(() -> {
+			try {
+				return writeRun(sortRun(records, rids));
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}));
+	}
+
+	/*
+	 * Extract the keys of a run and sort its entries.
+	 */
+	private KeyDataEntry[] sortRun(List<byte[]> records, List<RID> rids)
+			throws FieldNumberOutOfBoundException, IOException {
+		KeyDataEntry[] entries = new KeyDataEntry[records.size()];
+		for (int i = 0; i < entries.length; i++)
+			entries[i] = new KeyDataEntry(key(records.get(i)), rids.get(i));
+		Arrays.sort(entries, entryOrder);
+		return entries;
+	}
+
+	private KeyClass key(byte[] record) throws FieldNumberOutOfBoundException,
+			IOException {
+		int fields = Convert.getShortValue(0, record);
+		if (fieldNo < 1 || fieldNo > fields)
+			throw new FieldNumberOutOfBoundException(null, "record has no field "
+					+ fieldNo);
+		int start = Convert.getShortValue(2 * fieldNo, record);
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(Convert.getIntValue(start, record));
+		int end = Convert.getShortValue(2 * fieldNo + 2, record);
+		return new StringKey(Convert.getStrValue(start, record, end - start));
+	}
+
+	private File writeRun(KeyDataEntry[] entries) throws IOException {
+		File file = newFile();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			for (KeyDataEntry entry : entries)
+				write(out, entry);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private File mergeRuns(List<File> group) {
+		try {
+			PriorityQueue<RunReader> readers = openRuns(group);
+			File file = newFile();
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				while (!readers.isEmpty()) {
+					RunReader reader = readers.poll();
+					write(out, reader.head);
+					reader.advance();
+					if (reader.head != null)
+						readers.add(reader);
+				}
+			} finally {
+				out.close();
+			}
+			for (File run : group)
+				run.delete();
+			return file;
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private PriorityQueue<RunReader> openRuns(List<File> group)
+			throws IOException {
+		PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(
+				Math.max(group.size(), 1));
+		for (File run : group) {
+			RunReader reader = new RunReader(run);
+			if (reader.head != null)
+				readers.add(reader);
+		}
+		return readers;
+	}
+
+	private void write(DataOutputStream out, KeyDataEntry entry)
+			throws IOException {
+		if (keyType == AttrType.attrInteger)
+			out.writeInt(((IntegerKey) entry.key).getKey().intValue());
+		else
+			out.writeUTF(((StringKey) entry.key).getKey());
+		RID rid = ((LeafData) entry.data).getData();
+		out.writeInt(rid.pageNo.pid);
+		out.writeInt(rid.slotNo);
+	}
+
+	private File newFile() throws IOException {
+		File file = File.createTempFile("btsort", ".run");
+		file.deleteOnExit();
+		synchronized (files) {
+			files.add(file);
+		}
+		return file;
+	}
+
+	private static File join(CompletableFuture<File> run)
+			throws FieldNumberOutOfBoundException, IOException {
+		try {
+			return run.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof FieldNumberOutOfBoundException)
+				throw (FieldNumberOutOfBoundException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+}
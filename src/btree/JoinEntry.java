@@ -0,0 +1,26 @@
+package btree;
+
+/**
+ * A result of BTIndexJoin or BTMergeJoin: an outer and an inner entry with
+ * equal keys. Inner entries read from an index with included values carry
+ * them as their CoveringData.
+ */
+public class JoinEntry {
+
+	public final KeyDataEntry outer;
+	public final KeyDataEntry inner;
+
+	public JoinEntry(KeyDataEntry outer, KeyDataEntry inner) {
+		this.outer = outer;
+		this.inner = inner;
+	}
+
+	/** the key both entries have */
+	public KeyClass key() {
+		return outer.key;
+	}
+
+	public String toString() {
+		return outer.key + ": " + outer.data + " " + inner.data;
+	}
+}
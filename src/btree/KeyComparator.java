@@ -0,0 +1,86 @@
+/*
+ * @(#) KeyComparator.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * KeyComparator.java The key order of an index of one key type. BT.keyCompare
+ * finds out on every call which key class both keys are of; a BTreeFile
+ * instead binds the comparator of its key type once, when it is opened, so
+ * the compares in its search, insert and split loops always reach the same
+ * small method, which the JIT inlines.
+ *
+ * Integer keys compare as ints, without the overflow of the subtraction
+ * BT.keyCompare returns for keys more than 2^31 apart. String keys compare
+ * as String.compareTo. This is the one order of an index: its pages are
+ * written in it (RawKey.insertRecord), searched in it (RawPage), and its
+ * scans, ranges and verifier compare in it.
+ */
+abstract class KeyComparator implements Comparator<KeyClass> {
+
+	static final KeyComparator INTEGER = new IntegerOrder();
+	static final KeyComparator STRING = new StringOrder();
+
+	/**
+	 * @param keyType
+	 *            AttrType.attrInteger or AttrType.attrString. Input parameter.
+	 * @return the order of keys of that type
+	 */
+	static KeyComparator of(int keyType) {
+		return keyType == AttrType.attrInteger ? INTEGER : STRING;
+	}
+
+	/**
+	 * @param key
+	 *            a key. Input parameter.
+	 * @return the order of keys of the type of key
+	 */
+	static KeyComparator of(KeyClass key) {
+		return key instanceof IntegerKey ? INTEGER : STRING;
+	}
+
+	/**
+	 * Compare two keys of the type of the comparator, as BT.keyCompare.
+	 *
+	 * @return negative, 0 or positive as key1 is below, equal to or above
+	 *         key2
+	 * @exception KeyNotMatchException
+	 *                a key is not of the type of the comparator
+	 */
+	abstract int keyCompare(KeyClass key1, KeyClass key2)
+			throws KeyNotMatchException;
+
+	public final int compare(KeyClass key1, KeyClass key2) {
+		try {
+			return keyCompare(key1, key2);
+		} catch (KeyNotMatchException e) {
+			throw new ClassCastException("keys of different types");
+		}
+	}
+
+	private static final class IntegerOrder extends KeyComparator {
+		int keyCompare(KeyClass key1, KeyClass key2)
+				throws KeyNotMatchException {
+			if (!(key1 instanceof IntegerKey && key2 instanceof IntegerKey))
+				throw new KeyNotMatchException(null, "key types do not match");
+			return Integer.compare(((IntegerKey) key1).getKey().intValue(),
+					((IntegerKey) key2).getKey().intValue());
+		}
+	}
+
+	private static final class StringOrder extends KeyComparator {
+		int keyCompare(KeyClass key1, KeyClass key2)
+				throws KeyNotMatchException {
+			if (!(key1 instanceof StringKey && key2 instanceof StringKey))
+				throw new KeyNotMatchException(null, "key types do not match");
+			return ((StringKey) key1).getKey().compareTo(
+					((StringKey) key2).getKey());
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package btree;
+
+/**
+ * A closed key range [lo_key, hi_key] for BTreeFile.multiScan. A null bound
+ * is open on that side, as for new_scan. Ranges order by their low key, then
+ * by their high key.
+ */
+public class KeyRange implements Comparable<KeyRange> {
+
+	public final KeyClass lo_key;
+	public final KeyClass hi_key;
+
+	public KeyRange(KeyClass lo_key, KeyClass hi_key) {
+		this.lo_key = lo_key;
+		this.hi_key = hi_key;
+	}
+
+	/** the range holding just the given key */
+	public KeyRange(KeyClass key) {
+		this(key, key);
+	}
+
+	public int compareTo(KeyRange other) {
+		int cmp = compareBound(lo_key, other.lo_key, -1);
+		return cmp != 0 ? cmp : compareBound(hi_key, other.hi_key, 1);
+	}
+
+	/*
+	 * compare two bounds where null stands for -infinity (nullSign -1) or
+	 * +infinity (nullSign 1), in the order the index keeps its pages in
+	 */
+	static int compareBound(KeyClass a, KeyClass b, int nullSign) {
+		if (a == null || b == null)
+			return a == b ? 0 : (a == null ? nullSign : -nullSign);
+		try {
+			return KeyComparator.of(a).keyCompare(a, b);
+		} catch (KeyNotMatchException e) {
+			throw new ClassCastException("key types do not match");
+		}
+	}
+
+	public String toString() {
+		return "[" + lo_key + ", " + hi_key + "]";
+	}
+}
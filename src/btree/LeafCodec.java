@@ -0,0 +1,348 @@
+/*
+ * @(#) LeafCodec.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+import heap.HFPage;
+
+/**
+ * LeafCodec.java Compact encoding of B+ tree leaf pages for storage. The page
+ * header is kept as it is; the slot directory is reduced to the order in
+ * which the records lie on the page, and the records are stored column by
+ * column in slot order:
+ *
+ * - pages whose records all hold 4 byte keys store the keys as zigzag
+ * deltas from the previous key, bit-packed to the width of the largest
+ * delta, so sorted integer keys take a few bits each;
+ *
+ * - other pages front-code their keys against the previous key;
+ *
+ * - rid page and slot numbers are stored frame of reference, as offsets
+ * from their minimum bit-packed to the width of the largest offset.
+ *
+ * Decoding rebuilds the page with the free space between slot directory and
+ * records zeroed. encode() only returns an encoding that decodes to the same
+ * page, so any page that does not fit the scheme is left uncompressed.
+ */
+final class LeafCodec implements GlobalConst {
+
+	private static final int FIXED_KEYS = 1;
+	private static final int VARIABLE_KEYS = 2;
+	private static final int RID_SIZE = 8;
+
+	private LeafCodec() {
+	}
+
+	/**
+	 * @return the encoded page, or null if the page is not a leaf page that
+	 *         can be encoded
+	 */
+	static byte[] encode(byte[] page) {
+		if (RawPage.type(page) != NodeType.LEAF)
+			return null;
+
+		int n = RawPage.slotCount(page);
+		int usedPtr = RawPage.getShort(page, HFPage.USED_PTR);
+		if (n < 0 || HFPage.DPFIXED + n * HFPage.SIZE_OF_SLOT > usedPtr
+				|| usedPtr > MINIBASE_PAGESIZE)
+			return null;
+
+		// the records must tile [usedPtr, page end) without gaps
+		int[] order = physicalOrder(page, n, usedPtr);
+		if (order == null)
+			return null;
+
+		boolean fixed = true;
+		for (int slot = 0; slot < n; slot++)
+			fixed &= RawPage.slotLength(page, slot) == 4 + RID_SIZE;
+
+		BitWriter out = new BitWriter();
+		out.write(fixed ? FIXED_KEYS : VARIABLE_KEYS, 8);
+		for (int i = 0; i < HFPage.DPFIXED; i++)
+			out.write(page[i] & 0xff, 8);
+
+		int width = bits(n - 1);
+		for (int j = 0; j < n; j++)
+			out.write(order[j], width);
+
+		if (fixed)
+			writeFixedKeys(out, page, n);
+		else
+			writeVariableKeys(out, page, n);
+
+		long[] column = new long[n];
+		for (int slot = 0; slot < n; slot++)
+			column[slot] = RawPage.leafPageNo(page, slot);
+		writeFrameOfReference(out, column);
+		for (int slot = 0; slot < n; slot++)
+			column[slot] = RawPage.leafSlotNo(page, slot);
+		writeFrameOfReference(out, column);
+
+		byte[] packed = out.toByteArray();
+
+		// keep only encodings that give back the same page
+		byte[] check = new byte[MINIBASE_PAGESIZE];
+		try {
+			decode(packed, 0, packed.length, check);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		int dirEnd = HFPage.DPFIXED + n * HFPage.SIZE_OF_SLOT;
+		for (int i = 0; i < dirEnd; i++)
+			if (check[i] != page[i])
+				return null;
+		for (int i = usedPtr; i < MINIBASE_PAGESIZE; i++)
+			if (check[i] != page[i])
+				return null;
+		return packed;
+	}
+
+	/**
+	 * Rebuild a page from its encoding.
+	 *
+	 * @param packed
+	 *            holds the encoding. Input parameter.
+	 * @param off
+	 *            where the encoding starts in packed. Input parameter.
+	 * @param len
+	 *            length of the encoding. Input parameter.
+	 * @param page
+	 *            receives the page. Output parameter.
+	 */
+	static void decode(byte[] packed, int off, int len, byte[] page) {
+		BitReader in = new BitReader(packed, off, len);
+		int format = (int) in.read(8);
+		Arrays.fill(page, 0, MINIBASE_PAGESIZE, (byte) 0);
+		for (int i = 0; i < HFPage.DPFIXED; i++)
+			page[i] = (byte) in.read(8);
+
+		int n = RawPage.slotCount(page);
+		int usedPtr = RawPage.getShort(page, HFPage.USED_PTR);
+		int width = bits(n - 1);
+		int[] order = new int[n];
+		for (int j = 0; j < n; j++)
+			order[j] = (int) in.read(width);
+
+		byte[][] keys = format == FIXED_KEYS ? readFixedKeys(in, n)
+				: readVariableKeys(in, n);
+		long[] pageNos = readFrameOfReference(in, n);
+		long[] slotNos = readFrameOfReference(in, n);
+
+		int offset = usedPtr;
+		for (int j = 0; j < n; j++) {
+			int slot = order[j];
+			int length = keys[slot].length + RID_SIZE;
+			int dir = HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+			page[dir] = (byte) (length >>> 8);
+			page[dir + 1] = (byte) length;
+			page[dir + 2] = (byte) (offset >>> 8);
+			page[dir + 3] = (byte) offset;
+
+			System.arraycopy(keys[slot], 0, page, offset, keys[slot].length);
+			RawPage.setInt((int) slotNos[slot], page, offset
+					+ keys[slot].length);
+			RawPage.setInt((int) pageNos[slot], page, offset
+					+ keys[slot].length + 4);
+			offset += length;
+		}
+	}
+
+	/*
+	 * The slots in the order their records lie on the page, from usedPtr up,
+	 * or null if the records do not exactly fill [usedPtr, page end).
+	 */
+	private static int[] physicalOrder(byte[] page, int n, int usedPtr) {
+		Integer[] order = new Integer[n];
+		for (int slot = 0; slot < n; slot++) {
+			if (RawPage.slotLength(page, slot) <= RID_SIZE)
+				return null;
+			order[slot] = slot;
+		}
+		Arrays.sort(order, (a, b) -> RawPage.slotOffset(page, a)
+				- RawPage.slotOffset(page, b));
+
+		int offset = usedPtr;
+		int[] result = new int[n];
+		for (int j = 0; j < n; j++) {
+			if (RawPage.slotOffset(page, order[j]) != offset)
+				return null;
+			offset += RawPage.slotLength(page, order[j]);
+			result[j] = order[j];
+		}
+		return offset == MINIBASE_PAGESIZE ? result : null;
+	}
+
+	private static void writeFixedKeys(BitWriter out, byte[] page, int n) {
+		long[] deltas = new long[n];
+		long prev = 0;
+		for (int slot = 0; slot < n; slot++) {
+			long key = RawPage.intKey(page, slot);
+			long delta = key - prev;
+			deltas[slot] = (delta << 1) ^ (delta >> 63); // zigzag
+			prev = key;
+		}
+		writePacked(out, deltas);
+	}
+
+	private static byte[][] readFixedKeys(BitReader in, int n) {
+		long[] deltas = readPacked(in, n);
+		byte[][] keys = new byte[n][];
+		long prev = 0;
+		for (int slot = 0; slot < n; slot++) {
+			long delta = (deltas[slot] >>> 1) ^ -(deltas[slot] & 1);
+			prev += delta;
+			keys[slot] = new byte[4];
+			RawPage.setInt((int) prev, keys[slot], 0);
+		}
+		return keys;
+	}
+
+	/*
+	 * Each key as its length, its first two bytes (the length prefix of a
+	 * string key), the length of the prefix the rest shares with the previous
+	 * key, and the remaining bytes.
+	 */
+	private static void writeVariableKeys(BitWriter out, byte[] page, int n) {
+		byte[] prev = new byte[0];
+		for (int slot = 0; slot < n; slot++) {
+			int length = RawPage.slotLength(page, slot) - RID_SIZE;
+			int start = RawPage.slotOffset(page, slot);
+			int head = Math.min(2, length);
+			int shared = 0;
+			while (head + shared < length && head + shared < prev.length
+					&& page[start + head + shared] == prev[head + shared])
+				shared++;
+			out.write(length, 10);
+			for (int i = 0; i < head; i++)
+				out.write(page[start + i] & 0xff, 8);
+			out.write(shared, 10);
+			for (int i = head + shared; i < length; i++)
+				out.write(page[start + i] & 0xff, 8);
+			prev = Arrays.copyOfRange(page, start, start + length);
+		}
+	}
+
+	private static byte[][] readVariableKeys(BitReader in, int n) {
+		byte[][] keys = new byte[n][];
+		byte[] prev = new byte[0];
+		for (int slot = 0; slot < n; slot++) {
+			int length = (int) in.read(10);
+			int head = Math.min(2, length);
+			byte[] key = new byte[length];
+			for (int i = 0; i < head; i++)
+				key[i] = (byte) in.read(8);
+			int shared = (int) in.read(10);
+			if (shared > 0)
+				System.arraycopy(prev, head, key, head, shared);
+			for (int i = head + shared; i < length; i++)
+				key[i] = (byte) in.read(8);
+			keys[slot] = key;
+			prev = key;
+		}
+		return keys;
+	}
+
+	private static void writeFrameOfReference(BitWriter out, long[] values) {
+		long min = 0;
+		if (values.length > 0) {
+			min = Long.MAX_VALUE;
+			for (long value : values)
+				min = Math.min(min, value);
+		}
+		out.write(min & 0xffffffffL, 32);
+		long[] offsets = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			offsets[i] = values[i] - min;
+		writePacked(out, offsets);
+	}
+
+	private static long[] readFrameOfReference(BitReader in, int n) {
+		long min = (int) in.read(32);
+		long[] values = readPacked(in, n);
+		for (int i = 0; i < n; i++)
+			values[i] += min;
+		return values;
+	}
+
+	/*
+	 * Non-negative values as a 6 bit width followed by the values packed to
+	 * that width.
+	 */
+	private static void writePacked(BitWriter out, long[] values) {
+		long or = 0;
+		for (long value : values)
+			or |= value;
+		int width = bits(or);
+		out.write(width, 6);
+		for (long value : values)
+			out.write(value, width);
+	}
+
+	private static long[] readPacked(BitReader in, int n) {
+		int width = (int) in.read(6);
+		long[] values = new long[n];
+		for (int i = 0; i < n; i++)
+			values[i] = in.read(width);
+		return values;
+	}
+
+	/* number of bits needed for a non-negative value */
+	private static int bits(long value) {
+		return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	private static class BitWriter {
+		private byte[] buf = new byte[MINIBASE_PAGESIZE];
+		private long pos; // in bits
+
+		void write(long value, int width) {
+			while (width > 0) {
+				int byteIndex = (int) (pos >>> 3);
+				if (byteIndex == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				int used = (int) (pos & 7);
+				int take = Math.min(width, 8 - used);
+				int chunk = (int) (value >>> (width - take)) & ((1 << take) - 1);
+				buf[byteIndex] |= (byte) (chunk << (8 - used - take));
+				pos += take;
+				width -= take;
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, (int) ((pos + 7) >>> 3));
+		}
+	}
+
+	private static class BitReader {
+		private final byte[] buf;
+		private final long end; // in bits
+		private long pos;
+
+		BitReader(byte[] buf, int off, int len) {
+			this.buf = buf;
+			this.pos = (long) off << 3;
+			this.end = (long) (off + len) << 3;
+		}
+
+		long read(int width) {
+			if (pos + width > end)
+				throw new IllegalStateException("encoded page too short");
+			long value = 0;
+			while (width > 0) {
+				int used = (int) (pos & 7);
+				int take = Math.min(width, 8 - used);
+				int b = buf[(int) (pos >>> 3)] & 0xff;
+				value = (value << take) | ((b >>> (8 - used - take)) & ((1 << take) - 1));
+				pos += take;
+				width -= take;
+			}
+			return value;
+		}
+	}
+}
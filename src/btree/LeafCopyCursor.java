@@ -0,0 +1,200 @@
+/*
+ * @(#) LeafCopyCursor.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * LeafCopyCursor.java A forward cursor over a key range that works on private
+ * copies of the leaf pages. Each leaf is pinned, copied and unpinned while
+ * holding the buffer manager lock, and its entries are then decoded from the
+ * copy without any lock, so several cursors can run in different threads.
+ * The buffer manager itself is not thread safe; every pin and unpin made on
+ * behalf of a cursor goes through bmLock().
+ *
+ * With a ReadAheadBufMgr, a cursor that steps from a leaf to the page right
+ * after it copies the next READ_AHEAD pages at once, so a run of leaves that
+ * lie next to each other on disk is read with one vectored read. The copies
+ * are taken at that time, like the copy of a single leaf.
+ *
+ * The rids of a posting list are returned as entries of its key, reading
+ * its pages one copy at a time like the leaves.
+ */
+class LeafCopyCursor implements GlobalConst {
+
+	private final BTreeFile bfile;
+	private final int keyType;
+	private final KeyComparator keyOrder;
+	private final boolean postings; // the index keeps posting lists
+	private final KeyClass endkey; // null for no upper bound
+	private final boolean endInclusive;
+
+	static final int READ_AHEAD = 16;
+
+	private byte[] leaf; // copy of the current leaf, null when done
+	private int slot; // next slot to return from leaf
+	private PostingList.Reader posting; // list being returned, or null
+	private KeyClass postingKey;
+
+	private byte[][] ahead; // copies of pages aheadStart.. read ahead
+	private int aheadStart;
+	private int aheadCount;
+
+	/**
+	 * Lock guarding all buffer manager calls made from parallel readers.
+	 */
+	static Object bmLock() {
+		return SystemDefs.JavabaseBM;
+	}
+
+	/**
+	 * @param bfile
+	 *            the tree to read. Input parameter.
+	 * @param lo_key
+	 *            first key to return, null for the smallest key. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            key where the cursor stops, null for no bound. Input
+	 *            parameter.
+	 * @param hiInclusive
+	 *            whether hi_key itself is returned. Input parameter.
+	 */
+	LeafCopyCursor(BTreeFile bfile, KeyClass lo_key, KeyClass hi_key,
+			boolean hiInclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		this.bfile = bfile;
+		this.keyType = bfile.getHeaderPage().get_keyType();
+		this.keyOrder = KeyComparator.of(keyType);
+		this.postings = bfile.postingLists();
+		this.endkey = hi_key;
+		this.endInclusive = hiInclusive;
+
+		synchronized (bmLock()) {
+			RID startrid = new RID();
+			BTLeafPage pageLeaf = bfile.findRunStart(lo_key, startrid);
+			if (pageLeaf != null) {
+				leaf = pageLeaf.getpage().clone();
+				slot = startrid.slotNo;
+				unpin(pageLeaf.getCurPage());
+			}
+		}
+	}
+
+	/**
+	 * @return the next entry of the range, null when done
+	 */
+	KeyDataEntry next() throws IOException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException {
+		while (true) {
+			if (posting != null) {
+				RID rid = posting.next();
+				if (rid != null)
+					return new KeyDataEntry(postingKey, rid);
+				posting = null;
+			}
+
+			KeyDataEntry entry = nextEntry();
+			if (entry == null || !postings || !PostingList.isPosting(entry))
+				return entry;
+			postingKey = entry.key;
+			posting = new PostingList.Reader(PostingList.head(entry), null);
+		}
+	}
+
+	private KeyDataEntry nextEntry() throws IOException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException {
+		if (leaf == null)
+			return null;
+
+		while (slot >= RawPage.slotCount(leaf)) {
+			if (!nextLeaf())
+				return null;
+		}
+
+		KeyDataEntry entry = CoveringData.entry(leaf, slot, keyType);
+
+		if (endkey != null) {
+			int cmp = keyOrder.keyCompare(entry.key, endkey);
+			if (cmp > 0 || (cmp == 0 && !endInclusive)) {
+				leaf = null;
+				return null;
+			}
+		}
+
+		slot++;
+		return entry;
+	}
+
+	/**
+	 * Replace the copy of the current leaf with a copy of its right sibling.
+	 *
+	 * @return false if there is no right sibling
+	 */
+	private boolean nextLeaf() throws IOException, ConstructPageException,
+			UnpinPageException {
+		PageId nextpage = new PageId(RawPage.nextPage(leaf));
+		if (nextpage.pid == INVALID_PAGE) {
+			leaf = null;
+			return false;
+		}
+
+		int curpage = RawPage.curPage(leaf);
+		int i = nextpage.pid - aheadStart;
+		if (i >= 0 && i < aheadCount) {
+			leaf = ahead[i];
+		} else if (nextpage.pid == curpage + 1
+				&& SystemDefs.JavabaseBM instanceof ReadAheadBufMgr) {
+			readAhead(nextpage);
+			leaf = ahead[0];
+		} else {
+			synchronized (bmLock()) {
+				BTLeafPage pageLeaf = new BTLeafPage(nextpage, keyType);
+				leaf = pageLeaf.getpage().clone();
+				unpin(nextpage);
+			}
+		}
+		slot = 0;
+		return true;
+	}
+
+	/*
+	 * Copy the pages from start on, up to READ_AHEAD of them.
+	 */
+	private void readAhead(PageId start) throws ConstructPageException {
+		if (ahead == null) {
+			ahead = new byte[READ_AHEAD][];
+			for (int i = 0; i < READ_AHEAD; i++)
+				ahead[i] = new byte[MINIBASE_PAGESIZE];
+		}
+		synchronized (bmLock()) {
+			int n = Math.min(READ_AHEAD, SystemDefs.JavabaseDB.db_num_pages()
+					- start.pid);
+			try {
+				((ReadAheadBufMgr) SystemDefs.JavabaseBM).copyPages(start, n,
+						ahead);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "read ahead failed");
+			}
+			aheadStart = start.pid;
+			aheadCount = n;
+		}
+	}
+
+	private void unpin(PageId pageno) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
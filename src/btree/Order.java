@@ -0,0 +1,9 @@
+package btree;
+
+/**
+ * Order of the entries returned by a range scan, see BTreeFile.new_scan.
+ */
+public class Order {
+	public static final int ASCENDING = 0;
+	public static final int DESCENDING = 1;
+}
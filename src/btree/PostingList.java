@@ -0,0 +1,446 @@
+/*
+ * @(#) PostingList.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.HFPage;
+
+/**
+ * PostingList.java The rids of one key of a B+ tree, kept sorted on a chain
+ * of posting pages instead of as one leaf entry per rid. The leaf holds a
+ * single entry for the key whose rid is (first posting page, POSTING_SLOT).
+ * BTreeFile.insert refuses record rids with that slot, and an entry is only
+ * taken for a list while the index keeps posting lists.
+ *
+ * A posting page has the header of an HFPage with type TYPE: the slot count
+ * is the number of rids on the page, the used pointer the number of bytes
+ * they take and the next page link the next posting page. The first page
+ * also keeps the last page of the chain in its previous page link and the
+ * number of rids of the whole list in the int after the header.
+ *
+ * The rids of a page are delta encoded as varints, the first one against
+ * rid (0, 0): a rid on the page of the previous rid is the slot delta times
+ * two, any other rid the page delta times two plus one, followed by its
+ * slot number. The rids of a heap file scanned in order thus take a byte
+ * each. Every page decodes on its own, so a page is read or rewritten
+ * without its neighbours, and a full page is split in two.
+ */
+final class PostingList implements GlobalConst {
+
+	/** page type of posting pages */
+	static final short TYPE = 14;
+
+	/** slot number of the leaf entry rid that points to a posting list */
+	static final int POSTING_SLOT = -1;
+
+	private static final int TOTAL = HFPage.DPFIXED;
+	private static final int BODY = TOTAL + 4;
+
+	private PostingList() {
+	}
+
+	/*
+	 * Whether the rid has the slot of a list head; callers check first that
+	 * the index keeps posting lists.
+	 */
+	static boolean isPosting(RID rid) {
+		return rid.slotNo == POSTING_SLOT;
+	}
+
+	static boolean isPosting(KeyDataEntry entry) {
+		return entry.data instanceof LeafData
+				&& isPosting(((LeafData) entry.data).getData());
+	}
+
+	/**
+	 * @return the first page of the list a leaf entry points to
+	 */
+	static PageId head(KeyDataEntry entry) {
+		return new PageId(((LeafData) entry.data).getData().pageNo.pid);
+	}
+
+	/**
+	 * @return the rid of the leaf entry that points to the list
+	 */
+	static RID entryRid(PageId head) {
+		return new RID(new PageId(head.pid), POSTING_SLOT);
+	}
+
+	/**
+	 * Write a new list of the given rids.
+	 *
+	 * @param bfile
+	 *            the index the list belongs to. Input parameter.
+	 * @param rids
+	 *            the rids. Input parameter.
+	 * @param near
+	 *            the page the list should be close to, or null. Input
+	 *            parameter.
+	 * @return the first page of the list
+	 */
+	static PageId create(BTreeFile bfile, List<RID> rids, PageId near)
+			throws ConstructPageException, UnpinPageException {
+		long[] sorted = new long[rids.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = pack(rids.get(i));
+		Arrays.sort(sorted);
+
+		Page head = new Page();
+		PageId headId = bfile.newPostingPage(near, head);
+		init(headId, head.getpage());
+		RawPage.setInt(sorted.length, head.getpage(), TOTAL);
+
+		PageId pageno = headId;
+		Page page = head;
+		int i = 0;
+		while (true) {
+			i = fill(page.getpage(), sorted, i);
+			if (i == sorted.length)
+				break;
+			Page next = new Page();
+			PageId nextId = bfile.newPostingPage(pageno, next);
+			init(nextId, next.getpage());
+			RawPage.setInt(nextId.pid, page.getpage(), HFPage.NEXT_PAGE);
+			if (page != head)
+				unpin(pageno, true);
+			pageno = nextId;
+			page = next;
+		}
+		RawPage.setInt(pageno.pid, head.getpage(), HFPage.PREV_PAGE);
+		if (page != head)
+			unpin(pageno, true);
+		unpin(headId, true);
+		return headId;
+	}
+
+	/**
+	 * Add a rid to the list. A rid may be in the list more than once.
+	 */
+	static void add(BTreeFile bfile, PageId head, RID rid)
+			throws ConstructPageException, PinPageException,
+			UnpinPageException {
+		long packed = pack(rid);
+		byte[] headData = pin(head).getpage();
+		RawPage.setInt(RawPage.getInt(headData, TOTAL) + 1, headData, TOTAL);
+
+		// rids mostly come in order; try the last page before walking
+		PageId target = new PageId(RawPage.prevPage(headData));
+		byte[] data = pin(target).getpage();
+		int n = RawPage.slotCount(data);
+		if (n > 0 && decode(data)[n - 1] > packed) {
+			unpin(target, false);
+			target = new PageId(head.pid);
+			data = pin(target).getpage();
+			while (RawPage.nextPage(data) != INVALID_PAGE) {
+				PageId next = new PageId(RawPage.nextPage(data));
+				byte[] nextData = pin(next).getpage();
+				if (RawPage.slotCount(nextData) > 0
+						&& decode(nextData)[0] > packed) {
+					unpin(next, false);
+					break;
+				}
+				unpin(target, false);
+				target = next;
+				data = nextData;
+			}
+		}
+
+		long[] rids = decode(data);
+		int pos = rids.length;
+		while (pos > 0 && rids[pos - 1] > packed)
+			pos--;
+		long[] grown = new long[rids.length + 1];
+		System.arraycopy(rids, 0, grown, 0, pos);
+		grown[pos] = packed;
+		System.arraycopy(rids, pos, grown, pos + 1, rids.length - pos);
+
+		clear(data);
+		int done = fill(data, grown, 0);
+		if (done < grown.length) {
+			// split the page: the upper half goes to a new page after it
+			int half = grown.length / 2;
+			Page page = new Page();
+			PageId split = bfile.newPostingPage(target, page);
+			init(split, page.getpage());
+			clear(data);
+			fill(data, Arrays.copyOf(grown, half), 0);
+			fill(page.getpage(), Arrays.copyOfRange(grown, half, grown.length),
+					0);
+			RawPage.setInt(RawPage.nextPage(data), page.getpage(),
+					HFPage.NEXT_PAGE);
+			RawPage.setInt(split.pid, data, HFPage.NEXT_PAGE);
+			if (RawPage.prevPage(headData) == target.pid)
+				RawPage.setInt(split.pid, headData, HFPage.PREV_PAGE);
+			unpin(split, true);
+		}
+		unpin(target, true);
+		unpin(head, true);
+	}
+
+	/**
+	 * Remove one occurrence of a rid from the list. A page other than the
+	 * first that becomes empty is freed.
+	 *
+	 * @return false if the rid is not in the list
+	 */
+	static boolean remove(BTreeFile bfile, PageId head, RID rid)
+			throws ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException {
+		long packed = pack(rid);
+		PageId prev = null;
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			byte[] data = pin(pageno).getpage();
+			long[] rids = decode(data);
+			int i = Arrays.binarySearch(rids, packed);
+			if (i < 0) {
+				PageId next = new PageId(RawPage.nextPage(data));
+				unpin(pageno, false);
+				if (rids.length > 0 && rids[rids.length - 1] > packed)
+					return false;
+				prev = pageno;
+				pageno = next;
+				continue;
+			}
+
+			long[] shrunk = new long[rids.length - 1];
+			System.arraycopy(rids, 0, shrunk, 0, i);
+			System.arraycopy(rids, i + 1, shrunk, i, shrunk.length - i);
+			clear(data);
+			if (fill(data, shrunk, 0) < shrunk.length)
+				throw new ConstructPageException(null, "posting page overflow");
+
+			byte[] headData = pin(head).getpage();
+			RawPage.setInt(RawPage.getInt(headData, TOTAL) - 1, headData, TOTAL);
+			if (shrunk.length == 0 && prev != null) {
+				// unlink the empty page
+				byte[] prevData = pin(prev).getpage();
+				RawPage.setInt(RawPage.nextPage(data), prevData,
+						HFPage.NEXT_PAGE);
+				if (RawPage.prevPage(headData) == pageno.pid)
+					RawPage.setInt(prev.pid, headData, HFPage.PREV_PAGE);
+				unpin(prev, true);
+				unpin(head, true);
+				unpin(pageno, false);
+				bfile.freePostingPage(pageno);
+			} else {
+				unpin(head, true);
+				unpin(pageno, true);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of rids in the list
+	 */
+	static int size(PageId head) throws PinPageException, UnpinPageException {
+		int total = RawPage.getInt(pin(head).getpage(), TOTAL);
+		unpin(head, false);
+		return total;
+	}
+
+	/**
+	 * @return all rids of the list, in order
+	 */
+	static List<RID> rids(PageId head) throws ConstructPageException {
+		List<RID> rids = new ArrayList<RID>();
+		Reader reader = new Reader(head, null);
+		for (RID rid = reader.next(); rid != null; rid = reader.next())
+			rids.add(rid);
+		return rids;
+	}
+
+	/**
+	 * Free all pages of the list.
+	 */
+	static void free(BTreeFile bfile, PageId head) throws PinPageException,
+			UnpinPageException, FreePageException {
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			PageId next = new PageId(RawPage.nextPage(pin(pageno).getpage()));
+			unpin(pageno, false);
+			bfile.freePostingPage(pageno);
+			pageno = next;
+		}
+	}
+
+	/**
+	 * Reads the rids of a list in order, a copy of one page at a time. The
+	 * pages are read through the buffer manager under its lock, or from a
+	 * snapshot.
+	 */
+	static final class Reader {
+		private final VersionedBufMgr.Snapshot snapshot; // null for none
+		private long[] rids = new long[0]; // rids of the current page
+		private int i; // next of them to return
+		private int next; // page after the current one
+
+		/**
+		 * @param head
+		 *            the first page of the list. Input parameter.
+		 * @param snapshot
+		 *            the snapshot to read from, null to read the pages as
+		 *            they are. Input parameter.
+		 */
+		Reader(PageId head, VersionedBufMgr.Snapshot snapshot) {
+			this.snapshot = snapshot;
+			this.next = head.pid;
+		}
+
+		/**
+		 * @return the next rid, null when done
+		 */
+		RID next() throws ConstructPageException {
+			while (i >= rids.length) {
+				if (next == INVALID_PAGE)
+					return null;
+				byte[] data = read(new PageId(next));
+				rids = decode(data);
+				i = 0;
+				next = RawPage.nextPage(data);
+			}
+			long packed = rids[i++];
+			return new RID(new PageId((int) (packed >>> 32)), (int) packed);
+		}
+
+		private byte[] read(PageId pageno) throws ConstructPageException {
+			if (snapshot != null)
+				return snapshot.page(pageno);
+			synchronized (LeafCopyCursor.bmLock()) {
+				try {
+					byte[] data = pin(pageno).getpage().clone();
+					unpin(pageno, false);
+					return data;
+				} catch (Exception e) {
+					throw new ConstructPageException(e, "read posting page failed");
+				}
+			}
+		}
+	}
+
+	private static void init(PageId pageno, byte[] data) {
+		Arrays.fill(data, (byte) 0);
+		RawPage.setShort(TYPE, data, HFPage.TYPE);
+		RawPage.setInt(INVALID_PAGE, data, HFPage.PREV_PAGE);
+		RawPage.setInt(INVALID_PAGE, data, HFPage.NEXT_PAGE);
+		RawPage.setInt(pageno.pid, data, HFPage.CUR_PAGE);
+	}
+
+	private static void clear(byte[] data) {
+		RawPage.setShort(0, data, HFPage.SLOT_CNT);
+		RawPage.setShort(0, data, HFPage.USED_PTR);
+	}
+
+	private static long pack(RID rid) {
+		return ((long) rid.pageNo.pid << 32) | (rid.slotNo & 0xffffffffL);
+	}
+
+	/*
+	 * Append rids[from..] to the page until it is full.
+	 *
+	 * @return the index of the first rid not written
+	 */
+	private static int fill(byte[] data, long[] rids, int from) {
+		int n = RawPage.slotCount(data);
+		int off = BODY + RawPage.getShort(data, HFPage.USED_PTR);
+		long prev = n == 0 ? 0 : decode(data)[n - 1];
+		int i = from;
+		for (; i < rids.length; i++) {
+			int page = (int) (rids[i] >>> 32);
+			int slot = (int) rids[i];
+			int end;
+			if (page == (int) (prev >>> 32) && n > 0)
+				end = putVarint(((long) slot - (int) prev) << 1, data, off);
+			else {
+				end = putVarint(((long) page - (int) (prev >>> 32)) << 1 | 1,
+						data, off);
+				if (end >= 0)
+					end = putVarint(slot, data, end);
+			}
+			if (end < 0)
+				break;
+			off = end;
+			prev = rids[i];
+			n++;
+		}
+		RawPage.setShort(n, data, HFPage.SLOT_CNT);
+		RawPage.setShort(off - BODY, data, HFPage.USED_PTR);
+		return i;
+	}
+
+	private static long[] decode(byte[] data) {
+		int n = RawPage.slotCount(data);
+		long[] rids = new long[n];
+		int[] off = { BODY };
+		int page = 0;
+		int slot = 0;
+		for (int i = 0; i < n; i++) {
+			long v = getVarint(data, off);
+			if ((v & 1) == 0 && i > 0)
+				slot += (int) (v >>> 1);
+			else {
+				page += (int) (v >>> 1);
+				slot = (int) getVarint(data, off);
+			}
+			rids[i] = ((long) page << 32) | (slot & 0xffffffffL);
+		}
+		return rids;
+	}
+
+	/*
+	 * @return the offset after the varint, -1 if it does not fit on the page
+	 */
+	private static int putVarint(long value, byte[] data, int off) {
+		while (value >= 0x80) {
+			if (off >= MINIBASE_PAGESIZE)
+				return -1;
+			data[off++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		if (off >= MINIBASE_PAGESIZE)
+			return -1;
+		data[off++] = (byte) value;
+		return off;
+	}
+
+	private static long getVarint(byte[] data, int[] off) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[off[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private static Page pin(PageId pageno) throws PinPageException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private static void unpin(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
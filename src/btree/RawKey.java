@@ -0,0 +1,117 @@
+/*
+ * @(#) RawKey.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * RawKey.java A search key in the form the keys of an index have on its
+ * pages, so a search compares it with the records of a page as they are
+ * rather than decode each of them into a KeyDataEntry. Integer keys are big
+ * endian ints and compare as ints. String keys are written by
+ * DataOutputStream.writeUTF, whose bytes compare, unsigned and in order, as
+ * String.compareTo compares the strings (see RawPage.compareUTF); the search
+ * key is written the same way once, and no key on the page is decoded or
+ * allocated.
+ */
+final class RawKey {
+
+	private final int intKey;
+	private final byte[] utf; // writeUTF form of a string key, else null
+
+	private RawKey(int intKey, byte[] utf) {
+		this.intKey = intKey;
+		this.utf = utf;
+	}
+
+	/**
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @param keyType
+	 *            the key type of the index. Input parameter.
+	 * @return the key in page form, null if key is null, not of keyType or
+	 *         too long to be on a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static RawKey of(KeyClass key, int keyType) throws IOException {
+		if (key instanceof IntegerKey && keyType == AttrType.attrInteger)
+			return new RawKey(((IntegerKey) key).getKey().intValue(), null);
+		if (key instanceof StringKey && keyType == AttrType.attrString) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				new DataOutputStream(bytes).writeUTF(((StringKey) key)
+						.getKey());
+			} catch (UTFDataFormatException e) {
+				return null; // longer than writeUTF can write
+			}
+			return new RawKey(0, bytes.toByteArray());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of slots of a leaf or index page of the index whose
+	 *         key is below this key or, if inclusive, at most this key
+	 */
+	int search(byte[] data, boolean inclusive) {
+		return utf == null ? RawPage.intSearch(data, intKey, inclusive)
+				: RawPage.utfSearch(data, utf, inclusive);
+	}
+
+	/**
+	 * @return true if the record in the given slot has this key
+	 */
+	boolean matches(byte[] data, int slot) {
+		return utf == null ? RawPage.intKey(data, slot) == intKey : RawPage
+				.compareUTF(data, slot, utf) == 0;
+	}
+
+	/**
+	 * @return negative, 0 or positive as this key is below, equal to or
+	 *         above the key of the record in the given slot
+	 */
+	int compareTo(byte[] data, int slot) {
+		return utf == null ? Integer.compare(intKey, RawPage.intKey(data, slot))
+				: -RawPage.compareUTF(data, slot, utf);
+	}
+
+	/**
+	 * Insert a record with this key into a leaf or index page of the index,
+	 * after the records with an equal key. BTSortedPage.insertRecord orders
+	 * the page by BT.keyCompare, whose subtraction overflows for integer keys
+	 * more than 2^31 apart, so the pages of an index are written here, in
+	 * the order search reads them in.
+	 *
+	 * @param page
+	 *            the page. Input parameter.
+	 * @param record
+	 *            the record, as BT.getBytesFromEntry writes it. Input
+	 *            parameter.
+	 * @return the rid of the record, null if the page has no room for it
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	RID insertRecord(BTSortedPage page, byte[] record) throws IOException {
+		RID slotRid = ((HFPage) page).insertRecord(record);
+		if (slotRid == null)
+			return null;
+
+		// a sorted page has no empty slots: the record went into the last
+		byte[] data = page.getpage();
+		int slot = slotRid.slotNo;
+		int length = page.getSlotLength(slot);
+		int offset = page.getSlotOffset(slot);
+		for (; slot > 0 && compareTo(data, slot - 1) < 0; slot--)
+			page.setSlot(slot, page.getSlotLength(slot - 1), page
+					.getSlotOffset(slot - 1));
+		page.setSlot(slot, length, offset);
+		return new RID(page.getCurPage(), slot);
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * @(#) RawPage.java
+ *
+ */
+
+package btree;
+
+import heap.HFPage;
+
+/**
+ * RawPage.java Static helpers that read the slotted page layout of
+ * BTSortedPage directly out of the page byte array. Unlike global.Convert
+ * they do not allocate, so they are safe to use in per-entry loops.
+ *
+ * The layout is the one written by HFPage and BT.getBytesFromEntry: the slot
+ * directory starts at HFPage.DPFIXED with (length, offset) shorts per slot,
+ * leaf records are [key][rid.slotNo][rid.pageNo] and index records are
+ * [key][pageNo]. All values are big endian; string keys are written by
+ * DataOutputStream.writeUTF.
+ */
+final class RawPage {
+
+	/** slots intSearch compares one after another rather than halving */
+	static final int LINEAR_SEARCH = 8;
+
+	private RawPage() {
+	}
+
+	static int getInt(byte[] data, int offset) {
+		return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	static short getShort(byte[] data, int offset) {
+		return (short) ((data[offset] << 8) | (data[offset + 1] & 0xff));
+	}
+
+	static void setInt(int value, byte[] data, int offset) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	static void setShort(int value, byte[] data, int offset) {
+		data[offset] = (byte) (value >>> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	static int slotCount(byte[] data) {
+		return getShort(data, HFPage.SLOT_CNT);
+	}
+
+	static int freeSpace(byte[] data) {
+		return getShort(data, HFPage.FREE_SPACE);
+	}
+
+	static short type(byte[] data) {
+		return getShort(data, HFPage.TYPE);
+	}
+
+	static int prevPage(byte[] data) {
+		return getInt(data, HFPage.PREV_PAGE);
+	}
+
+	static int nextPage(byte[] data) {
+		return getInt(data, HFPage.NEXT_PAGE);
+	}
+
+	static int curPage(byte[] data) {
+		return getInt(data, HFPage.CUR_PAGE);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return getShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	/** integer key of the record in the given slot */
+	static int intKey(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot));
+	}
+
+	/** rid.pageNo.pid of the leaf record in the given slot */
+	static int leafPageNo(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	/** rid.slotNo of the leaf record in the given slot */
+	static int leafSlotNo(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 8);
+	}
+
+	/** child page id of the index record in the given slot */
+	static int indexChild(byte[] data, int slot) {
+		return getInt(data, slotOffset(data, slot) + slotLength(data, slot) - 4);
+	}
+
+	/**
+	 * Search a leaf or index page with integer keys, whose slots are in key
+	 * order, for key. Returns the number of slots whose key is below key or,
+	 * if inclusive, at most key. The keys are compared as ints straight from
+	 * the page; a binary search narrows the range down to LINEAR_SEARCH
+	 * slots, which are compared in order, as a loop with no data dependent
+	 * exit until the end is cheaper than further halving.
+	 */
+	static int intSearch(byte[] data, int key, boolean inclusive) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (hi - lo > LINEAR_SEARCH) {
+			int mid = (lo + hi) >>> 1;
+			int k = intKey(data, mid);
+			if (k < key || (inclusive && k == key))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int below = lo;
+		for (int slot = lo; slot < hi; slot++) {
+			int k = intKey(data, slot);
+			below += (k < key || (inclusive && k == key)) ? 1 : 0;
+		}
+		return below;
+	}
+
+	/**
+	 * Compare the string key of the record in the given slot with a key
+	 * written by DataOutputStream.writeUTF, as String.compareTo compares the
+	 * strings. Modified UTF-8 writes each char on its own, in one to three
+	 * bytes whose unsigned order is the order of the chars, except for
+	 * U+0000, which it writes as C0 80 rather than 00. The lead byte C0 is
+	 * written for nothing else, so it is ranked below all other bytes.
+	 */
+	static int compareUTF(byte[] data, int slot, byte[] key) {
+		int offset = slotOffset(data, slot);
+		int length = getShort(data, offset) & 0xffff;
+		int keyLength = getShort(key, 0) & 0xffff;
+		int end = Math.min(length, keyLength);
+		for (int i = 0; i < end; i++) {
+			int a = data[offset + 2 + i] & 0xff;
+			int b = key[2 + i] & 0xff;
+			if (a != b)
+				return (a == 0xc0 ? 0 : a) - (b == 0xc0 ? 0 : b);
+		}
+		return length - keyLength;
+	}
+
+	/**
+	 * intSearch for a leaf or index page with string keys: the number of
+	 * slots whose key is below key or, if inclusive, at most key, where key
+	 * is written by DataOutputStream.writeUTF.
+	 */
+	static int utfSearch(byte[] data, byte[] key, boolean inclusive) {
+		int lo = 0;
+		int hi = slotCount(data);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareUTF(data, mid, key);
+			if (cmp < 0 || (inclusive && cmp == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
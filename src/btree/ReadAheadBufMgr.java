@@ -0,0 +1,178 @@
+/*
+ * @(#) ReadAheadBufMgr.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * ReadAheadBufMgr.java A buffer manager that can hand out copies of a run of
+ * consecutive pages read with one vectored read of a VectoredDB.
+ *
+ * Reading around the buffer pool is only right for pages whose disk image
+ * is current, so this buffer manager keeps track of the pages that are
+ * pinned and of the pages that were unpinned dirty (or pinned as empty
+ * pages) and not written back since. Those pages are copied from their
+ * frames; all others come from the vectored read.
+ */
+public class ReadAheadBufMgr extends BufMgr implements GlobalConst {
+
+	private final Map<Integer, Integer> pins = new HashMap<Integer, Integer>();
+	private final BitSet dirty = new BitSet(); // disk image may be stale
+
+	/**
+	 * @param numbufs
+	 *            number of buffers in the pool. Input parameter.
+	 * @param replacerArg
+	 *            name of the replacement policy. Input parameter.
+	 */
+	public ReadAheadBufMgr(int numbufs, String replacerArg) {
+		super(numbufs, replacerArg);
+	}
+
+	/**
+	 * Replace the buffer manager of SystemDefs by a ReadAheadBufMgr with as
+	 * many buffers. Call it right after creating SystemDefs, while no page is
+	 * pinned.
+	 *
+	 * @param replacerArg
+	 *            name of the replacement policy. Input parameter.
+	 * @exception BufMgrException
+	 *                pages could not be flushed
+	 */
+	public static void install(String replacerArg) throws BufMgrException {
+		if (SystemDefs.JavabaseBM instanceof ReadAheadBufMgr)
+			return;
+
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BufMgrException(e, "install ReadAheadBufMgr failed");
+		}
+		SystemDefs.JavabaseBM = new ReadAheadBufMgr(
+				SystemDefs.JavabaseBM.getNumBuffers(), replacerArg);
+	}
+
+	/*
+	 * Called by the databases whenever a page has gone to disk.
+	 */
+	static void pageWritten(int pid) {
+		if (SystemDefs.JavabaseBM instanceof ReadAheadBufMgr)
+			((ReadAheadBufMgr) SystemDefs.JavabaseBM).dirty.clear(pid);
+	}
+
+	/*
+	 * Whether a page is pinned at least once.
+	 */
+	boolean isPinned(int pid) {
+		return pins.containsKey(pid);
+	}
+
+	/*
+	 * The pages pinned at least once.
+	 */
+	Set<Integer> pinnedPages() {
+		return pins.keySet();
+	}
+
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		super.pinPage(pin_pgid, page, emptyPage);
+		Integer n = pins.get(pin_pgid.pid);
+		pins.put(pin_pgid.pid, n == null ? 1 : n + 1);
+		if (emptyPage)
+			dirty.set(pin_pgid.pid);
+	}
+
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		super.unpinPage(PageId_in_a_DB, dirty);
+		int pid = PageId_in_a_DB.pid;
+		Integer n = pins.get(pid);
+		if (n != null) {
+			if (n > 1)
+				pins.put(pid, n - 1);
+			else
+				pins.remove(pid);
+		}
+		if (dirty)
+			this.dirty.set(pid);
+	}
+
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		super.freePage(globalPageId);
+		pins.remove(globalPageId.pid);
+		dirty.clear(globalPageId.pid);
+	}
+
+	/**
+	 * Copy n consecutive pages. Runs of pages whose disk image is current are
+	 * read with one vectored read each if the database is a VectoredDB; the
+	 * other pages are pinned and copied from their frames.
+	 *
+	 * @param start
+	 *            the first page to copy. Input parameter.
+	 * @param n
+	 *            number of pages to copy. Input parameter.
+	 * @param dst
+	 *            receives the pages, dst[i] the page start + i. Output
+	 *            parameter.
+	 * @exception BufMgrException
+	 *                error from the lower layers
+	 */
+	public void copyPages(PageId start, int n, byte[][] dst)
+			throws BufMgrException {
+		try {
+			boolean vectored = SystemDefs.JavabaseDB instanceof VectoredDB;
+			int i = 0;
+			while (i < n) {
+				int pid = start.pid + i;
+				if (!vectored || pins.containsKey(pid) || dirty.get(pid)) {
+					copyFrame(new PageId(pid), dst[i]);
+					i++;
+					continue;
+				}
+
+				int run = 1;
+				while (i + run < n && !pins.containsKey(pid + run)
+						&& !dirty.get(pid + run))
+					run++;
+				Page[] pages = new Page[run];
+				for (int j = 0; j < run; j++)
+					pages[j] = new Page(dst[i + j]);
+				((VectoredDB) SystemDefs.JavabaseDB).readPages(new PageId(pid),
+						run, pages);
+				i += run;
+			}
+		} catch (BufMgrException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BufMgrException(e, "copyPages failed");
+		}
+	}
+
+	private void copyFrame(PageId pageno, byte[] dst) throws Exception {
+		Page page = new Page();
+		pinPage(pageno, page, false);
+		System.arraycopy(page.getpage(), 0, dst, 0, MINIBASE_PAGESIZE);
+		unpinPage(pageno, false);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * @(#) VectoredDB.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * VectoredDB.java A database that can read and write a run of consecutive
+ * pages with a single scatter/gather call on a FileChannel, instead of one
+ * read or write per page. Subclasses see every page that goes to or comes
+ * from disk, by either path, through pagesWriting(), pageRead() and
+ * pageWritten().
+ */
+public class VectoredDB extends DB {
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * Reopen the database of SystemDefs as a VectoredDB and make it the one
+	 * the buffer manager reads and writes pages through. Call it right after
+	 * creating SystemDefs, while no page is pinned.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception DiskMgrException
+	 *                error from the lower layer
+	 */
+	public static void install() throws IOException, FileIOException,
+			DiskMgrException {
+		install(new VectoredDB());
+	}
+
+	/*
+	 * Open the database of SystemDefs through db and put db in place of the
+	 * current one, unless that already is of the same class.
+	 */
+	static void install(DB db) throws IOException, FileIOException,
+			DiskMgrException {
+		if (SystemDefs.JavabaseDB.getClass() == db.getClass())
+			return;
+
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+			DB old = SystemDefs.JavabaseDB;
+			db.openDB(old.db_name());
+			SystemDefs.JavabaseDB = db;
+			old.closeDB();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DiskMgrException(e, "install " + db.getClass().getName()
+					+ " failed");
+		}
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname);
+		openChannel();
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		super.openDB(fname, num_pgs);
+		openChannel();
+	}
+
+	private void openChannel() throws IOException {
+		file = new RandomAccessFile(db_name(), "rw");
+		channel = file.getChannel();
+	}
+
+	public void closeDB() throws IOException {
+		closeChannel();
+		super.closeDB();
+	}
+
+	public void DBDestroy() throws IOException {
+		closeChannel();
+		super.DBDestroy();
+	}
+
+	private void closeChannel() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+			channel = null;
+		}
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		super.read_page(pageno, apage);
+		pageRead(pageno.pid, apage);
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		pagesWriting(pageno.pid, 1, new Page[] { apage });
+		super.write_page(pageno, apage);
+		pageWritten(pageno.pid, apage);
+	}
+
+	/**
+	 * Read n consecutive pages with one vectored read.
+	 *
+	 * @param start
+	 *            the first page to read. Input parameter.
+	 * @param n
+	 *            number of pages to read. Input parameter.
+	 * @param dst
+	 *            receives the pages, dst[i] the page start + i. Output
+	 *            parameter.
+	 * @exception InvalidPageNumberException
+	 *                the run is not within the database
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void readPages(PageId start, int n, Page[] dst)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		ByteBuffer[] buffers = buffers(start, n, dst);
+		long want = (long) n * MINIBASE_PAGESIZE;
+		long done = 0;
+		channel.position((long) start.pid * MINIBASE_PAGESIZE);
+		while (done < want) {
+			long read = channel.read(buffers);
+			if (read < 0)
+				throw new FileIOException(null, "read past the end of "
+						+ db_name());
+			done += read;
+		}
+		for (int i = 0; i < n; i++)
+			pageRead(start.pid + i, dst[i]);
+	}
+
+	/**
+	 * Write n consecutive pages with one vectored write.
+	 *
+	 * @param start
+	 *            the first page to write. Input parameter.
+	 * @param n
+	 *            number of pages to write. Input parameter.
+	 * @param src
+	 *            the pages, src[i] is written to page start + i. Input
+	 *            parameter.
+	 * @exception InvalidPageNumberException
+	 *                the run is not within the database
+	 * @exception FileIOException
+	 *                error from the lower layer
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void writePages(PageId start, int n, Page[] src)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		ByteBuffer[] buffers = buffers(start, n, src);
+		pagesWriting(start.pid, n, src);
+		long want = (long) n * MINIBASE_PAGESIZE;
+		long done = 0;
+		channel.position((long) start.pid * MINIBASE_PAGESIZE);
+		while (done < want)
+			done += channel.write(buffers);
+		for (int i = 0; i < n; i++)
+			pageWritten(start.pid + i, src[i]);
+	}
+
+	private ByteBuffer[] buffers(PageId start, int n, Page[] pages)
+			throws InvalidPageNumberException {
+		if (start.pid < 0 || n < 0 || start.pid + n > db_num_pages()
+				|| n > pages.length)
+			throw new InvalidPageNumberException(null, "pages " + start.pid
+					+ " to " + (start.pid + n - 1) + " not in " + db_name());
+		ByteBuffer[] buffers = new ByteBuffer[n];
+		for (int i = 0; i < n; i++)
+			buffers[i] = ByteBuffer.wrap(pages[i].getpage(), 0,
+					MINIBASE_PAGESIZE);
+		return buffers;
+	}
+
+	/**
+	 * Called for every page read from the database file.
+	 *
+	 * @exception FileIOException
+	 *                the page is not as it was written
+	 */
+	protected void pageRead(int pid, Page page) throws FileIOException {
+	}
+
+	/**
+	 * Called before n consecutive pages are written, by either path.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	protected void pagesWriting(int start, int n, Page[] pages)
+			throws IOException {
+	}
+
+	/**
+	 * Called for every page written, with the page as written.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	protected void pageWritten(int pid, Page page) throws IOException {
+		ReadAheadBufMgr.pageWritten(pid);
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * @(#) VersionedBufMgr.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * VersionedBufMgr.java A buffer manager that keeps the B+ tree pages as they
+ * were when a snapshot was opened, for as long as the snapshot is open.
+ *
+ * While any snapshot is open, pinning an index or leaf page that has no
+ * saved copy yet saves a copy of it as it is before the pinner changes it.
+ * When the page is unpinned dirty, that copy becomes the version of the page
+ * of every open snapshot that has none yet; when the last pin goes, the copy
+ * is dropped. A page that is already pinned when a snapshot opens may be
+ * changed through that pin, so the snapshot copies it right away. The cost
+ * is a page copy per pin while snapshots are open, and the memory of the
+ * versions, which grows with the number of tree pages written until the
+ * snapshot is closed.
+ *
+ * Pinning, unpinning, allocating, freeing and flushing pages are
+ * synchronized on the buffer manager, the lock LeafCopyCursor.bmLock()
+ * returns, and so are the opening, reading and closing of snapshots. A snapshot may thus be read on another thread
+ * while the index is changed; a writer waits for a reader only while that
+ * reader pins, copies and unpins one page. A snapshot reads a page that a
+ * writer has pinned from the copy taken at the pin, never from the frame
+ * being changed.
+ *
+ * All trees of the database share the versions, so a snapshot holds the
+ * state of every index as of its opening. Pages freed and allocated again
+ * while a snapshot is open are not versioned: an index must not be
+ * destroyed or truncated under an open snapshot.
+ */
+public class VersionedBufMgr extends ReadAheadBufMgr {
+
+	/**
+	 * The pages of the database as of the time the snapshot was opened.
+	 */
+	static final class Snapshot {
+		private final VersionedBufMgr bufmgr;
+		private final Map<Integer, byte[]> versions = new ConcurrentHashMap<Integer, byte[]>();
+
+		private Snapshot(VersionedBufMgr bufmgr) {
+			this.bufmgr = bufmgr;
+		}
+
+		/**
+		 * @return a copy of the page as of the opening of the snapshot
+		 */
+		byte[] page(PageId pageno) throws ConstructPageException {
+			byte[] version = versions.get(pageno.pid);
+			if (version != null)
+				return version;
+
+			synchronized (LeafCopyCursor.bmLock()) {
+				version = versions.get(pageno.pid);
+				if (version == null) // pinned by a writer that may change it
+					version = bufmgr.pending.get(pageno.pid);
+				if (version != null)
+					return version;
+				return bufmgr.copy(pageno);
+			}
+		}
+
+		/**
+		 * Drop the versions; the snapshot cannot be read any more.
+		 */
+		void close() {
+			synchronized (LeafCopyCursor.bmLock()) {
+				bufmgr.snapshots.remove(this);
+			}
+			versions.clear();
+		}
+	}
+
+	private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+	private final Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>(); // copies taken at pin
+
+	/**
+	 * @param numbufs
+	 *            number of buffers in the pool. Input parameter.
+	 * @param replacerArg
+	 *            name of the replacement policy. Input parameter.
+	 */
+	public VersionedBufMgr(int numbufs, String replacerArg) {
+		super(numbufs, replacerArg);
+	}
+
+	/**
+	 * Replace the buffer manager of SystemDefs by a VersionedBufMgr with as
+	 * many buffers. Call it right after creating SystemDefs, while no page is
+	 * pinned.
+	 *
+	 * @param replacerArg
+	 *            name of the replacement policy. Input parameter.
+	 * @exception BufMgrException
+	 *                pages could not be flushed
+	 */
+	public static void install(String replacerArg) throws BufMgrException {
+		if (SystemDefs.JavabaseBM instanceof VersionedBufMgr)
+			return;
+
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BufMgrException(e, "install VersionedBufMgr failed");
+		}
+		SystemDefs.JavabaseBM = new VersionedBufMgr(
+				SystemDefs.JavabaseBM.getNumBuffers(), replacerArg);
+	}
+
+	/**
+	 * Open a snapshot of the database as it is now. It must be closed when
+	 * done.
+	 */
+	Snapshot openSnapshot() throws ConstructPageException {
+		synchronized (LeafCopyCursor.bmLock()) {
+			Snapshot snapshot = new Snapshot(this);
+			for (Integer pid : new ArrayList<Integer>(pinnedPages())) {
+				byte[] data = copy(new PageId(pid));
+				if (isTreePage(data))
+					snapshot.versions.put(pid, data);
+			}
+			snapshots.add(snapshot);
+			return snapshot;
+		}
+	}
+
+	/*
+	 * A copy of the page as it is in its frame now.
+	 */
+	private synchronized byte[] copy(PageId pageno)
+			throws ConstructPageException {
+		try {
+			Page page = new Page();
+			pinPage(pageno, page, false);
+			byte[] data = page.getpage().clone();
+			unpinPage(pageno, false);
+			return data;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "pin page failed");
+		}
+	}
+
+	public synchronized void pinPage(PageId pin_pgid, Page page,
+			boolean emptyPage) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		super.pinPage(pin_pgid, page, emptyPage);
+		if (!emptyPage && !snapshots.isEmpty()
+				&& !pending.containsKey(pin_pgid.pid)
+				&& isTreePage(page.getpage()))
+			pending.put(pin_pgid.pid, page.getpage().clone());
+	}
+
+	public synchronized void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		super.unpinPage(PageId_in_a_DB, dirty);
+		int pid = PageId_in_a_DB.pid;
+		byte[] before = pending.get(pid);
+		if (before != null) {
+			if (dirty)
+				for (Snapshot snapshot : snapshots)
+					snapshot.versions.putIfAbsent(pid, before);
+			if (!isPinned(pid))
+				pending.remove(pid);
+		}
+	}
+
+	public synchronized void freePage(PageId globalPageId)
+			throws InvalidBufferException, ReplacerException,
+			HashOperationException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, PageUnpinnedException,
+			HashEntryNotFoundException, BufMgrException, DiskMgrException,
+			IOException {
+		super.freePage(globalPageId);
+		pending.remove(globalPageId.pid);
+	}
+
+	public synchronized PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		return super.newPage(firstpage, howmany);
+	}
+
+	public synchronized void flushPage(PageId pageid)
+			throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			IOException {
+		super.flushPage(pageid);
+	}
+
+	public synchronized void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		super.flushAllPages();
+	}
+
+	private static boolean isTreePage(byte[] data) {
+		short type = RawPage.type(data);
+		return type == NodeType.INDEX || type == NodeType.LEAF
+				|| type == PostingList.TYPE;
+	}
+}
@@ -0,0 +1,313 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Runs AppendOnlyBTreeFile through batches that are committed and aborted,
+ * a reopen after a commit and after a crash in a batch, scans of older
+ * versions and the reuse of the pages those versions held.
+ */
+class AppendOnlyDriver extends TestDriver implements GlobalConst {
+
+	public AppendOnlyDriver() {
+		super("appendonlytest");
+	}
+
+	protected String testName() {
+		return "AppendOnly";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Changes of a batch are seen by no scan before commit, and not at all
+	 * after abort.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: begin, commit and abort");
+		boolean ok = true;
+		try {
+			AppendOnlyBTreeFile file = new AppendOnlyBTreeFile("AO_BATCH",
+					AttrType.attrInteger, 4);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(1);
+			for (int i = 0; i < 500; i++)
+				insert(file, model, random.nextInt(2000));
+			ok &= check(file, model, "autocommit");
+
+			List<Integer> committed = keys(model);
+			file.begin();
+			for (int i = 0; i < 1000; i++)
+				insert(file, model, random.nextInt(2000));
+			for (int i = 0; i < 200; i++)
+				delete(file, model, random.nextInt(2000));
+			ok &= check(scan(file.new_scan(null, null)), committed,
+					"before commit");
+			file.commit();
+			ok &= check(file, model, "commit");
+
+			committed = keys(model);
+			TreeMap<Integer, Integer> dropped = new TreeMap<Integer, Integer>(
+					model);
+			file.begin();
+			for (int i = 0; i < 1000; i++)
+				insert(file, dropped, random.nextInt(2000));
+			for (int i = 0; i < 200; i++)
+				delete(file, dropped, random.nextInt(2000));
+			file.abort();
+			ok &= check(scan(file.new_scan(null, null)), committed, "abort");
+
+			insert(file, model, 5000);
+			ok &= check(file, model, "autocommit after abort");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A committed version is read back after the database is reopened; a
+	 * batch that was never committed is gone after a crash.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: reopen after commit and crash");
+		boolean ok = true;
+		try {
+			AppendOnlyBTreeFile file = new AppendOnlyBTreeFile("AO_REOPEN",
+					AttrType.attrInteger, 4);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(2);
+			file.begin();
+			for (int i = 0; i < 3000; i++)
+				insert(file, model, random.nextInt(10000));
+			file.commit();
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			SystemDefs.JavabaseDB.closeDB();
+			new SystemDefs(dbpath, 0, 100, "Clock");
+
+			file = new AppendOnlyBTreeFile("AO_REOPEN");
+			ok &= check(file, model, "reopen");
+
+			// the buffer pool is dropped without writing it back
+			file.begin();
+			for (int i = 0; i < 3000; i++)
+				file.insert(new IntegerKey(random.nextInt(10000)), new RID(
+						new PageId(1), 0));
+			SystemDefs.JavabaseDB.closeDB();
+			new SystemDefs(dbpath, 0, 100, "Clock");
+
+			file = new AppendOnlyBTreeFile("AO_REOPEN");
+			ok &= check(file, model, "crash in a batch");
+			insert(file, model, 20000);
+			ok &= check(file, model, "insert after crash");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Open scans keep reading the version they were created on while later
+	 * versions are committed.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: scans of older versions");
+		boolean ok = true;
+		try {
+			AppendOnlyBTreeFile file = new AppendOnlyBTreeFile("AO_OLD",
+					AttrType.attrInteger, 4);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(3);
+			for (int i = 0; i < 2000; i++)
+				insert(file, model, random.nextInt(5000));
+
+			List<AppendOnlyFileScan> scans = new ArrayList<AppendOnlyFileScan>();
+			List<List<Integer>> expected = new ArrayList<List<Integer>>();
+			for (int round = 0; round < 3; round++) {
+				scans.add(file.new_scan(null, null));
+				expected.add(keys(model));
+				// read a little of it before the next version
+				scans.get(round).get_next();
+				expected.get(round).remove(0);
+
+				for (int i = 0; i < 300; i++)
+					insert(file, model, random.nextInt(5000));
+				file.begin();
+				for (int i = 0; i < 300; i++)
+					delete(file, model, random.nextInt(5000));
+				file.commit();
+			}
+			for (int round = 0; round < 3; round++)
+				ok &= check(scan(scans.get(round)), expected.get(round),
+						"version " + round);
+			ok &= check(file, model, "latest");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Every commit of a one leaf tree copies the leaf. The pages of older
+	 * versions are freed for later copies, so the copies go round one
+	 * extent, unless a scan still reads an older version.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: reuse of the pages of old versions");
+		boolean ok = true;
+		try {
+			AppendOnlyBTreeFile file = new AppendOnlyBTreeFile("AO_REUSE",
+					AttrType.attrInteger, 4);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < 10; i++)
+				insert(file, model, i);
+
+			Set<Integer> roots = commits(file, model, 300);
+			if (roots.size() > 64) {
+				System.out.println("    " + roots.size()
+						+ " leaf pages for 300 commits without a scan");
+				ok = false;
+			}
+
+			int scanned = rootPage(file);
+			AppendOnlyFileScan scan = file.new_scan(null, null);
+			List<Integer> expected = keys(model);
+			Set<Integer> held = commits(file, model, 100);
+			if (held.contains(scanned) || held.size() != 100) {
+				System.out.println("    " + held.size()
+						+ " leaf pages for 100 commits under a scan");
+				ok = false;
+			}
+			ok &= check(scan(scan), expected, "old version");
+			roots.addAll(held);
+
+			Set<Integer> after = commits(file, model, 300);
+			roots.addAll(after);
+			if (after.size() > 64 || roots.size() > 2 * 64) {
+				System.out.println("    " + after.size()
+						+ " leaf pages for 300 commits after the scan, "
+						+ roots.size() + " in all");
+				ok = false;
+			}
+			ok &= check(file, model, "reuse");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 4 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/*
+	 * Commit n changes of a key in turn and return the root pages they made.
+	 */
+	static Set<Integer> commits(AppendOnlyBTreeFile file,
+			TreeMap<Integer, Integer> model, int n) throws Exception {
+		Set<Integer> roots = new HashSet<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (model.containsKey(100))
+				delete(file, model, 100);
+			else
+				insert(file, model, 100);
+			roots.add(rootPage(file));
+		}
+		return roots;
+	}
+
+	/*
+	 * The header page of an index keeps the root in its next-page link.
+	 */
+	static int rootPage(AppendOnlyBTreeFile file) throws IOException {
+		Object header = file.getHeaderPage();
+		return ((HFPage) header).getNextPage().pid;
+	}
+
+	static void insert(AppendOnlyBTreeFile file,
+			TreeMap<Integer, Integer> model, int key) throws Exception {
+		Integer n = model.get(key);
+		model.put(key, n == null ? 1 : n + 1);
+		file.insert(new IntegerKey(key), rid(key, model.get(key)));
+	}
+
+	/*
+	 * Delete the newest entry of the key, if there is one.
+	 */
+	static void delete(AppendOnlyBTreeFile file,
+			TreeMap<Integer, Integer> model, int key) throws Exception {
+		Integer n = model.get(key);
+		boolean deleted = file.Delete(new IntegerKey(key), rid(key,
+				n == null ? 1 : n));
+		if (deleted != (n != null))
+			throw new Exception("Delete of " + key + " returned " + deleted);
+		if (n == null)
+			return;
+		if (n > 1)
+			model.put(key, n - 1);
+		else
+			model.remove(key);
+	}
+
+	static RID rid(int key, int copy) {
+		return new RID(new PageId(10 + key), copy);
+	}
+
+	static List<Integer> keys(TreeMap<Integer, Integer> model) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : model.entrySet())
+			for (int i = 0; i < entry.getValue(); i++)
+				keys.add(entry.getKey());
+		return keys;
+	}
+
+	static List<Integer> scan(AppendOnlyFileScan scan) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next())
+			keys.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return keys;
+	}
+
+	static boolean check(AppendOnlyBTreeFile file,
+			TreeMap<Integer, Integer> model, String name) throws Exception {
+		return check(scan(file.new_scan(null, null)), keys(model), name);
+	}
+
+	static boolean check(List<Integer> got, List<Integer> expected,
+			String name) {
+		if (got.equals(expected))
+			return true;
+		System.out.println("    " + name + ": " + got.size()
+				+ " entries, expected " + expected.size());
+		return false;
+	}
+}
+
+public class AppendOnlyTest {
+
+	public static void main(String[] argvs) {
+		AppendOnlyDriver test = new AppendOnlyDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -103,7 +103,7 @@ class BTDriver implements GlobalConst {
 				.println("\n           ---Integer Key (for choices [3]-[5]) ---");
 		System.out.println("\n[3]   Insert a Record");
 		System.out.println("[4]   Delete a Record (Naive Delete)");
-		System.out.println("[5]   Delete some records (Naive Delete)");
+		System.out.println("[5]   Delete a range of records");
 
 		System.out.println("\n[6]  Quit!");
 		System.out.print("Hi, make your choice :");
@@ -231,11 +231,8 @@ class BTDriver implements GlobalConst {
 					hikeyInt = GetStuff.getChoice();
 					if (hikeyInt < 0 || lowkeyInt < 0)
 						break;
-					for (key = lowkeyInt; key <= hikeyInt; key++) {
-						pageno.pid = key;
-						rid = new RID(pageno, key);
-						file.Delete(new IntegerKey(key), rid);
-					}
+					file.deleteRange(new IntegerKey(lowkeyInt), new IntegerKey(
+							hikeyInt));
 					break;
 
 				case 6:
@@ -0,0 +1,338 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Builds indexes over a heap file with BTreeFile.buildFrom, on integer and
+ * string fields, with subtree counts, posting lists, a Bloom filter and the
+ * unique flag, and checks the builds that must fail leave the index empty.
+ */
+class BuildFromDriver extends TestDriver implements GlobalConst {
+
+	private static final int RECORDS = 20000;
+	private static final int STRING_SIZE = 20;
+
+	private Heapfile heapfile;
+	private final List<long[]> records = new ArrayList<long[]>(); // key, pid, slot
+
+	public BuildFromDriver() {
+		super("buildfromtest");
+	}
+
+	protected String testName() {
+		return "BuildFrom";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		try {
+			heapfile = new Heapfile("BF_HEAP");
+			Random random = new Random(30);
+			for (int i = 0; i < RECORDS; i++) {
+				int key = random.nextInt(RECORDS / 3);
+				RID rid = heapfile.insertRecord(record(key, key(key))
+						.getTupleByteArray());
+				records.add(new long[] { key, rid.pageNo.pid, rid.slotNo });
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return super.runAllTests();
+	}
+
+	/**
+	 * An integer key index with subtree counts holds every record in key
+	 * and rid order, in fuller leaves than one built by inserts, and takes
+	 * inserts afterwards.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: integer keys");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("BF_INT", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setSubtreeCounts(true);
+			file.buildFrom(heapfile, 1);
+			List<long[]> expected = sorted(records);
+			ok &= check(scan(file), expected, true, "build");
+			ok &= verify(file, "build");
+			if (file.count(null, null) != RECORDS) {
+				System.out.println("    count " + file.count(null, null));
+				ok = false;
+			}
+
+			BTreeFile inserted = new BTreeFile("BF_INSERTED",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			for (long[] record : records)
+				inserted.insert(new IntegerKey((int) record[0]), new RID(
+						new PageId((int) record[1]), (int) record[2]));
+			if (file.stats().leafFill() < 0.85
+					|| file.stats().pages() >= inserted.stats().pages()) {
+				System.out.println("    leaf fill " + file.stats().leafFill()
+						+ ", " + file.stats().pages() + " pages, "
+						+ inserted.stats().pages() + " by inserts");
+				ok = false;
+			}
+			inserted.destroyFile();
+
+			Random random = new Random(32);
+			List<long[]> more = new ArrayList<long[]>(records);
+			for (int i = 0; i < 2000; i++) {
+				long[] record = { random.nextInt(RECORDS), 5000 + i / 100,
+						i % 100 };
+				file.insert(new IntegerKey((int) record[0]), new RID(
+						new PageId((int) record[1]), (int) record[2]));
+				more.add(record);
+			}
+			ok &= check(scan(file), sorted(more), false, "inserts after build");
+			ok &= verify(file, "inserts after build");
+			if (file.count(null, null) != more.size()) {
+				System.out.println("    count " + file.count(null, null)
+						+ " after inserts");
+				ok = false;
+			}
+			ok &= SplitDriver.checkPins(unpinned - 1, "integer keys");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A string key index, one that turns the keys with enough records into
+	 * posting lists, and one with a Bloom filter.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: string keys, posting lists, Bloom filter");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("BF_STRING", AttrType.attrString,
+					STRING_SIZE, DeleteFashion.NAIVE_DELETE);
+			file.buildFrom(heapfile, 2);
+			ok &= check(scan(file), sorted(records), true, "string keys");
+			ok &= verify(file, "string keys");
+			file.destroyFile();
+
+			file = new BTreeFile("BF_POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(3);
+			file.buildFrom(heapfile, 1);
+			ok &= check(scan(file), sorted(records), false, "posting lists");
+			ok &= verify(file, "posting lists");
+			Map<Long, Integer> perKey = new HashMap<Long, Integer>();
+			for (long[] record : records) {
+				Integer n = perKey.get(record[0]);
+				perKey.put(record[0], n == null ? 1 : n + 1);
+			}
+			long slots = 0;
+			for (int n : perKey.values())
+				slots += n >= 3 ? 1 : n;
+			if (file.stats().entries != slots) {
+				System.out.println("    " + file.stats().entries
+						+ " leaf entries, expected " + slots);
+				ok = false;
+			}
+			file.destroyFile();
+
+			file = new BTreeFile("BF_BLOOM", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setBloomFilter(true);
+			file.buildFrom(heapfile, 1);
+			ok &= check(scan(file), sorted(records), true, "Bloom filter");
+			for (long[] record : records.subList(0, 500)) {
+				BTFileScan scan = file.new_scan(new IntegerKey(
+						(int) record[0]), new IntegerKey((int) record[0]));
+				if (scan.get_next() == null) {
+					System.out.println("    key " + record[0] + " not found");
+					ok = false;
+				}
+				scan.DestroyBTreeFileScan();
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A unique index over duplicate keys, a missing field and an index that
+	 * is not empty are refused; a failed build frees its pages and leaves
+	 * no sort files behind.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: failed builds");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			int sortFiles = sortFiles();
+			BTreeFile file = new BTreeFile("BF_UNIQUE", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setUnique(true);
+			try {
+				file.buildFrom(heapfile, 1);
+				System.out.println("    unique index over duplicates");
+				ok = false;
+			} catch (DuplicateKeyException e) {
+			}
+			try {
+				file.buildFrom(heapfile, 3);
+				System.out.println("    build on a missing field");
+				ok = false;
+			} catch (FieldNumberOutOfBoundException e) {
+			}
+			if (!scan(file).isEmpty() || file.stats().pages() != 0) {
+				System.out.println("    failed build left "
+						+ file.stats().pages() + " pages");
+				ok = false;
+			}
+
+			// the same index over distinct keys
+			Heapfile distinct = new Heapfile("BF_DISTINCT");
+			List<long[]> expected = new ArrayList<long[]>();
+			for (int key = 0; key < 3000; key++) {
+				RID rid = distinct.insertRecord(record(key * 7, key(key))
+						.getTupleByteArray());
+				expected.add(new long[] { key * 7, rid.pageNo.pid, rid.slotNo });
+			}
+			file.buildFrom(distinct, 1);
+			ok &= check(scan(file), expected, true, "unique");
+			try {
+				file.buildFrom(distinct, 1);
+				System.out.println("    build into a full index");
+				ok = false;
+			} catch (InsertException e) {
+			}
+			ok &= check(scan(file), expected, true, "after refused build");
+			ok &= verify(file, "unique");
+			distinct.deleteFile();
+
+			ok &= SplitDriver.checkPins(unpinned - 1, "failed builds");
+			if (sortFiles() != sortFiles) {
+				System.out.println("    " + (sortFiles() - sortFiles)
+						+ " sort files left");
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	static String key(int key) {
+		return String.format("k%05d", key);
+	}
+
+	/*
+	 * A record of an integer field and a string field.
+	 */
+	static Tuple record(int key, String name) throws Exception {
+		AttrType[] types = { new AttrType(AttrType.attrInteger),
+				new AttrType(AttrType.attrString) };
+		short[] sizes = { STRING_SIZE };
+		Tuple tuple = new Tuple();
+		tuple.setHdr((short) 2, types, sizes);
+		tuple = new Tuple(tuple.size());
+		tuple.setHdr((short) 2, types, sizes);
+		tuple.setIntFld(1, key);
+		tuple.setStrFld(2, name);
+		return tuple;
+	}
+
+	/*
+	 * Key, then page and slot order. Keys compare as numbers, which is also
+	 * the order of their strings.
+	 */
+	static List<long[]> sorted(List<long[]> records) {
+		List<long[]> sorted = new ArrayList<long[]>(records);
+		Collections.sort(sorted, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				for (int i = 0; i < 3; i++)
+					if (a[i] != b[i])
+						return a[i] < b[i] ? -1 : 1;
+				return 0;
+			}
+		});
+		return sorted;
+	}
+
+	static List<long[]> scan(BTreeFile file) throws Exception {
+		List<long[]> entries = new ArrayList<long[]>();
+		BTFileScan scan = file.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			long key = entry.key instanceof IntegerKey ? ((IntegerKey) entry.key)
+					.getKey() : Long.parseLong(((StringKey) entry.key).getKey()
+					.substring(1));
+			RID rid = ((LeafData) entry.data).getData();
+			entries.add(new long[] { key, rid.pageNo.pid, rid.slotNo });
+		}
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * The scan must return the expected entries, in key order and, if
+	 * inOrder, in rid order within a key; else in any order within a key.
+	 */
+	static boolean check(List<long[]> got, List<long[]> expected,
+			boolean inOrder, String name) {
+		for (int i = 1; i < got.size(); i++)
+			if (got.get(i - 1)[0] > got.get(i)[0]) {
+				System.out.println("    " + name + ": key " + got.get(i)[0]
+						+ " after " + got.get(i - 1)[0]);
+				return false;
+			}
+		List<long[]> compared = inOrder ? got : sorted(got);
+		boolean equal = compared.size() == expected.size();
+		for (int i = 0; equal && i < compared.size(); i++)
+			equal = Arrays.equals(compared.get(i), expected.get(i));
+		if (!equal)
+			System.out.println("    " + name + ": " + got.size()
+					+ " entries, expected " + expected.size());
+		return equal;
+	}
+
+	static boolean verify(BTreeFile file, String name) throws Exception {
+		List<String> problems = file.verify();
+		if (problems.isEmpty())
+			return true;
+		System.out.println("    " + name + ": " + problems);
+		return false;
+	}
+
+	static int sortFiles() {
+		String[] files = new File(System.getProperty("java.io.tmpdir"))
+				.list(new FilenameFilter() {
+					public boolean accept(File dir, String name) {
+						return name.startsWith("btsort");
+					}
+				});
+		return files == null ? 0 : files.length;
+	}
+}
+
+public class BuildFromTest {
+
+	public static void main(String[] argvs) {
+		BuildFromDriver test = new BuildFromDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -0,0 +1,65 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Times inserts into an index whose buffer pool is small enough that most
+ * inserts write a page back, with the pages going through a plain
+ * VectoredDB and through a ChecksumDB. The rounds alternate between the two
+ * and the median of each is printed.
+ *
+ * usage: java tests.ChecksumBench [entries [rounds]]
+ */
+public class ChecksumBench implements GlobalConst {
+
+	public static void main(String[] argvs) throws Exception {
+		int entries = argvs.length > 0 ? Integer.parseInt(argvs[0]) : 100000;
+		int rounds = argvs.length > 1 ? Integer.parseInt(argvs[1]) : 7;
+		String dbpath = "/tmp/checksumbench" + System.getProperty("user.name")
+				+ ".minibase-db";
+
+		long[][] times = new long[2][rounds];
+		for (int round = -1; round < rounds; round++) // round -1 warms up
+			for (int stamped = 0; stamped < 2; stamped++) {
+				long ms = run(dbpath, entries, stamped == 1);
+				if (round >= 0)
+					times[stamped][round] = ms;
+			}
+
+		for (int stamped = 0; stamped < 2; stamped++) {
+			Arrays.sort(times[stamped]);
+			System.out.println((stamped == 1 ? "ChecksumDB" : "VectoredDB")
+					+ ": " + entries + " inserts, median "
+					+ times[stamped][rounds / 2] + " ms of " + rounds
+					+ " rounds");
+		}
+	}
+
+	static long run(String dbpath, int entries, boolean stamped)
+			throws Exception {
+		new File(dbpath).delete();
+		new File(dbpath + ".crc").delete();
+		new SystemDefs(dbpath, 20000, 50, "Clock");
+		if (stamped)
+			ChecksumDB.install();
+		else
+			VectoredDB.install();
+
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		BTreeFile file = new BTreeFile("BENCH", AttrType.attrInteger, 4, 0);
+		for (int i = 0; i < entries; i++)
+			file.insert(new IntegerKey(random.nextInt()), new RID(new PageId(
+					i), 0));
+		file.close();
+		SystemDefs.JavabaseBM.flushAllPages();
+		long ms = (System.nanoTime() - start) / 1000000;
+
+		SystemDefs.JavabaseDB.DBDestroy();
+		return ms;
+	}
+}
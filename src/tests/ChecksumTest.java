@@ -0,0 +1,193 @@
+package tests;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Damages pages of an index on disk behind a ChecksumDB and checks that
+ * reading them fails, while a page whose last write was lost whole is still
+ * read.
+ */
+class ChecksumDriver extends TestDriver implements GlobalConst {
+
+	public ChecksumDriver() {
+		super("checksumtest");
+	}
+
+	protected String testName() {
+		return "Checksum";
+	}
+
+	protected boolean runAllTests() {
+		// the stamps of an earlier run would not match the new database
+		new File(dbpath + ".crc").delete();
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		try {
+			ChecksumDB.install();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return super.runAllTests();
+	}
+
+	/**
+	 * A flipped byte on the root page fails the read after a reopen.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: a damaged page fails its read");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("CK_FLIP", AttrType.attrInteger, 4,
+					0);
+			for (int i = 0; i < 2000; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(10 + i), 0));
+			int root = rootPage(file);
+			file.close();
+			reopen();
+			ok &= scan("CK_FLIP") == 2000;
+
+			file = null;
+			reopen();
+			byte[] page = readPage(root);
+			page[MINIBASE_PAGESIZE / 2] ^= 1;
+			writePage(root, page);
+			ok &= expectFailure("CK_FLIP", "flipped byte");
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A write of the page that never reached the disk leaves the version
+	 * before it, which matches the previous stamp; half of one version and
+	 * half of the other matches neither.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: lost and torn writes");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("CK_LOST", AttrType.attrInteger, 4,
+					0);
+			for (int i = 0; i < 10; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(10 + i), 0));
+			int root = rootPage(file);
+			file.close();
+			reopen();
+			byte[] before = readPage(root);
+
+			// two writes of the leaf are lost in turn; the second one is
+			// made after the first loss was read back
+			for (int round = 0; round < 2; round++) {
+				file = new BTreeFile("CK_LOST");
+				file.insert(new IntegerKey(100 + round), new RID(new PageId(5),
+						0));
+				file.close();
+				reopen();
+				writePage(root, before);
+				int found = scan("CK_LOST");
+				if (found != 10) {
+					System.out.println("    round " + round + ": " + found
+							+ " entries after a lost write, expected 10");
+					ok = false;
+				}
+			}
+
+			file = new BTreeFile("CK_LOST");
+			file.insert(new IntegerKey(200), new RID(new PageId(5), 0));
+			file.close();
+			reopen();
+			ok &= scan("CK_LOST") == 11;
+
+			reopen();
+			byte[] torn = readPage(root);
+			System.arraycopy(before, 0, torn, 0, MINIBASE_PAGESIZE / 2);
+			writePage(root, torn);
+			ok &= expectFailure("CK_LOST", "torn page");
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/*
+	 * Write everything back and open the database again, so that every page
+	 * is checked on its next read.
+	 */
+	void reopen() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseDB.closeDB();
+		new SystemDefs(dbpath, 0, 100, "Clock");
+		ChecksumDB.install();
+	}
+
+	/*
+	 * The number of entries of a full scan of the index.
+	 */
+	static int scan(String name) throws Exception {
+		BTreeFile file = new BTreeFile(name);
+		try {
+			BTFileScan scan = file.new_scan(null, null);
+			int n = 0;
+			while (scan.get_next() != null)
+				n++;
+			scan.DestroyBTreeFileScan();
+			return n;
+		} finally {
+			file.close();
+		}
+	}
+
+	static boolean expectFailure(String name, String what) {
+		try {
+			scan(name);
+		} catch (Exception e) {
+			System.out.println("    " + what + ": " + e);
+			return true;
+		}
+		System.out.println("    " + what + " was read without an error");
+		return false;
+	}
+
+	/*
+	 * The header page of an index keeps the root in its next-page link.
+	 */
+	static int rootPage(BTreeFile file) throws IOException {
+		Object header = file.getHeaderPage();
+		return ((HFPage) header).getNextPage().pid;
+	}
+
+	byte[] readPage(int pid) throws IOException {
+		RandomAccessFile db = new RandomAccessFile(dbpath, "r");
+		byte[] page = new byte[MINIBASE_PAGESIZE];
+		db.seek((long) pid * MINIBASE_PAGESIZE);
+		db.readFully(page);
+		db.close();
+		return page;
+	}
+
+	void writePage(int pid, byte[] page) throws IOException {
+		RandomAccessFile db = new RandomAccessFile(dbpath, "rw");
+		db.seek((long) pid * MINIBASE_PAGESIZE);
+		db.write(page);
+		db.close();
+	}
+}
+
+public class ChecksumTest {
+
+	public static void main(String[] argvs) {
+		ChecksumDriver test = new ChecksumDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -0,0 +1,308 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks that the store of a CompressedDB reuses and gives back the space
+ * of released records, and that reopening it recovers the latest version
+ * of a page after a crash and reports a torn record.
+ */
+class CompressedDriver extends TestDriver implements GlobalConst {
+
+	private static final int UNIT = 32;
+	private static final int RECORD_HEADER = 14;
+
+	public CompressedDriver() {
+		super("compressedtest");
+	}
+
+	protected String testName() {
+		return "Compressed";
+	}
+
+	protected boolean runAllTests() {
+		// side files of an earlier run would not match the new database
+		new File(dbpath + ".crc").delete();
+		new File(dbpath + ".cz").delete();
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		try {
+			CompressedDB.install();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return super.runAllTests();
+	}
+
+	/**
+	 * Deleting and inserting entries changes the sizes of the leaf records
+	 * but not the number of entries, so the store must stop growing.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: store size under churn");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("CZ_CHURN", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(3);
+			int[] keys = new int[4000];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextInt(1000000);
+				file.insert(new IntegerKey(keys[i]), rid(i, keys[i]));
+			}
+			file.close();
+
+			long first = 0;
+			for (int round = 0; round < 30; round++) {
+				file = new BTreeFile("CZ_CHURN");
+				for (int i = 0; i < keys.length; i += 4) {
+					int at = i + random.nextInt(4);
+					if (!file.Delete(new IntegerKey(keys[at]), rid(at, keys[at]))) {
+						System.out.println("    entry " + at + " not deleted");
+						ok = false;
+					}
+					keys[at] = random.nextInt(1000000);
+					file.insert(new IntegerKey(keys[at]), rid(at, keys[at]));
+				}
+				file.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				long size = storeSize();
+				if (round == 4)
+					first = size;
+				if (round > 4 && size > first * 5 / 4) {
+					System.out.println("    store grew from " + first + " to "
+							+ size + " bytes by round " + round);
+					ok = false;
+					break;
+				}
+			}
+
+			reopen();
+			file = new BTreeFile("CZ_CHURN");
+			Arrays.sort(keys);
+			BTFileScan scan = file.new_scan(null, null);
+			int n = 0;
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next()) {
+				int key = ((IntegerKey) entry.key).getKey().intValue();
+				if (n >= keys.length || key != keys[n]) {
+					System.out.println("    key " + key + " at entry " + n
+							+ " after reopen");
+					ok = false;
+					break;
+				}
+				n++;
+			}
+			scan.DestroyBTreeFileScan();
+			if (ok && n != keys.length) {
+				System.out.println("    " + n + " entries after reopen, expected "
+						+ keys.length);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Destroying the only index gives back the whole store, and a stale
+	 * record left at the end by a crash is cut off when it is reopened.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: free space at the end of the store");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("CZ_TAIL", AttrType.attrInteger, 4,
+					0);
+			for (int i = 0; i < 20; i++)
+				file.insert(new IntegerKey(i), rid(i, i));
+			int root = ChecksumDriver.rootPage(file);
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			close();
+			int[] record = findRecord(root);
+			byte[] old = readStore(record[0], record[1]);
+			open();
+
+			file = new BTreeFile("CZ_TAIL");
+			file.insert(new IntegerKey(100), rid(100, 100));
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			close();
+			long size = storeSize();
+			// the older version of the leaf, as if its release was lost
+			writeStore((int) (size / UNIT), old);
+			open();
+			if (storeSize() != size) {
+				System.out.println("    store of " + storeSize()
+						+ " bytes after reopen, expected " + size);
+				ok = false;
+			}
+			ok &= ChecksumDriver.scan("CZ_TAIL") == 21;
+
+			file = new BTreeFile("CZ_TAIL");
+			file.destroyFile();
+			SystemDefs.JavabaseBM.flushAllPages();
+			if (storeSize() != 0) {
+				System.out.println("    store of " + storeSize()
+						+ " bytes after the index was destroyed");
+				ok = false;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A crash between writing the new record of a page and releasing the
+	 * old one leaves both; the newer one wins on reopen. A torn newest record
+	 * fails the read, also after another reopen.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: records left by a crash");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("CZ_TORN", AttrType.attrInteger, 4,
+					0);
+			for (int i = 0; i < 20; i++)
+				file.insert(new IntegerKey(i), rid(i, i));
+			int root = ChecksumDriver.rootPage(file);
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			close();
+			int[] before = findRecord(root);
+			byte[] old = readStore(before[0], before[1]);
+			open();
+
+			file = new BTreeFile("CZ_TORN");
+			file.insert(new IntegerKey(100), rid(100, 100));
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+			close();
+			int[] after = findRecord(root);
+			if (after[0] == before[0]) {
+				System.out.println("    new record written over the old one");
+				ok = false;
+			}
+			writeStore(before[0], old);
+			open();
+			int found = ChecksumDriver.scan("CZ_TORN");
+			if (found != 21) {
+				System.out.println("    " + found
+						+ " entries with both records, expected 21");
+				ok = false;
+			}
+
+			SystemDefs.JavabaseBM.flushAllPages();
+			close();
+			after = findRecord(root);
+			byte[] torn = readStore(after[0], 1);
+			torn[RECORD_HEADER + 4] ^= 1;
+			writeStore(after[0], torn);
+			open();
+			ok &= ChecksumDriver.expectFailure("CZ_TORN", "torn record");
+			reopen();
+			ok &= ChecksumDriver.expectFailure("CZ_TORN", "torn record again");
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	void reopen() throws Exception {
+		SystemDefs.JavabaseBM.flushAllPages();
+		close();
+		open();
+	}
+
+	void close() throws Exception {
+		SystemDefs.JavabaseDB.closeDB();
+	}
+
+	void open() throws Exception {
+		new SystemDefs(dbpath, 0, 100, "Clock");
+		CompressedDB.install();
+	}
+
+	long storeSize() {
+		return new File(dbpath + ".cz").length();
+	}
+
+	/*
+	 * The unit and number of units of the newest record of a page, walking
+	 * the store the way CompressedDB does when it is opened.
+	 */
+	int[] findRecord(int pid) throws IOException {
+		RandomAccessFile store = new RandomAccessFile(dbpath + ".cz", "r");
+		int units = (int) (store.length() / UNIT);
+		int[] found = null;
+		int newest = -1;
+		byte[] header = new byte[RECORD_HEADER];
+		try {
+			for (int unit = 0; unit < units;) {
+				store.seek((long) unit * UNIT);
+				store.readFully(header);
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(header));
+				int recPid = in.readInt();
+				int seq = in.readInt();
+				int length = (header[8] & 0xff) << 8 | header[9] & 0xff;
+				int run = recPid == -2 ? seq
+						: (RECORD_HEADER + length + UNIT - 1) / UNIT;
+				if (recPid == pid && seq > newest) {
+					newest = seq;
+					found = new int[] { unit, run };
+				}
+				unit += Math.max(run, 1);
+			}
+		} finally {
+			store.close();
+		}
+		if (found == null)
+			throw new IOException("no record of page " + pid);
+		return found;
+	}
+
+	byte[] readStore(int unit, int units) throws IOException {
+		RandomAccessFile store = new RandomAccessFile(dbpath + ".cz", "r");
+		byte[] data = new byte[units * UNIT];
+		store.seek((long) unit * UNIT);
+		store.readFully(data);
+		store.close();
+		return data;
+	}
+
+	void writeStore(int unit, byte[] data) throws IOException {
+		RandomAccessFile store = new RandomAccessFile(dbpath + ".cz", "rw");
+		store.seek((long) unit * UNIT);
+		store.write(data);
+		store.close();
+	}
+
+	static RID rid(int i, int key) {
+		return new RID(new PageId(10 + i), key % 50);
+	}
+}
+
+public class CompressedTest {
+
+	public static void main(String[] argvs) {
+		CompressedDriver test = new CompressedDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
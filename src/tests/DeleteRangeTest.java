@@ -0,0 +1,212 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks BTreeFile.deleteRange against a model of the index: ranges inside
+ * one leaf and across whole subtrees, open and empty ranges, duplicates on
+ * both sides of a separator, and trees that keep subtree counts.
+ */
+class DeleteRangeDriver extends TestDriver implements GlobalConst {
+
+	public DeleteRangeDriver() {
+		super("deleterangetest");
+	}
+
+	protected String testName() {
+		return "DeleteRange";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Random ranges of every size, with and without subtree counts, each
+	 * followed by inserts into the range just deleted.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: random ranges");
+		boolean ok = true;
+		try {
+			for (int counts = 0; counts < 2; counts++) {
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				BTreeFile file = new BTreeFile("DR_RANDOM" + counts,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				file.setSubtreeCounts(counts == 1);
+				String name = counts == 1 ? "counts" : "plain";
+				TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+				Random random = new Random(12);
+				for (int i = 0; i < 20000; i++)
+					insert(file, model, random.nextInt(50000));
+
+				int[] widths = { 0, 3, 100, 2000, 15000 };
+				for (int round = 0; round < 20 && ok; round++) {
+					int lo = random.nextInt(50000);
+					int hi = lo + widths[round % widths.length];
+					file.deleteRange(new IntegerKey(lo), new IntegerKey(hi));
+					model.subMap(lo, true, hi, true).clear();
+					ok &= check(file, model, name + " range " + lo + ".." + hi);
+
+					for (int i = 0; i < 50; i++)
+						insert(file, model, lo + random.nextInt(hi - lo + 1));
+					ok &= check(file, model, name + " inserts into " + lo
+							+ ".." + hi);
+				}
+				ok &= SplitDriver.checkPins(unpinned - 1, name);
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Ranges open on one side or both, ranges with no key in them and
+	 * inverted ranges; deleting most of the tree gives its pages back.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: open, empty and inverted ranges");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("DR_OPEN", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < 20000; i++)
+				insert(file, model, i * 2);
+			int pages = file.stats().pages();
+
+			file.deleteRange(new IntegerKey(1001), new IntegerKey(1001));
+			ok &= check(file, model, "range without keys");
+			file.deleteRange(new IntegerKey(3000), new IntegerKey(2000));
+			ok &= check(file, model, "inverted range");
+
+			file.deleteRange(null, new IntegerKey(10000));
+			model.headMap(10000, true).clear();
+			ok &= check(file, model, "open low end");
+			file.deleteRange(new IntegerKey(20000), null);
+			model.tailMap(20000, true).clear();
+			ok &= check(file, model, "open high end");
+			if (file.stats().pages() > pages / 2) {
+				System.out.println("    " + file.stats().pages()
+						+ " pages left of " + pages);
+				ok = false;
+			}
+
+			file.deleteRange(null, null);
+			model.clear();
+			ok &= check(file, model, "everything");
+			insert(file, model, 7);
+			ok &= check(file, model, "insert after everything");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Runs of one key longer than a leaf lie on both sides of separators;
+	 * a range that ends on such a key deletes the whole run.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: duplicate runs at the range ends");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("DR_DUPS", AttrType.attrString, 20,
+					DeleteFashion.NAIVE_DELETE);
+			TreeMap<String, Integer> model = new TreeMap<String, Integer>();
+			Random random = new Random(14);
+			for (int i = 0; i < 8000; i++) {
+				// a few keys take most of the entries
+				int key = random.nextInt(4) == 0 ? random.nextInt(2000)
+						: 100 * random.nextInt(20);
+				insert(file, model, key(key));
+			}
+
+			String[][] ranges = { { key(300), key(300) },
+					{ key(500), key(1000) }, { key(1050), key(1400) },
+					{ key(1999), key(1999) } };
+			for (String[] range : ranges) {
+				file.deleteRange(new StringKey(range[0]), new StringKey(
+						range[1]));
+				model.subMap(range[0], true, range[1], true).clear();
+				ok &= check(file, model, range[0] + ".." + range[1]);
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	static void insert(BTreeFile file, TreeMap<Integer, Integer> model,
+			int key) throws Exception {
+		file.insert(new IntegerKey(key), new RID(new PageId(10), key % 50));
+		Integer n = model.get(key);
+		model.put(key, n == null ? 1 : n + 1);
+	}
+
+	static void insert(BTreeFile file, TreeMap<String, Integer> model,
+			String key) throws Exception {
+		file.insert(new StringKey(key), new RID(new PageId(10), 0));
+		Integer n = model.get(key);
+		model.put(key, n == null ? 1 : n + 1);
+	}
+
+	static String key(int key) {
+		return String.format("k%05d", key);
+	}
+
+	/*
+	 * A full scan must return the keys of the model, and the tree and its
+	 * counts must verify.
+	 */
+	static <K> boolean check(BTreeFile file, TreeMap<K, Integer> model,
+			String name) throws Exception {
+		List<Object> expected = new ArrayList<Object>();
+		for (Map.Entry<K, Integer> entry : model.entrySet())
+			for (int i = 0; i < entry.getValue(); i++)
+				expected.add(entry.getKey());
+		List<Object> got = new ArrayList<Object>();
+		BTFileScan scan = file.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next())
+			got.add(entry.key instanceof IntegerKey ? (Object) ((IntegerKey) entry.key)
+					.getKey() : ((StringKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		boolean ok = true;
+		if (!got.equals(expected)) {
+			System.out.println("    " + name + ": " + got.size()
+					+ " entries, expected " + expected.size());
+			ok = false;
+		}
+		List<String> problems = file.verify();
+		if (!problems.isEmpty()) {
+			System.out.println("    " + name + ": " + problems);
+			ok = false;
+		}
+		return ok;
+	}
+}
+
+public class DeleteRangeTest {
+
+	public static void main(String[] argvs) {
+		DeleteRangeDriver test = new DeleteRangeDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
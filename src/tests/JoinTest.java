@@ -0,0 +1,307 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks BTreeFile.indexJoin and BTMergeJoin against the pairs a nested
+ * loop over the same entries gives: duplicate keys on both sides, keys on
+ * one side only, ranges, included values, and joins stopped early.
+ */
+class JoinDriver extends TestDriver implements GlobalConst {
+
+	public JoinDriver() {
+		super("jointest");
+	}
+
+	protected String testName() {
+		return "Join";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Outer entries in random order, with duplicate keys and keys the index
+	 * does not hold, joined with an index whose keys run over many leaves.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: index join");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("JN_INDEX", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(40);
+			for (int i = 0; i < 20000; i++)
+				file.insert(new IntegerKey(random.nextInt(10000)), rid(i));
+
+			int[] sizes = { 0, 1, 50, 3000 };
+			for (int size : sizes) {
+				List<KeyDataEntry> outer = new ArrayList<KeyDataEntry>();
+				for (int i = 0; i < size; i++)
+					outer.add(new KeyDataEntry(new IntegerKey(random
+							.nextInt(12000)), rid(100000 + i)));
+				List<String> expected = expected(outer, scan(file.new_scan(
+						null, null)), true);
+				ok &= check(join(file.indexJoin(outer)), expected, size
+						+ " outer entries");
+			}
+			ok &= SplitDriver.checkPins(unpinned - 1, "index join");
+
+			// stopped after a few results
+			List<KeyDataEntry> outer = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < 1000; i++)
+				outer.add(new KeyDataEntry(new IntegerKey(i * 10), rid(i)));
+			BTIndexJoin join = file.indexJoin(outer);
+			for (int i = 0; i < 5; i++)
+				join.get_next();
+			join.close();
+			ok &= SplitDriver.checkPins(unpinned - 1, "index join closed");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Two indexes with duplicate keys, joined over all their entries, over
+	 * ranges of each, and with one side empty.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: merge join");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile outer = new BTreeFile("JN_OUTER", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			BTreeFile inner = new BTreeFile("JN_INNER", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			BTreeFile empty = new BTreeFile("JN_EMPTY", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(42);
+			for (int i = 0; i < 8000; i++)
+				outer.insert(new IntegerKey(random.nextInt(6000)), rid(i));
+			for (int i = 0; i < 15000; i++)
+				inner.insert(new IntegerKey(random.nextInt(8000) + 1000),
+						rid(100000 + i));
+
+			ok &= check(join(new BTMergeJoin(outer.new_scan(null, null),
+					inner.new_scan(null, null))), expected(
+					scan(outer.new_scan(null, null)), scan(inner.new_scan(null,
+							null)), false), "whole indexes");
+
+			int[][] ranges = { { 0, 999 }, { 2000, 2000 }, { 4000, 7000 },
+					{ 5990, 9000 } };
+			for (int[] range : ranges) {
+				IntegerKey lo = new IntegerKey(range[0]);
+				IntegerKey hi = new IntegerKey(range[1]);
+				ok &= check(join(new BTMergeJoin(outer.new_scan(lo, hi), inner
+						.new_scan(null, null))), expected(scan(outer.new_scan(
+						lo, hi)), scan(inner.new_scan(null, null)), false),
+						"outer " + range[0] + ".." + range[1]);
+				ok &= check(join(new BTMergeJoin(outer.new_scan(null, null),
+						inner.new_scan(lo, hi))), expected(scan(outer.new_scan(
+						null, null)), scan(inner.new_scan(lo, hi)), false),
+						"inner " + range[0] + ".." + range[1]);
+			}
+
+			ok &= check(join(new BTMergeJoin(empty.new_scan(null, null), inner
+					.new_scan(null, null))), new ArrayList<String>(),
+					"empty outer");
+			ok &= check(join(new BTMergeJoin(outer.new_scan(null, null), empty
+					.new_scan(null, null))), new ArrayList<String>(),
+					"empty inner");
+			ok &= SplitDriver.checkPins(unpinned - 3, "merge join");
+
+			BTMergeJoin join = new BTMergeJoin(outer.new_scan(null, null),
+					inner.new_scan(null, null));
+			for (int i = 0; i < 5; i++)
+				join.get_next();
+			join.close();
+			ok &= SplitDriver.checkPins(unpinned - 3, "merge join closed");
+			outer.destroyFile();
+			inner.destroyFile();
+			empty.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Inner entries read from an index with included values carry them in
+	 * both joins.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: included values");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("JN_COVERING", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setIncludedLength(4);
+			BTreeFile outerFile = new BTreeFile("JN_PROBE",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			List<KeyDataEntry> outer = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < 3000; i++) {
+				file.insert(new IntegerKey(i), rid(i), included(i));
+				if (i % 3 == 0) {
+					outer.add(new KeyDataEntry(new IntegerKey(i), rid(i)));
+					outerFile.insert(new IntegerKey(i), rid(i));
+				}
+			}
+			ok &= checkIncluded(file.indexJoin(outer), null, 1000, "index join");
+			ok &= checkIncluded(null, new BTMergeJoin(outerFile.new_scan(null,
+					null), file.new_scan(null, null)), 1000, "merge join");
+			file.destroyFile();
+			outerFile.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(10 + i / 100), i % 100);
+	}
+
+	static int index(RID rid) {
+		return (rid.pageNo.pid - 10) * 100 + rid.slotNo;
+	}
+
+	static byte[] included(int i) {
+		return new byte[] { (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8),
+				(byte) i };
+	}
+
+	static String pair(KeyDataEntry outer, KeyDataEntry inner) {
+		return ((IntegerKey) outer.key).getKey() + ":"
+				+ index(((LeafData) outer.data).getData()) + ":"
+				+ index(((LeafData) inner.data).getData());
+	}
+
+	static List<KeyDataEntry> scan(BTFileScan scan) throws Exception {
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next())
+			entries.add(entry);
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * The pairs of a nested loop in key order: for each key, the outer
+	 * entries in their order, each with the inner entries in theirs, or, if
+	 * innerFirst, the other way round.
+	 */
+	static List<String> expected(List<KeyDataEntry> outer,
+			List<KeyDataEntry> inner, boolean innerFirst) {
+		TreeMap<Integer, List<KeyDataEntry>> outerKeys = group(outer);
+		TreeMap<Integer, List<KeyDataEntry>> innerKeys = group(inner);
+		List<String> pairs = new ArrayList<String>();
+		for (Map.Entry<Integer, List<KeyDataEntry>> entry : outerKeys
+				.entrySet()) {
+			List<KeyDataEntry> matches = innerKeys.get(entry.getKey());
+			if (matches == null)
+				continue;
+			if (innerFirst)
+				for (KeyDataEntry i : matches)
+					for (KeyDataEntry o : entry.getValue())
+						pairs.add(pair(o, i));
+			else
+				for (KeyDataEntry o : entry.getValue())
+					for (KeyDataEntry i : matches)
+						pairs.add(pair(o, i));
+		}
+		return pairs;
+	}
+
+	static TreeMap<Integer, List<KeyDataEntry>> group(List<KeyDataEntry> entries) {
+		TreeMap<Integer, List<KeyDataEntry>> keys = new TreeMap<Integer, List<KeyDataEntry>>();
+		for (KeyDataEntry entry : entries) {
+			int key = ((IntegerKey) entry.key).getKey();
+			if (!keys.containsKey(key))
+				keys.put(key, new ArrayList<KeyDataEntry>());
+			keys.get(key).add(entry);
+		}
+		return keys;
+	}
+
+	static List<String> join(BTIndexJoin join) throws Exception {
+		List<String> pairs = new ArrayList<String>();
+		for (JoinEntry entry = join.get_next(); entry != null; entry = join
+				.get_next())
+			pairs.add(pair(entry.outer, entry.inner));
+		return pairs;
+	}
+
+	static List<String> join(BTMergeJoin join) throws Exception {
+		List<String> pairs = new ArrayList<String>();
+		for (JoinEntry entry = join.get_next(); entry != null; entry = join
+				.get_next())
+			pairs.add(pair(entry.outer, entry.inner));
+		return pairs;
+	}
+
+	static boolean check(List<String> got, List<String> expected, String name) {
+		if (got.equals(expected))
+			return true;
+		int i = 0;
+		while (i < got.size() && i < expected.size()
+				&& got.get(i).equals(expected.get(i)))
+			i++;
+		System.out.println("    " + name + ": " + got.size()
+				+ " pairs, expected " + expected.size() + "; pair " + i + " is "
+				+ (i < got.size() ? got.get(i) : null) + ", expected "
+				+ (i < expected.size() ? expected.get(i) : null));
+		return false;
+	}
+
+	/*
+	 * Each pair of the join, given as one of the two, must carry the
+	 * included values of its inner entry.
+	 */
+	static boolean checkIncluded(BTIndexJoin indexJoin, BTMergeJoin mergeJoin,
+			int pairs, String name) throws Exception {
+		int n = 0;
+		for (JoinEntry entry = indexJoin != null ? indexJoin.get_next()
+				: mergeJoin.get_next(); entry != null; entry = indexJoin != null ? indexJoin
+				.get_next() : mergeJoin.get_next(), n++) {
+			int key = ((IntegerKey) entry.key()).getKey();
+			if (!(entry.inner.data instanceof CoveringData)
+					|| !Arrays.equals(((CoveringData) entry.inner.data)
+							.getIncluded(), included(key))) {
+				System.out.println("    " + name + ": key " + key
+						+ " without its included values");
+				return false;
+			}
+		}
+		if (n != pairs) {
+			System.out.println("    " + name + ": " + n + " pairs, expected "
+					+ pairs);
+			return false;
+		}
+		return true;
+	}
+}
+
+public class JoinTest {
+
+	public static void main(String[] argvs) {
+		JoinDriver test = new JoinDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
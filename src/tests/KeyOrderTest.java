@@ -0,0 +1,274 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks that the pages of an index are written in the order its searches
+ * read them in, for keys whose compare is easy to get wrong.
+ */
+class KeyOrderDriver extends TestDriver implements GlobalConst {
+
+	public KeyOrderDriver() {
+		super("keyordertest");
+	}
+
+	protected String testName() {
+		return "Key order";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Integer keys more than 2^31 apart, whose difference overflows an int.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: integer keys across the whole int range");
+		boolean ok = true;
+		try {
+			int[] keys = { Integer.MIN_VALUE, -5, 0, 7, Integer.MAX_VALUE,
+					Integer.MIN_VALUE + 1, 100 };
+			BTreeFile file = new BTreeFile("KO_EXTREMES",
+					AttrType.attrInteger, 4, 0);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < keys.length; i++) {
+				file.insert(new IntegerKey(keys[i]), new RID(new PageId(10 + i),
+						0));
+				model.put(keys[i], 1);
+			}
+			ok &= check(file, model, keys, "extremes");
+			file.destroyFile();
+
+			for (int counts = 0; counts < 2; counts++) {
+				file = new BTreeFile("KO_INT" + counts, AttrType.attrInteger,
+						4, 0);
+				if (counts == 1)
+					file.setSubtreeCounts(true);
+				Random random = new Random(17);
+				model = new TreeMap<Integer, Integer>();
+				int[] probes = new int[500];
+				for (int i = 0; i < 20000; i++) {
+					int key = i % 10 == 0 ? Integer.MAX_VALUE - random.nextInt(3)
+							: i % 10 == 1 ? Integer.MIN_VALUE + random.nextInt(3)
+									: random.nextInt();
+					file.insert(new IntegerKey(key), new RID(new PageId(
+							10 + i), 0));
+					Integer n = model.get(key);
+					model.put(key, n == null ? 1 : n + 1);
+					if (i % 40 == 0)
+						probes[i / 40] = key;
+				}
+				ok &= check(file, model, probes, "random" + counts);
+
+				// delete every other probe key once, through the search
+				for (int i = 0; i < probes.length; i += 2) {
+					Integer n = model.get(probes[i]);
+					if (n == null)
+						continue;
+					if (!file.Delete(new IntegerKey(probes[i]), new RID(
+							new PageId(0), 0))) {
+						System.out.println("    key " + probes[i]
+								+ " not found to delete");
+						ok = false;
+					}
+					if (n == 1)
+						model.remove(probes[i]);
+					else
+						model.put(probes[i], n - 1);
+				}
+				ok &= check(file, model, probes, "deleted" + counts);
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * String keys mixing the characters whose encoded bytes sort differently
+	 * from their chars if compared carelessly: U+0000, the ends of the one,
+	 * two and three byte ranges, and unpaired surrogates.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: string keys across the char range");
+		boolean ok = true;
+		String[] alphabet = { "\0", "a", "b", "\u007f", "\u0080", "\u00e9",
+				"\u07ff", "\u0800", "\ud83d", "\ude00", "\ue000", "\uffff" };
+		try {
+			for (int counts = 0; counts < 2; counts++) {
+				BTreeFile file = new BTreeFile("KO_STR" + counts,
+						AttrType.attrString, 20, 0);
+				if (counts == 1)
+					file.setSubtreeCounts(true);
+				Random random = new Random(23);
+				TreeMap<String, Integer> model = new TreeMap<String, Integer>();
+				String[] probes = new String[500];
+				for (int i = 0; i < 20000; i++) {
+					StringBuilder key = new StringBuilder();
+					for (int n = random.nextInt(5); n > 0; n--)
+						key.append(alphabet[random.nextInt(alphabet.length)]);
+					file.insert(new StringKey(key.toString()), new RID(
+							new PageId(10 + i), 0));
+					Integer n = model.get(key.toString());
+					model.put(key.toString(), n == null ? 1 : n + 1);
+					if (i % 40 == 0)
+						probes[i / 40] = key.toString();
+				}
+				ok &= check(file, model, probes, "strings" + counts);
+
+				for (int i = 0; i < probes.length; i += 2) {
+					Integer n = model.get(probes[i]);
+					if (n == null)
+						continue;
+					if (!file.Delete(new StringKey(probes[i]), new RID(
+							new PageId(0), 0))) {
+						System.out.println("    key " + escape(probes[i])
+								+ " not found to delete");
+						ok = false;
+					}
+					if (n == 1)
+						model.remove(probes[i]);
+					else
+						model.put(probes[i], n - 1);
+				}
+				ok &= check(file, model, probes, "deleted strings" + counts);
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/*
+	 * Compare point, range and descending scans, counts and verify() with
+	 * the model of the index.
+	 */
+	static <K extends Comparable<K>> boolean check(BTreeFile file,
+			TreeMap<K, Integer> model, K[] probes, String name)
+			throws Exception {
+		boolean ok = true;
+		for (K probe : probes) {
+			int expected = model.containsKey(probe) ? model.get(probe) : 0;
+			int found = count(file.new_scan(key(probe), key(probe)));
+			if (found != expected) {
+				System.out.println("    " + name + ": key " + escape(probe)
+						+ " found " + found + " times, expected " + expected);
+				ok = false;
+			}
+		}
+		for (int i = 0; i + 1 < probes.length; i++) {
+			K lo = probes[i].compareTo(probes[i + 1]) < 0 ? probes[i]
+					: probes[i + 1];
+			K hi = lo == probes[i] ? probes[i + 1] : probes[i];
+			int expected = 0;
+			for (int n : model.subMap(lo, true, hi, true).values())
+				expected += n;
+			int ascending = count(file.new_scan(key(lo), key(hi)));
+			int descending = count(file.new_scan(key(lo), key(hi),
+					Order.DESCENDING));
+			int counted = file.count(key(lo), key(hi));
+			if (ascending != expected || descending != expected
+					|| counted != expected) {
+				System.out.println("    " + name + ": range [" + escape(lo)
+						+ ", " + escape(hi) + "] has " + ascending + "/"
+						+ descending + "/" + counted + " entries, expected "
+						+ expected);
+				ok = false;
+			}
+		}
+
+		BTFileScan scan = file.new_scan(null, null);
+		K prev = null;
+		int total = 0;
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			K key = value(entry.key);
+			if (prev != null && prev.compareTo(key) > 0) {
+				System.out.println("    " + name + ": " + escape(key) + " after "
+						+ escape(prev));
+				ok = false;
+			}
+			prev = key;
+			total++;
+		}
+		scan.DestroyBTreeFileScan();
+		int expected = 0;
+		for (int n : model.values())
+			expected += n;
+		if (total != expected) {
+			System.out.println("    " + name + ": " + total
+					+ " entries, expected " + expected);
+			ok = false;
+		}
+
+		List<String> problems = file.verify();
+		if (!problems.isEmpty()) {
+			System.out.println("    " + name + ": " + escape(problems));
+			ok = false;
+		}
+		return ok;
+	}
+
+	static boolean check(BTreeFile file, TreeMap<Integer, Integer> model,
+			int[] probes, String name) throws Exception {
+		Integer[] boxed = new Integer[probes.length];
+		for (int i = 0; i < probes.length; i++)
+			boxed[i] = probes[i];
+		return check(file, model, boxed, name);
+	}
+
+	/*
+	 * The value, with the chars outside printable ASCII written as escapes.
+	 */
+	static String escape(Object value) {
+		StringBuilder text = new StringBuilder();
+		for (char c : String.valueOf(value).toCharArray())
+			text.append(c >= ' ' && c < 0x7f ? String.valueOf(c) : String
+					.format("\\u%04x", (int) c));
+		return text.toString();
+	}
+
+	static KeyClass key(Object value) {
+		return value instanceof Integer ? new IntegerKey((Integer) value)
+				: new StringKey((String) value);
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K> K value(KeyClass key) {
+		return (K) (key instanceof IntegerKey ? ((IntegerKey) key).getKey()
+				: ((StringKey) key).getKey());
+	}
+
+	static int count(IndexFileScan scan) throws Exception {
+		int n = 0;
+		while (scan.get_next() != null)
+			n++;
+		if (scan instanceof BTFileScan)
+			((BTFileScan) scan).DestroyBTreeFileScan();
+		else if (scan instanceof BTReverseFileScan)
+			((BTReverseFileScan) scan).DestroyBTreeFileScan();
+		return n;
+	}
+}
+
+public class KeyOrderTest {
+
+	public static void main(String[] argvs) {
+		KeyOrderDriver test = new KeyOrderDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -0,0 +1,370 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks posting lists of a BTreeFile: a key is turned into a list at the
+ * threshold, single rids are deleted from lists, setPostingLists(0) turns
+ * the lists back into leaf entries, and every kind of scan reads the rids
+ * of lists that take several pages.
+ */
+class PostingDriver extends TestDriver implements GlobalConst {
+
+	private static final int THRESHOLD = 4;
+
+	public PostingDriver() {
+		super("postingtest");
+	}
+
+	protected String testName() {
+		return "Posting";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * The insert that takes a key to the threshold makes one leaf entry of
+	 * its rids, which a scan of the key returns in rid order.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: a key becomes a list at the threshold");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("PL_CONVERT", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(THRESHOLD);
+			TreeMap<Integer, List<Long>> model = new TreeMap<Integer, List<Long>>();
+			for (int key = 0; key < 100; key++)
+				insert(file, model, key, 1, key);
+
+			// key 50 has one entry; the rids come out of order
+			int[] pages = { 9, 3, 7, 3 };
+			int[] slots = { 0, 5, 2, 1 };
+			for (int i = 0; i < THRESHOLD - 2; i++)
+				insert(file, model, 50, pages[i], slots[i]);
+			ok &= checkEntries(file, 100 + THRESHOLD - 2, "below threshold");
+			insert(file, model, 50, pages[THRESHOLD - 2], slots[THRESHOLD - 2]);
+			ok &= checkEntries(file, 100, "at threshold");
+			insert(file, model, 50, pages[THRESHOLD - 1], slots[THRESHOLD - 1]);
+			ok &= checkEntries(file, 100, "added to the list");
+
+			ok &= check(file.new_scan(new IntegerKey(50), new IntegerKey(50)),
+					false, sub(model, 50, 50), "list key");
+			ok &= check(file.new_scan(null, null), false, model, "full scan");
+			ok &= verify(file);
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Delete takes the given rid out of a list, and, as NaiveDelete does,
+	 * some other rid of the key if the list does not hold it. The key goes
+	 * with the last rid of its list.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: deleting rids of lists");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("PL_DELETE", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(THRESHOLD);
+			TreeMap<Integer, List<Long>> model = new TreeMap<Integer, List<Long>>();
+			Random random = new Random(6);
+			for (int i = 0; i < 6000; i++)
+				insert(file, model, random.nextInt(300), random.nextInt(500),
+						random.nextInt(100));
+
+			// every key has reached the threshold, so every key is a list
+			for (List<Long> rids : model.values())
+				if (rids.size() < THRESHOLD)
+					throw new Exception("key below the threshold");
+			for (int i = 0; i < 3000; i++) {
+				int key = random.nextInt(300);
+				List<Long> rids = model.get(key);
+				if (rids == null)
+					continue;
+				long rid = rids.remove(random.nextInt(rids.size()));
+				if (rids.isEmpty())
+					model.remove(key);
+				if (!file.Delete(new IntegerKey(key), rid(rid))) {
+					System.out.println("    rid " + rid + " of key " + key
+							+ " not deleted");
+					ok = false;
+				}
+			}
+			ok &= check(file.new_scan(null, null), false, model, "rids deleted");
+
+			// a rid the list does not hold takes its first rid
+			int key = model.firstKey();
+			List<Long> rids = sub(model, key, key).get(key);
+			if (!file.Delete(new IntegerKey(key), new RID(new PageId(9999), 0))) {
+				System.out.println("    missing rid deleted nothing");
+				ok = false;
+			}
+			model.get(key).remove(rids.get(0));
+
+			// empty a list
+			key = model.lastKey();
+			for (long rid : model.remove(key))
+				ok &= file.Delete(new IntegerKey(key), rid(rid));
+			ok &= check(file.new_scan(new IntegerKey(key), new IntegerKey(key)),
+					false, sub(model, key, key), "emptied key");
+
+			ok &= check(file.new_scan(null, null), false, model, "full scan");
+			ok &= verify(file);
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * setPostingLists(0) turns every list back into one leaf entry per rid;
+	 * a threshold set again makes lists of the keys inserted next.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: lists turned back into entries");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("PL_EXPAND", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(THRESHOLD);
+			TreeMap<Integer, List<Long>> model = new TreeMap<Integer, List<Long>>();
+			Random random = new Random(8);
+			for (int i = 0; i < 5000; i++)
+				insert(file, model, random.nextInt(200), random.nextInt(500),
+						random.nextInt(100));
+			// one list of several pages
+			for (int i = 0; i < 3000; i++)
+				insert(file, model, 77, 1000 + i / 10, i % 10);
+
+			file.setPostingLists(0);
+			ok &= checkEntries(file, size(model), "expanded");
+			ok &= check(file.new_scan(null, null), false, model, "expanded");
+			ok &= verify(file);
+
+			file.setPostingLists(THRESHOLD);
+			ok &= checkEntries(file, size(model), "threshold set again");
+			insert(file, model, 77, 5000, 0);
+			ok &= checkEntries(file, size(model) - model.get(77).size() + 1,
+					"list made again");
+			ok &= check(file.new_scan(null, null), false, model, "list again");
+			ok &= verify(file);
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Forward, reverse, multi-range and batch scans read the rids of lists
+	 * that span several posting pages.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: scans of long lists");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("PL_SCANS", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(THRESHOLD);
+			TreeMap<Integer, List<Long>> model = new TreeMap<Integer, List<Long>>();
+			Random random = new Random(10);
+			for (int i = 0; i < 4000; i++)
+				insert(file, model, random.nextInt(1000), random.nextInt(500),
+						random.nextInt(100));
+			for (int key : new int[] { 0, 400, 999 })
+				for (int i = 0; i < 2500; i++)
+					insert(file, model, key, random.nextInt(5000),
+							random.nextInt(100));
+
+			ok &= check(file.new_scan(null, null), false, model, "forward");
+			ok &= check(file.new_scan(new IntegerKey(300), new IntegerKey(500)),
+					false, sub(model, 300, 500), "forward range");
+			ok &= check(file.new_scan(null, null, Order.DESCENDING), true,
+					model, "reverse");
+			ok &= check(file.new_scan(new IntegerKey(400), new IntegerKey(400),
+					Order.DESCENDING), true, sub(model, 400, 400),
+					"reverse list key");
+
+			SortedSet<KeyRange> ranges = new TreeSet<KeyRange>();
+			ranges.add(new KeyRange(new IntegerKey(0)));
+			ranges.add(new KeyRange(new IntegerKey(390), new IntegerKey(410)));
+			ranges.add(new KeyRange(new IntegerKey(999)));
+			TreeMap<Integer, List<Long>> expected = sub(model, 0, 0);
+			expected.putAll(sub(model, 390, 410));
+			expected.putAll(sub(model, 999, 999));
+			ok &= check(file.multiScan(ranges), false, expected, "multi-range");
+
+			ok &= checkBatch(file, model);
+			ok &= SplitDriver.checkPins(unpinned - 1, "scans");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 4 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/*
+	 * A batch scan of the whole index in batches smaller than a list.
+	 */
+	static boolean checkBatch(BTreeFile file, TreeMap<Integer, List<Long>> model)
+			throws Exception {
+		BTBatchScan scan = file.new_batch_scan(null, null);
+		int[] keys = new int[500];
+		int[] pageNos = new int[500];
+		int[] slotNos = new int[500];
+		List<Integer> order = new ArrayList<Integer>();
+		List<Long> rids = new ArrayList<Long>();
+		for (int n = scan.get_next_batch(keys, pageNos, slotNos); n > 0; n = scan
+				.get_next_batch(keys, pageNos, slotNos))
+			for (int i = 0; i < n; i++) {
+				order.add(keys[i]);
+				rids.add(pack(pageNos[i], slotNos[i]));
+			}
+		scan.DestroyBTreeFileScan();
+		return compare(order, rids, false, model, "batch");
+	}
+
+	static void insert(BTreeFile file, TreeMap<Integer, List<Long>> model,
+			int key, int page, int slot) throws Exception {
+		file.insert(new IntegerKey(key), new RID(new PageId(page), slot));
+		List<Long> rids = model.get(key);
+		if (rids == null)
+			model.put(key, rids = new ArrayList<Long>());
+		rids.add(pack(page, slot));
+	}
+
+	/*
+	 * Read a scan to its end. The keys must come in order, and the rids of a
+	 * key that makes a list in rid order.
+	 */
+	static boolean check(IndexFileScan scan, boolean descending,
+			TreeMap<Integer, List<Long>> model, String name) throws Exception {
+		List<Integer> order = new ArrayList<Integer>();
+		List<Long> rids = new ArrayList<Long>();
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			order.add(((IntegerKey) entry.key).getKey());
+			RID rid = ((LeafData) entry.data).getData();
+			rids.add(pack(rid.pageNo.pid, rid.slotNo));
+		}
+		if (scan instanceof BTFileScan)
+			((BTFileScan) scan).DestroyBTreeFileScan();
+		else if (scan instanceof BTReverseFileScan)
+			((BTReverseFileScan) scan).DestroyBTreeFileScan();
+		else if (scan instanceof BTMultiRangeScan)
+			((BTMultiRangeScan) scan).DestroyBTreeFileScan();
+		return compare(order, rids, descending, model, name);
+	}
+
+	static boolean compare(List<Integer> order, List<Long> rids,
+			boolean descending, TreeMap<Integer, List<Long>> model, String name) {
+		TreeMap<Integer, List<Long>> got = new TreeMap<Integer, List<Long>>();
+		for (int i = 0; i < order.size(); i++) {
+			int key = order.get(i);
+			if (i > 0) {
+				int cmp = Integer.compare(order.get(i - 1), key);
+				boolean sorted = cmp == 0 ? model.get(key).size() < THRESHOLD
+						|| Long.compare(rids.get(i - 1), rids.get(i))
+								* (descending ? -1 : 1) <= 0
+						: cmp * (descending ? -1 : 1) < 0;
+				if (!sorted) {
+					System.out.println("    " + name + ": key " + key
+							+ " out of order at entry " + i);
+					return false;
+				}
+			}
+			List<Long> list = got.get(key);
+			if (list == null)
+				got.put(key, list = new ArrayList<Long>());
+			list.add(rids.get(i));
+		}
+		for (List<Long> list : got.values())
+			Collections.sort(list);
+		TreeMap<Integer, List<Long>> expected = sub(model, Integer.MIN_VALUE,
+				Integer.MAX_VALUE);
+		if (got.equals(expected))
+			return true;
+		System.out.println("    " + name + ": " + order.size()
+				+ " entries, expected " + size(expected));
+		return false;
+	}
+
+	/*
+	 * The keys of the model in [lo, hi] with their rids sorted.
+	 */
+	static TreeMap<Integer, List<Long>> sub(
+			TreeMap<Integer, List<Long>> model, int lo, int hi) {
+		TreeMap<Integer, List<Long>> sub = new TreeMap<Integer, List<Long>>();
+		for (Map.Entry<Integer, List<Long>> entry : model.subMap(lo, true, hi,
+				true).entrySet()) {
+			List<Long> rids = new ArrayList<Long>(entry.getValue());
+			Collections.sort(rids);
+			sub.put(entry.getKey(), rids);
+		}
+		return sub;
+	}
+
+	static int size(TreeMap<Integer, List<Long>> model) {
+		int n = 0;
+		for (List<Long> rids : model.values())
+			n += rids.size();
+		return n;
+	}
+
+	static boolean checkEntries(BTreeFile file, long expected, String name)
+			throws Exception {
+		long entries = file.stats().entries;
+		if (entries == expected)
+			return true;
+		System.out.println("    " + name + ": " + entries
+				+ " leaf entries, expected " + expected);
+		return false;
+	}
+
+	static boolean verify(BTreeFile file) throws Exception {
+		List<String> problems = file.verify();
+		if (problems.isEmpty())
+			return true;
+		System.out.println("    " + problems);
+		return false;
+	}
+
+	static long pack(int page, int slot) {
+		return (long) page << 32 | slot;
+	}
+
+	static RID rid(long packed) {
+		return new RID(new PageId((int) (packed >>> 32)), (int) packed);
+	}
+}
+
+public class PostingTest {
+
+	public static void main(String[] argvs) {
+		PostingDriver test = new PostingDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
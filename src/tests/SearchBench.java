@@ -0,0 +1,124 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Times point lookups in an integer index with duplicate keys, once through
+ * BTreeFile.new_scan(k, k), which searches each page on the path with
+ * RawPage.intSearch, and once by the descent the index used before: every
+ * entry of a page decoded into a KeyDataEntry by getFirst and getNext and
+ * compared with BT.keyCompare until the key is passed. Both find the first
+ * entry of the key; the scan also creates and destroys its scan object,
+ * which the decoding descent leaves out. The buffer pool holds the whole
+ * index, so no page is read from disk. The rounds alternate between the
+ * two and the median of each is printed.
+ *
+ * usage: java tests.SearchBench [entries [lookups [rounds]]]
+ */
+public class SearchBench implements GlobalConst {
+
+	public static void main(String[] argvs) throws Exception {
+		int entries = argvs.length > 0 ? Integer.parseInt(argvs[0]) : 100000;
+		int lookups = argvs.length > 1 ? Integer.parseInt(argvs[1]) : 200000;
+		int rounds = argvs.length > 2 ? Integer.parseInt(argvs[2]) : 7;
+		String dbpath = "/tmp/searchbench" + System.getProperty("user.name")
+				+ ".minibase-db";
+
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, 20000, 5000, "Clock");
+		Random random = new Random(1);
+		BTreeFile file = new BTreeFile("BENCH", AttrType.attrInteger, 4, 0);
+		for (int i = 0; i < entries; i++)
+			file.insert(new IntegerKey(random.nextInt(entries / 4)), new RID(
+					new PageId(i), 0));
+		int[] keys = new int[lookups];
+		for (int i = 0; i < lookups; i++)
+			keys[i] = random.nextInt(entries / 4);
+
+		long[][] times = new long[2][rounds];
+		long[] found = new long[2];
+		for (int round = -1; round < rounds; round++) // round -1 warms up
+			for (int decoded = 0; decoded < 2; decoded++) {
+				long start = System.nanoTime();
+				for (int key : keys)
+					found[decoded] += decoded == 1 ? decodedLookup(file, key)
+							: scanLookup(file, key);
+				long ms = (System.nanoTime() - start) / 1000000;
+				if (round >= 0)
+					times[decoded][round] = ms;
+			}
+
+		for (int decoded = 0; decoded < 2; decoded++) {
+			Arrays.sort(times[decoded]);
+			System.out.println((decoded == 1 ? "decoded entries" : "intSearch")
+					+ ": " + lookups + " lookups in " + entries
+					+ " entries, median " + times[decoded][rounds / 2]
+					+ " ms of " + rounds + " rounds");
+		}
+		System.out.println("keys found: " + found[0] + " by intSearch, "
+				+ found[1] + " by decoding");
+
+		file.destroyFile();
+		SystemDefs.JavabaseDB.DBDestroy();
+	}
+
+	/*
+	 * 1 if the index holds the key, found by a point scan.
+	 */
+	static int scanLookup(BTreeFile file, int key) throws Exception {
+		IntegerKey k = new IntegerKey(key);
+		BTFileScan scan = file.new_scan(k, k);
+		KeyDataEntry entry = scan.get_next();
+		scan.DestroyBTreeFileScan();
+		return entry == null ? 0 : 1;
+	}
+
+	/*
+	 * 1 if the index holds the key, found by decoding the entries of each
+	 * page on the path: the child left of the first index entry not below
+	 * the key, then the first leaf entry not below it, going right past
+	 * leaves without one.
+	 */
+	static int decodedLookup(BTreeFile file, int key) throws Exception {
+		IntegerKey k = new IntegerKey(key);
+		RID rid = new RID();
+		PageId pageno = ((HFPage) (Object) file.getHeaderPage())
+				.getNextPage(); // the root
+		BTSortedPage page = new BTSortedPage(pageno, AttrType.attrInteger);
+		while (page.getType() == NodeType.INDEX) {
+			BTIndexPage index = new BTIndexPage(page, AttrType.attrInteger);
+			int below = -1; // last slot with a key below k
+			for (KeyDataEntry entry = index.getFirst(rid); entry != null
+					&& BT.keyCompare(entry.key, k) < 0; entry = index
+					.getNext(rid))
+				below = rid.slotNo;
+			// the child page id ends the index record
+			int child = below < 0 ? index.getPrevPage().pid : Convert
+					.getIntValue(index.getSlotOffset(below)
+							+ index.getSlotLength(below) - 4, index.getpage());
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = new PageId(child);
+			page = new BTSortedPage(pageno, AttrType.attrInteger);
+		}
+
+		while (true) {
+			BTLeafPage leaf = new BTLeafPage(page, AttrType.attrInteger);
+			KeyDataEntry entry = leaf.getFirst(rid);
+			while (entry != null && BT.keyCompare(entry.key, k) < 0)
+				entry = leaf.getNext(rid);
+			PageId next = leaf.getNextPage();
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			if (entry != null)
+				return BT.keyCompare(entry.key, k) == 0 ? 1 : 0;
+			if (next.pid == INVALID_PAGE)
+				return 0;
+			pageno = new PageId(next.pid);
+			page = new BTSortedPage(pageno, AttrType.attrInteger);
+		}
+	}
+}
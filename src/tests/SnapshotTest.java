@@ -0,0 +1,201 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Reads snapshot scans of an index while inserts split its pages and
+ * delete_current removes entries, on the same thread and on another one.
+ */
+class SnapshotDriver extends TestDriver implements GlobalConst {
+
+	public SnapshotDriver() {
+		super("snapshottest");
+	}
+
+	protected String testName() {
+		return "Snapshot";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		try {
+			VersionedBufMgr.install("Clock");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+		return super.runAllTests();
+	}
+
+	/**
+	 * Every entry read from the snapshot is followed by inserts that split
+	 * leaves and index pages, and now and then by a delete_current; the
+	 * snapshot must still return the entries of the index as it was opened.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: snapshot read between changes");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("SN_STEP", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(2);
+			for (int i = 0; i < 3000; i++)
+				insert(file, model, random.nextInt(1 << 30));
+			List<Integer> expected = keys(model);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+
+			BTSnapshotScan snapshot = file.new_snapshot_scan(null, null);
+			List<Integer> got = new ArrayList<Integer>();
+			for (KeyDataEntry entry = snapshot.get_next(); entry != null; entry = snapshot
+					.get_next()) {
+				got.add(((IntegerKey) entry.key).getKey());
+				for (int i = 0; i < 3; i++)
+					insert(file, model, random.nextInt(1 << 30));
+				if (got.size() % 5 == 0)
+					deleteOne(file, model, random.nextInt(1 << 30));
+			}
+			snapshot.DestroyBTreeFileScan();
+			ok &= check(got, expected, "snapshot");
+			ok &= check(keys(file), keys(model), "index");
+			ok &= SplitDriver.checkPins(unpinned, "snapshot scan");
+			List<String> problems = file.verify();
+			if (!problems.isEmpty()) {
+				System.out.println("    " + problems);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Snapshot scans opened in turn are read on another thread while this
+	 * thread inserts and deletes, and closed there while it keeps going.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: snapshot read on another thread");
+		boolean ok = true;
+		try {
+			final BTreeFile file = new BTreeFile("SN_THREAD",
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(4);
+			for (int i = 0; i < 3000; i++)
+				insert(file, model, random.nextInt(1 << 30));
+
+			for (int round = 0; round < 4; round++) {
+				List<Integer> expected = keys(model);
+				final BTSnapshotScan snapshot = file.new_snapshot_scan(null,
+						null);
+				final List<Integer> got = new ArrayList<Integer>();
+				final Exception[] failure = new Exception[1];
+				Thread reader = new Thread() {
+					public void run() {
+						try {
+							for (KeyDataEntry entry = snapshot.get_next(); entry != null; entry = snapshot
+									.get_next())
+								got.add(((IntegerKey) entry.key).getKey());
+							snapshot.DestroyBTreeFileScan();
+						} catch (Exception e) {
+							failure[0] = e;
+						}
+					}
+				};
+				reader.start();
+				for (int i = 0; i < 1500; i++) {
+					insert(file, model, random.nextInt(1 << 30));
+					if (i % 10 == 0)
+						deleteOne(file, model, random.nextInt(1 << 30));
+				}
+				reader.join();
+				if (failure[0] != null) {
+					failure[0].printStackTrace();
+					ok = false;
+					break;
+				}
+				ok &= check(got, expected, "round " + round);
+			}
+			ok &= check(keys(file), keys(model), "index");
+			List<String> problems = file.verify();
+			if (!problems.isEmpty()) {
+				System.out.println("    " + problems);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	static void insert(BTreeFile file, TreeMap<Integer, Integer> model,
+			int key) throws Exception {
+		file.insert(new IntegerKey(key), new RID(new PageId(10), key % 50));
+		Integer n = model.get(key);
+		model.put(key, n == null ? 1 : n + 1);
+	}
+
+	/*
+	 * Delete the first entry at or after the key with delete_current.
+	 */
+	static void deleteOne(BTreeFile file, TreeMap<Integer, Integer> model,
+			int key) throws Exception {
+		BTFileScan scan = file.new_scan(new IntegerKey(key), null);
+		KeyDataEntry entry = scan.get_next();
+		if (entry != null) {
+			scan.delete_current();
+			int deleted = ((IntegerKey) entry.key).getKey();
+			int n = model.remove(deleted);
+			if (n > 1)
+				model.put(deleted, n - 1);
+		}
+		scan.DestroyBTreeFileScan();
+	}
+
+	static List<Integer> keys(TreeMap<Integer, Integer> model) {
+		List<Integer> keys = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : model.entrySet())
+			for (int i = 0; i < entry.getValue(); i++)
+				keys.add(entry.getKey());
+		return keys;
+	}
+
+	static List<Integer> keys(BTreeFile file) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next())
+			keys.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return keys;
+	}
+
+	static boolean check(List<Integer> got, List<Integer> expected,
+			String name) {
+		if (got.equals(expected))
+			return true;
+		System.out.println("    " + name + ": " + got.size()
+				+ " entries, expected " + expected.size());
+		return false;
+	}
+}
+
+public class SnapshotTest {
+
+	public static void main(String[] argvs) {
+		SnapshotDriver test = new SnapshotDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -0,0 +1,215 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Regression tests for the insert and split path of BTreeFile, without
+ * subtree counts: keys inserted out of order, trees of more than two index
+ * levels, and pages left pinned by insert, NaiveDelete and destroyFile.
+ */
+class SplitDriver extends TestDriver implements GlobalConst {
+
+	public SplitDriver() {
+		super("splittest");
+	}
+
+	protected String testName() {
+		return "Split";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 5000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * Keys inserted in descending and random order must end up sorted on
+	 * the leaves, which the splits used to leave out of order.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: inserts out of key order");
+		boolean ok = true;
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				BTreeFile file = new BTreeFile("SP_ORDER" + pass,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+				List<Integer> keys = new ArrayList<Integer>();
+				for (int i = 0; i < 5000; i++)
+					keys.add(i);
+				if (pass == 0)
+					Collections.reverse(keys);
+				else
+					Collections.shuffle(keys, new Random(5));
+				for (int key : keys)
+					file.insert(new IntegerKey(key), rid(key));
+				ok &= checkAll(file, keys, pass == 0 ? "descending" : "random");
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * Long string keys give a small fan-out, so a few thousand inserts
+	 * split the index pages more than twice. Every key must still be found
+	 * below the third index level, where parents used to get an invalid
+	 * child.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: more than two index levels");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("SP_DEEP", AttrType.attrString,
+					200, DeleteFashion.NAIVE_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < 3000; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(11));
+			for (int key : keys)
+				file.insert(longKey(key), rid(key));
+
+			int height = file.stats().height;
+			if (height < 4) {
+				System.out.println("    tree has only " + height + " levels");
+				ok = false;
+			}
+			for (int key : keys) {
+				BTFileScan scan = file.new_scan(longKey(key), longKey(key));
+				KeyDataEntry entry = scan.get_next();
+				if (entry == null
+						|| !((LeafData) entry.data).getData().equals(rid(key))) {
+					System.out.println("    key " + key + " not found");
+					ok = false;
+				}
+				scan.DestroyBTreeFileScan();
+			}
+			List<String> problems = file.verify();
+			if (!problems.isEmpty()) {
+				System.out.println("    " + problems);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * insert, NaiveDelete and destroyFile must leave no page pinned.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: pins left by insert, delete and destroy");
+		boolean ok = true;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("SP_PINS", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			Random random = new Random(7);
+			int[] keys = new int[4000];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextInt(1000);
+				file.insert(new IntegerKey(keys[i]), rid(i));
+			}
+			ok &= checkPins(unpinned - 1, "insert");
+
+			for (int i = 0; i < keys.length; i += 2)
+				if (!file.Delete(new IntegerKey(keys[i]), rid(i))) {
+					System.out.println("    entry " + i + " not deleted");
+					ok = false;
+				}
+			ok &= checkPins(unpinned - 1, "NaiveDelete");
+
+			file.destroyFile();
+			ok &= checkPins(unpinned, "destroyFile");
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/*
+	 * Scan the whole index, which must hold the keys in ascending order,
+	 * then look up each key.
+	 */
+	static boolean checkAll(BTreeFile file, List<Integer> keys, String name)
+			throws Exception {
+		boolean ok = true;
+		BTFileScan scan = file.new_scan(null, null);
+		int expected = 0;
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key != expected) {
+				System.out.println("    " + name + ": " + key + " where "
+						+ expected + " was expected");
+				ok = false;
+				break;
+			}
+			expected++;
+		}
+		scan.DestroyBTreeFileScan();
+		if (ok && expected != keys.size()) {
+			System.out.println("    " + name + ": " + expected
+					+ " entries, expected " + keys.size());
+			ok = false;
+		}
+		for (int key : keys) {
+			scan = file.new_scan(new IntegerKey(key), new IntegerKey(key));
+			if (scan.get_next() == null) {
+				System.out.println("    " + name + ": key " + key
+						+ " not found");
+				ok = false;
+			}
+			scan.DestroyBTreeFileScan();
+		}
+		List<String> problems = file.verify();
+		if (!problems.isEmpty()) {
+			System.out.println("    " + name + ": " + problems);
+			ok = false;
+		}
+		return ok;
+	}
+
+	/*
+	 * Every page but the header page of an open index must be unpinned.
+	 */
+	static boolean checkPins(int expected, String name) {
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		if (unpinned != expected) {
+			System.out.println("    " + name + " left "
+					+ (expected - unpinned) + " pages pinned");
+			return false;
+		}
+		return true;
+	}
+
+	static KeyClass longKey(int key) {
+		return new StringKey(String.format("%0190d", key));
+	}
+
+	static RID rid(int key) {
+		return new RID(new PageId(10 + key), key % 50);
+	}
+}
+
+public class SplitTest {
+
+	public static void main(String[] argvs) {
+		SplitDriver test = new SplitDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}
@@ -0,0 +1,357 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Checks the insert variants of BTreeFile that look at the entries of the
+ * key in the same descent: insertIfAbsent, upsert and the inserts of a
+ * unique index, also with held inserts and posting lists, and inserts with
+ * included values after held inserts of their key.
+ */
+class UniqueDriver extends TestDriver implements GlobalConst {
+
+	public UniqueDriver() {
+		super("uniquetest");
+	}
+
+	protected String testName() {
+		return "Unique";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 20000, 100, "Clock");
+		return super.runAllTests();
+	}
+
+	/**
+	 * insertIfAbsent inserts a key only once, also when the earlier insert
+	 * of the key is still held in the write buffer.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: insertIfAbsent");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("UQ_ABSENT", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(20);
+			for (int i = 0; i < 20000; i++) {
+				int key = random.nextInt(8000);
+				boolean inserted = file.insertIfAbsent(new IntegerKey(key),
+						rid(i));
+				if (inserted == model.containsKey(key)) {
+					System.out.println("    key " + key + ": insertIfAbsent "
+							+ "returned " + inserted);
+					ok = false;
+				}
+				if (inserted)
+					model.put(key, i);
+			}
+			ok &= check(file, model, "insertIfAbsent");
+
+			file.setWriteBuffer(100);
+			file.insert(new IntegerKey(9000), rid(1));
+			model.put(9000, 1);
+			if (file.insertIfAbsent(new IntegerKey(9000), rid(2))) {
+				System.out.println("    held key inserted again");
+				ok = false;
+			}
+			ok &= check(file, model, "held insert");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 1 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * upsert inserts absent keys and gives present ones the new rid,
+	 * returning the old one. Of several entries of a key one is changed, of
+	 * a posting list its first rid.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: upsert");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("UQ_UPSERT", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(22);
+			for (int i = 0; i < 20000; i++) {
+				int key = random.nextInt(8000);
+				RID old = file.upsert(new IntegerKey(key), rid(i));
+				Integer expected = model.put(key, i);
+				if (expected == null ? old != null : !rid(expected).equals(old)) {
+					System.out.println("    key " + key + ": upsert returned "
+							+ (old == null ? null : index(old)) + ", expected "
+							+ expected);
+					ok = false;
+				}
+			}
+			ok &= check(file, model, "upsert");
+			file.destroyFile();
+
+			// two entries of a key: one of them changes
+			file = new BTreeFile("UQ_DUPS", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.insert(new IntegerKey(5), rid(1));
+			file.insert(new IntegerKey(5), rid(2));
+			RID old = file.upsert(new IntegerKey(5), rid(3));
+			Set<Integer> rids = rids(file, 5);
+			if (old == null || rids.size() != 2 || !rids.contains(3)
+					|| rids.contains(index(old))) {
+				System.out.println("    duplicates: upsert returned "
+						+ (old == null ? null : index(old)) + ", key holds "
+						+ rids);
+				ok = false;
+			}
+			file.destroyFile();
+
+			// a posting list: its first rid changes
+			file = new BTreeFile("UQ_POSTING", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setPostingLists(3);
+			for (int i = 5; i > 0; i--)
+				file.insert(new IntegerKey(7), rid(i));
+			old = file.upsert(new IntegerKey(7), rid(9));
+			rids = rids(file, 7);
+			if (old == null || index(old) != 1 || rids.size() != 5
+					|| !rids.contains(9) || rids.contains(1)) {
+				System.out.println("    posting list: upsert returned "
+						+ (old == null ? null : index(old)) + ", key holds "
+						+ rids);
+				ok = false;
+			}
+			file.destroyFile();
+
+			// a held insert of the key is applied first
+			file = new BTreeFile("UQ_HELD", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			file.setWriteBuffer(100);
+			file.insert(new IntegerKey(8), rid(1));
+			old = file.upsert(new IntegerKey(8), rid(2));
+			rids = rids(file, 8);
+			if (old == null || index(old) != 1 || rids.size() != 1
+					|| !rids.contains(2)) {
+				System.out.println("    held insert: upsert returned "
+						+ (old == null ? null : index(old)) + ", key holds "
+						+ rids);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 2 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * A unique index refuses a second entry of a key with a
+	 * DuplicateKeyException and is left as it was. Turning it on fails
+	 * while the index holds duplicates, and is refused with posting lists.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: unique index");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("UQ_UNIQUE", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < 5000; i++) {
+				file.insert(new IntegerKey(i * 3), rid(i));
+				model.put(i * 3, i);
+			}
+			file.insert(new IntegerKey(30), rid(99));
+			try {
+				file.setUnique(true);
+				System.out.println("    unique with a duplicate key");
+				ok = false;
+			} catch (DuplicateKeyException e) {
+			}
+			file.insert(new IntegerKey(30), rid(98));
+			// a naive delete takes any entry of the key
+			for (int i = 0; i < 3; i++)
+				ok &= file.Delete(new IntegerKey(30), rid(10));
+			file.insert(new IntegerKey(30), rid(10));
+			file.setUnique(true);
+
+			Random random = new Random(24);
+			int refused = 0;
+			for (int i = 0; i < 5000; i++) {
+				int key = random.nextInt(15000);
+				try {
+					file.insert(new IntegerKey(key), rid(10000 + i));
+					if (model.put(key, 10000 + i) != null) {
+						System.out.println("    key " + key + " inserted twice");
+						ok = false;
+					}
+				} catch (InsertException e) {
+					if (!(e instanceof DuplicateKeyException)
+							|| !model.containsKey(key)) {
+						System.out.println("    key " + key + ": " + e);
+						ok = false;
+					}
+					refused++;
+				}
+			}
+			if (refused == 0) {
+				System.out.println("    no insert refused");
+				ok = false;
+			}
+			ok &= check(file, model, "unique");
+
+			try {
+				file.setPostingLists(4);
+				System.out.println("    posting lists on a unique index");
+				ok = false;
+			} catch (ConstructPageException e) {
+			}
+			file.setUnique(false);
+			file.insert(new IntegerKey(0), rid(5));
+			if (rids(file, 0).size() != 2) {
+				System.out.println("    duplicate refused after setUnique(false)");
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 3 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	/**
+	 * An insert with included values first applies the held inserts of its
+	 * key, so the entries of the key keep their insert order and a naive
+	 * delete takes the first of them.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: included values after held inserts");
+		boolean ok = true;
+		try {
+			BTreeFile file = new BTreeFile("UQ_INCLUDED", AttrType.attrInteger,
+					4, DeleteFashion.NAIVE_DELETE);
+			file.setIncludedLength(8);
+			file.setWriteBuffer(100);
+			for (int i = 0; i < 200; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			file.insert(new IntegerKey(7), rid(1000));
+			file.insert(new IntegerKey(7), rid(1001), new byte[] { 1, 2, 3 });
+
+			List<Integer> order = new ArrayList<Integer>();
+			byte[] included = null;
+			BTFileScan scan = file.new_scan(new IntegerKey(7), new IntegerKey(
+					7));
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+					.get_next()) {
+				order.add(index(((LeafData) entry.data).getData()));
+				if (entry.data instanceof CoveringData)
+					included = ((CoveringData) entry.data).getIncluded();
+			}
+			scan.DestroyBTreeFileScan();
+			if (!order.equals(Arrays.asList(7, 1000, 1001))
+					|| included == null || included.length != 3) {
+				System.out.println("    key 7 holds " + order);
+				ok = false;
+			}
+
+			file.insert(new IntegerKey(500), rid(2000));
+			file.insert(new IntegerKey(500), rid(2001), new byte[] { 4 });
+			ok &= file.Delete(new IntegerKey(500), rid(2000));
+			if (!rids(file, 500).equals(Collections.singleton(2001))) {
+				System.out.println("    key 500 holds " + rids(file, 500)
+						+ " after a delete");
+				ok = false;
+			}
+			List<String> problems = file.verify();
+			if (!problems.isEmpty()) {
+				System.out.println("    " + problems);
+				ok = false;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			ok = false;
+		}
+		System.out.println("  Test 4 " + (ok ? "passed" : "failed"));
+		return ok;
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(10 + i / 100), i % 100);
+	}
+
+	static int index(RID rid) {
+		return (rid.pageNo.pid - 10) * 100 + rid.slotNo;
+	}
+
+	/*
+	 * The rids of the entries of a key, by the number they were made from.
+	 */
+	static Set<Integer> rids(BTreeFile file, int key) throws Exception {
+		Set<Integer> rids = new HashSet<Integer>();
+		BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(
+				key));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan
+				.get_next()) {
+			rids.add(index(((LeafData) entry.data).getData()));
+		}
+		scan.DestroyBTreeFileScan();
+		return rids;
+	}
+
+	/*
+	 * A full scan must return one entry per key of the model, with its rid.
+	 */
+	static boolean check(BTreeFile file, TreeMap<Integer, Integer> model,
+			String name) throws Exception {
+		boolean ok = true;
+		Iterator<Map.Entry<Integer, Integer>> expected = model.entrySet()
+				.iterator();
+		BTFileScan scan = file.new_scan(null, null);
+		int n = 0;
+		for (KeyDataEntry entry = scan.get_next(); entry != null && ok; entry = scan
+				.get_next(), n++) {
+			Map.Entry<Integer, Integer> next = expected.hasNext() ? expected
+					.next() : null;
+			int key = ((IntegerKey) entry.key).getKey();
+			RID rid = ((LeafData) entry.data).getData();
+			if (next == null || next.getKey() != key
+					|| !rid(next.getValue()).equals(rid)) {
+				System.out.println("    " + name + ": key " + key + " rid "
+						+ index(rid) + " at entry " + n + ", expected " + next);
+				ok = false;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (ok && expected.hasNext()) {
+			System.out.println("    " + name + ": " + n + " entries, expected "
+					+ model.size());
+			ok = false;
+		}
+		List<String> problems = file.verify();
+		if (!problems.isEmpty()) {
+			System.out.println("    " + name + ": " + problems);
+			ok = false;
+		}
+		return ok;
+	}
+}
+
+public class UniqueTest {
+
+	public static void main(String[] argvs) {
+		UniqueDriver test = new UniqueDriver();
+		boolean ok = test.runTests();
+		if (!ok)
+			Runtime.getRuntime().exit(1);
+	}
+}